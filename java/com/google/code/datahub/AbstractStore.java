@@ -16,6 +16,8 @@ package com.google.code.datahub;
 
 import org.json.JSONObject;
 
+import java.util.Map;
+
 /**
  * The AbstractStore class is a base implementation of the Store
  * methods to simplify extension.
@@ -24,6 +26,27 @@ import org.json.JSONObject;
  */
 abstract class AbstractStore implements Store {
 
+  /**
+   * @return true if any of the given fields is to be sorted by the
+   * given order, as described at Store.search.
+   * @throws IllegalArgumentException if there are more orders than
+   * fields.
+   */
+  static boolean isOrdered(String [] fields, int [] order) {
+    if (order == null) {
+      return false;
+    }
+    if (fields == null || order.length > fields.length) {
+      throw new IllegalArgumentException("Each order must be of a selected field.");
+    }
+    for (int o : order) {
+      if (o != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   @Override
   public void deleteIndexes(Path path, User user) {
     throw new UnsupportedOperationException();
@@ -54,6 +77,24 @@ abstract class AbstractStore implements Store {
     throw new UnsupportedOperationException();
   }
 
+  /** Retrieves each path in turn, for stores without a batch get. */
+  @Override
+  public JSONObject retrieveAll(User user, Path ... paths) {
+    JSONObject objs = new JSONObject();
+    for (Path path : paths) {
+      JSONObject obj;
+      try {
+        obj = retrieve(path, user);
+      } catch (NotFoundException e) {
+        continue;
+      }
+      if (obj != null) {
+        Util.jsonPut(objs, path.toString(), obj);
+      }
+    }
+    return objs;
+  }
+
   @Override
   public JSONObject search(Path path, String query, User user) {
     return search(path, query, 0, DEFAULT_LIMIT, null, null, null, DURATION_UNDEFINED,
@@ -64,4 +105,12 @@ abstract class AbstractStore implements Store {
   public void update(Path path, final JSONObject objUpdates, User user) {
     create(path, objUpdates, user);
   }
+
+  /** Updates each path in turn, for stores without a batch put. */
+  @Override
+  public void updateAll(Map<Path, JSONObject> objs, User user) {
+    for (Map.Entry<Path, JSONObject> entry : objs.entrySet()) {
+      update(entry.getKey(), entry.getValue(), user);
+    }
+  }
 }
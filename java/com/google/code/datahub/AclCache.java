@@ -0,0 +1,168 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.datahub;
+
+import com.google.appengine.api.datastore.Key;
+
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The AclCache class is a bounded, concurrent, in-process cache of
+ * ACLs by ACL key, shared across requests.  The absence of an ACL is
+ * cached as well, as most paths don't have one.
+ *
+ * Entries are invalidated locally on write and expire after a TTL, so
+ * that caches in other instances converge on the stored ACLs.  A
+ * generation count is bumped on each invalidation so that a load
+ * which raced with a write is not cached.
+ *
+ * ACLs are cached in their compiled form, which is immutable.
+ *
+ * @author Pablo Mayrgundter <pmy@google.com>
+ */
+final class AclCache {
+
+  static final int DEFAULT_MAX_SIZE = 10000;
+  static final long DEFAULT_TTL_MS = 30 * 1000;
+
+  /** A cached ACL, which is null if the key has no ACL. */
+  static final class Entry {
+    final CompiledAcl acl;
+    final long expiresMs;
+    Entry(CompiledAcl acl, long expiresMs) {
+      this.acl = acl;
+      this.expiresMs = expiresMs;
+    }
+  }
+
+  final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+  final int maxSize;
+  final long ttlMs;
+
+  final AtomicLong hits = new AtomicLong();
+  final AtomicLong misses = new AtomicLong();
+  final AtomicLong evictions = new AtomicLong();
+  final AtomicLong generation = new AtomicLong();
+
+  AclCache() {
+    this(DEFAULT_MAX_SIZE, DEFAULT_TTL_MS);
+  }
+
+  AclCache(int maxSize, long ttlMs) {
+    this.maxSize = maxSize;
+    this.ttlMs = ttlMs;
+  }
+
+  /**
+   * @return the cached entry for the given key, or null on a miss.
+   */
+  Entry get(Key aclKey) {
+    Entry entry = entries.get(aclKey);
+    if (entry != null && entry.expiresMs < System.currentTimeMillis()) {
+      entries.remove(aclKey, entry);
+      entry = null;
+    }
+    if (entry == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return entry;
+  }
+
+  /**
+   * @return the current generation, to be read before loading an ACL
+   * that will be passed to {@link #put}.
+   */
+  long generation() {
+    return generation.get();
+  }
+
+  /**
+   * Caches the given ACL, or its absence if null, unless an
+   * invalidation has happened since the given generation.
+   */
+  void put(Key aclKey, CompiledAcl acl, long loadGeneration) {
+    if (entries.size() >= maxSize) {
+      evict();
+    }
+    entries.put(aclKey, new Entry(acl, System.currentTimeMillis() + ttlMs));
+    if (generation.get() != loadGeneration) {
+      // May drop a concurrent valid put, which is only a later miss.
+      entries.remove(aclKey);
+    }
+  }
+
+  void invalidate(Key aclKey) {
+    generation.incrementAndGet();
+    entries.remove(aclKey);
+  }
+
+  /**
+   * Invalidates state derived from the cached ACLs but kept elsewhere,
+   * e.g. request memos, as when group membership changes.
+   */
+  void invalidateDerived() {
+    generation.incrementAndGet();
+  }
+
+  void clear() {
+    generation.incrementAndGet();
+    entries.clear();
+  }
+
+  /**
+   * Removes expired entries and then, if still over 90% full, enough
+   * others to get under that.  Which others is arbitrary, as
+   * ConcurrentHashMap iteration order is unrelated to use.
+   */
+  void evict() {
+    long now = System.currentTimeMillis();
+    int target = maxSize * 9 / 10;
+    Iterator<Map.Entry<Key, Entry>> itr = entries.entrySet().iterator();
+    while (itr.hasNext()) {
+      if (itr.next().getValue().expiresMs < now) {
+        itr.remove();
+        evictions.incrementAndGet();
+      }
+    }
+    itr = entries.entrySet().iterator();
+    while (entries.size() > target && itr.hasNext()) {
+      itr.next();
+      itr.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  /** @return hit, miss and size counters for sizing the cache. */
+  JSONObject getStats() {
+    JSONObject stats = new JSONObject();
+    long h = hits.get(), m = misses.get();
+    Util.jsonPut(stats, "hits", h);
+    Util.jsonPut(stats, "misses", m);
+    Util.jsonPut(stats, "hitRate", h + m == 0 ? 0 : (double) h / (h + m));
+    Util.jsonPut(stats, "evictions", evictions.get());
+    Util.jsonPut(stats, "size", entries.size());
+    Util.jsonPut(stats, "maxSize", maxSize);
+    Util.jsonPut(stats, "ttlMs", ttlMs);
+    return stats;
+  }
+}
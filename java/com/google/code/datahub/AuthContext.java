@@ -0,0 +1,112 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.datahub;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The AuthContext class memoizes the authorization decisions,
+ * ancestor ACLs and principals of one user for the life of a
+ * request, so that repeated checks of the same (path, op) by the
+ * layers of a request cost a map lookup.  It is held by the User, which is created per
+ * request, and so is not thread-safe.
+ *
+ * The memo is only valid for the store which made it and only until
+ * that store's ACL cache is next invalidated, e.g. by an ACL change
+ * in the same request, after which it is cleared.
+ *
+ * @author Pablo Mayrgundter <pmy@google.com>
+ */
+final class AuthContext {
+
+  static final byte UNKNOWN = 0, ALLOWED = 1, RESTRICTED = 2;
+
+  /** Bounds the memo for requests which touch many paths. */
+  static final int MAX_PATHS = 1000;
+
+  private Object owner = null;
+  private long generation = -1;
+  private final Map<Path, byte []> decisions = new HashMap<Path, byte []>();
+  private final Map<Path, CompiledAcl []> ancestorAcls = new HashMap<Path, CompiledAcl []>();
+  private String [] principals = null;
+
+  int hits = 0;
+
+  /**
+   * Clears the memo unless it was made by the given store at the
+   * given ACL cache generation.
+   *
+   * @return this.
+   */
+  AuthContext validate(Object store, long aclGeneration) {
+    if (owner != store || generation != aclGeneration) {
+      decisions.clear();
+      ancestorAcls.clear();
+      principals = null;
+      owner = store;
+      generation = aclGeneration;
+    }
+    return this;
+  }
+
+  /** @return ALLOWED, RESTRICTED or UNKNOWN if not yet decided. */
+  byte getDecision(Path path, Store.Op op) {
+    byte [] byOp = decisions.get(path);
+    byte decision = byOp == null ? UNKNOWN : byOp[op.ordinal()];
+    if (decision != UNKNOWN) {
+      hits++;
+    }
+    return decision;
+  }
+
+  void putDecision(Path path, Store.Op op, boolean restricted) {
+    byte [] byOp = decisions.get(path);
+    if (byOp == null) {
+      if (decisions.size() >= MAX_PATHS) {
+        decisions.clear();
+      }
+      decisions.put(path, byOp = new byte[Store.Op.values().length]);
+    }
+    byOp[op.ordinal()] = restricted ? RESTRICTED : ALLOWED;
+  }
+
+  /**
+   * @return the ACLs of the path and its ancestors, as returned by
+   * SecureDatastore.getAncestorAcls, or null if not memoized.
+   */
+  CompiledAcl [] getAncestorAcls(Path path) {
+    return ancestorAcls.get(path);
+  }
+
+  void putAncestorAcls(Path path, CompiledAcl [] acls) {
+    if (ancestorAcls.size() >= MAX_PATHS) {
+      ancestorAcls.clear();
+    }
+    ancestorAcls.put(path, acls);
+  }
+
+  /**
+   * @return the user's uid and those of its groups, as returned by
+   * SecureDatastore.getPrincipals, or null if not memoized.
+   */
+  String [] getPrincipals() {
+    return principals;
+  }
+
+  void setPrincipals(String [] principals) {
+    this.principals = principals;
+  }
+}
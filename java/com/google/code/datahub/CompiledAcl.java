@@ -0,0 +1,136 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.datahub;
+
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The CompiledAcl class is an immutable, compact form of a stored
+ * ACL for fast permission checks.  User IDs are interned to ints and
+ * each is mapped to a bitmask of the (ControlType, Op) pairs asserted
+ * for it, in an open-addressed table of primitive ints.  Checking a
+ * user against an ACL is then a table probe and a bit test, without
+ * allocation, instead of a linear scan of a JSONArray of strings.
+ *
+ * @author Pablo Mayrgundter <pmy@google.com>
+ */
+final class CompiledAcl {
+
+  /** Returned by {@link #lookupUid} for users not in any ACL. */
+  static final int NO_UID = 0;
+
+  static final ConcurrentMap<String, Integer> UIDS = new ConcurrentHashMap<String, Integer>();
+  static final AtomicInteger nextUid = new AtomicInteger(NO_UID + 1);
+
+  /** @return the interned number for the given uid, creating it if needed. */
+  static int internUid(String uid) {
+    Integer num = UIDS.get(uid);
+    if (num == null) {
+      Integer newNum = nextUid.getAndIncrement();
+      num = UIDS.putIfAbsent(uid, newNum);
+      if (num == null) {
+        num = newNum;
+      }
+    }
+    return num;
+  }
+
+  /**
+   * @return the interned number for the given uid, or NO_UID if it
+   * has never been interned, and so is in no ACL.  Unlike internUid,
+   * this doesn't grow the intern table for every user checked.
+   */
+  static int lookupUid(String uid) {
+    Integer num = UIDS.get(uid);
+    return num == null ? NO_UID : num;
+  }
+
+  private static final int NUM_OPS = Store.Op.values().length;
+
+  /** @return the mask bit for the given control type and operation. */
+  static int bit(SecureDatastore.ControlType cType, Store.Op op) {
+    return 1 << (cType.ordinal() * NUM_OPS + op.ordinal());
+  }
+
+  /** Interned uids, or NO_UID for empty slots.  Length is a power of 2. */
+  private final int [] uids;
+  private final int [] masks;
+
+  private CompiledAcl(int capacity) {
+    uids = new int[capacity];
+    masks = new int[capacity];
+  }
+
+  /**
+   * Compiles the original JSON form of an ACL, which maps control
+   * type to operation to an array of uids.
+   *
+   * @throws IllegalStateException if the ACL is corrupted.
+   */
+  static CompiledAcl compile(JSONObject acl) {
+    return compile(StoredAcl.fromLegacy(acl));
+  }
+
+  /** Compiles an ACL from its masks by uid, as stored by StoredAcl. */
+  static CompiledAcl compile(Map<String, Integer> masks) {
+    int capacity = 2;
+    while (capacity < masks.size() * 2) {
+      capacity <<= 1;
+    }
+    CompiledAcl compiled = new CompiledAcl(capacity);
+    for (Map.Entry<String, Integer> entry : masks.entrySet()) {
+      compiled.add(internUid(entry.getKey()), entry.getValue());
+    }
+    return compiled;
+  }
+
+  private void add(int uid, int bits) {
+    int slot = slot(uid);
+    while (uids[slot] != NO_UID && uids[slot] != uid) {
+      slot = (slot + 1) & (uids.length - 1);
+    }
+    uids[slot] = uid;
+    masks[slot] |= bits;
+  }
+
+  private int slot(int uid) {
+    return (uid * 0x9E3779B9) & (uids.length - 1);
+  }
+
+  /** @return the bitmask asserted for the given interned uid, or 0. */
+  int getMask(int uid) {
+    if (uid == NO_UID) {
+      return 0;
+    }
+    int slot = slot(uid);
+    int cur;
+    while ((cur = uids[slot]) != NO_UID) {
+      if (cur == uid) {
+        return masks[slot];
+      }
+      slot = (slot + 1) & (uids.length - 1);
+    }
+    return 0;
+  }
+
+  boolean isAsserted(int uid, SecureDatastore.ControlType cType, Store.Op op) {
+    return (getMask(uid) & bit(cType, op)) != 0;
+  }
+}
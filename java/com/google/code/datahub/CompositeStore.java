@@ -14,8 +14,15 @@
  */
 package com.google.code.datahub;
 
+import com.google.appengine.api.datastore.DatastoreNeedIndexException;
+import com.google.appengine.api.datastore.FetchOptions;
+import static com.google.appengine.api.datastore.FetchOptions.Builder.*;
+
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.util.Map;
+
 /**
  * The CompositeStore class uses the datastore as the primary object
  * storage, for direct object retrieval and also as the only source of
@@ -26,7 +33,13 @@ import org.json.JSONObject;
  * and then to the search store, so that permissions failures will
  * fail fast without search store modification.
  *
- * TODO(pmy): transaction support?
+ * With write-behind, see setWriteBehind, writes instead return once
+ * the datastore is written, and the search store is updated from the
+ * Outbox, so that the two are eventually consistent.
+ *
+ * With query routing, see setRouteQueries, searches which the
+ * datastore can answer from its indexes may be answered by it
+ * instead, as chosen by a QueryPlanner.
  *
  * @author Pablo Mayrgundter <pmy@google.com>
  */
@@ -36,26 +49,122 @@ public class CompositeStore extends AbstractStore {
   public final SecureDatastore datastoreAsAclService;
   public final Store search;
 
+  /** The number of search hits fetched per page when filtering by ACL. */
+  static final int MIN_FILTERED_FETCH = 20, MAX_FILTERED_FETCH = 1000;
+  /** Bounds the pages fetched to fill one filtered result page. */
+  static final int MAX_FILTERED_FETCHES = 10;
+
+  /**
+   * If true, search results are filtered to those the user may read,
+   * instead of only READ being checked on the query path, so that
+   * corpora with restricted subtrees may be searched.
+   */
+  boolean filterSearchByAcl = false;
+
+  /** If not null, the search store is updated behind writes. */
+  Outbox outbox = null;
+
+  /**
+   * If not null, searches are routed to the datastore or the search
+   * store, as described at QueryPlanner.  Searches filtered by ACL
+   * are not routed.
+   */
+  QueryPlanner planner = null;
+
+  /**
+   * Marks the cursors of searches answered by the datastore, which
+   * can't be those of the search store as ':' isn't web-safe.
+   */
+  static final String DATASTORE_CURSOR_PREFIX = "ds:";
+
   /**
    * @param parentCorpusPath may be null.
    */
   CompositeStore(Path corpusPath, Path parentCorpusPath) {
-    datastoreAsAclService = new SecureDatastore();
+    this(corpusPath, parentCorpusPath, KeyLayout.ROOTED);
+  }
+
+  /**
+   * @param parentCorpusPath may be null.
+   * @param layout the mapping of paths in this corpus to datastore
+   * entity groups.
+   */
+  CompositeStore(Path corpusPath, Path parentCorpusPath, KeyLayout layout) {
+    this(corpusPath, parentCorpusPath, layout, false);
+  }
+
+  /**
+   * @param parentCorpusPath may be null.
+   * @param layout the mapping of paths in this corpus to datastore
+   * entity groups.
+   * @param materializeAcls whether ACL changes are pushed down to
+   * their subtrees, as described at SecureDatastore.propagateAcls.
+   */
+  CompositeStore(Path corpusPath, Path parentCorpusPath, KeyLayout layout,
+                 boolean materializeAcls) {
+    datastoreAsAclService = new SecureDatastore(layout, materializeAcls);
     datastore = datastoreAsAclService;
     search = new Search(corpusPath, parentCorpusPath);
   }
 
+  /**
+   * Migrates this corpus to the datastore's layout from the given
+   * one, as described at Datastore.migrateLayout.
+   */
+  void migrateLayout(KeyLayout from) {
+    datastoreAsAclService.migrateLayout(((Search) search).corpusPath, from);
+  }
+
+  /**
+   * Opts in to overlapping the search writes of each operation, as
+   * described at Search.concurrentWrites.  The datastore write, and
+   * so the ACL check, still completes before they start.
+   */
+  void setConcurrentWrites(boolean concurrentWrites) {
+    ((Search) search).concurrentWrites = concurrentWrites;
+  }
+
+  /**
+   * Opts in to buffering and batching the search store's doc index
+   * puts, as described at DocWriter.
+   */
+  void setBufferSearchWrites(boolean bufferSearchWrites) {
+    ((Search) search).setBufferWrites(bufferSearchWrites);
+  }
+
+  /**
+   * Opts in to updating the search store from an Outbox drained by
+   * tasks, instead of during each write.
+   */
+  void setWriteBehind(boolean writeBehind) {
+    datastoreAsAclService.writeBehind = writeBehind;
+    outbox = writeBehind ? new Outbox(datastoreAsAclService, (Search) search) : null;
+  }
+
+  /** Opts in to routing searches as described at QueryPlanner. */
+  void setRouteQueries(boolean routeQueries) {
+    planner = routeQueries ? new QueryPlanner(datastoreAsAclService.layout) : null;
+  }
+
   @Override
   public Path create(Path parentPath, JSONObject json, User user) {
     Path path = datastore.create(parentPath, json, user);
-    search.create(path, json, user);
+    if (outbox != null) {
+      outbox.enqueueDrain(path);
+    } else {
+      search.create(path, json, user);
+    }
     return path;
   }
 
   @Override
   public Path create(Path parentPath, String name, JSONObject json, User user) {
     Path path = datastore.create(parentPath, name, json, user);
-    search.create(path, name, json, user);
+    if (outbox != null) {
+      outbox.enqueueDrain(path);
+    } else {
+      search.create(path, name, json, user);
+    }
     return path;
   }
 
@@ -63,7 +172,11 @@ public class CompositeStore extends AbstractStore {
   @Override
   public void delete(User user, Path ... paths) {
     datastore.delete(user, paths);
-    search.delete(user, paths);
+    if (outbox != null) {
+      outbox.enqueueDrain(paths);
+    } else {
+      search.delete(user, paths);
+    }
   }
 
   @Override
@@ -99,6 +212,15 @@ public class CompositeStore extends AbstractStore {
                           endpointId, duration, user);
   }
 
+  @Override
+  public JSONObject list(Path path,
+                         String cursor, int limit, String [] fields, int [] order,
+                         String endpointId, long duration,
+                         User user) {
+    return datastore.list(path, cursor, limit, fields, order,
+                          endpointId, duration, user);
+  }
+
   @Override
   public JSONObject retrieve(Path path, User user) {
     return datastore.retrieve(path, user);
@@ -115,14 +237,235 @@ public class CompositeStore extends AbstractStore {
                            int offset, int limit, String [] fields, int [] order,
                            String endpointId, long duration,
                            User user) {
-    datastoreAsAclService.assertAllowed(path, user, Datastore.Op.READ);
-    return search.search(path, query, offset, limit, fields, order, endpointId, duration, user);
+    if (!filterSearchByAcl) {
+      datastoreAsAclService.assertAllowed(path, user, Datastore.Op.READ);
+    } else {
+      ReadableSubtrees readable =
+        datastoreAsAclService.getReadableSubtrees(path, user, Datastore.Op.READ);
+      if (!readable.isAllReadable()) {
+        return searchReadable(readable, path, query, offset, limit, fields, order,
+                              endpointId, duration, user);
+      }
+    }
+    if (planner != null
+        && planner.route(path, query, offset, limit, fields, order,
+                         endpointId != null && duration >= 0).backend
+           == QueryPlanner.Backend.DATASTORE) {
+      JSONObject rspJson = searchDatastore(path, query, withOffset(offset).limit(limit),
+                                           fields, order);
+      if (rspJson != null) {
+        return Util.jsonPut(rspJson, "offset", offset);
+      }
+    }
+    long startMs = System.currentTimeMillis();
+    JSONObject rspJson =
+      search.search(path, query, offset, limit, fields, order, endpointId, duration, user);
+    if (planner != null) {
+      planner.record(QueryPlanner.Backend.SEARCH, System.currentTimeMillis() - startMs);
+    }
+    return rspJson;
+  }
+
+  /**
+   * Searches the datastore for a search routed to it by the planner,
+   * recording its latency.
+   *
+   * @return the results as returned by Search.search, or null if the
+   * datastore lacks an index for the query, which is then recorded
+   * so that it is routed to Search from now on.
+   */
+  JSONObject searchDatastore(Path path, String query, FetchOptions fetchOptions,
+                             String [] fields, int [] order) {
+    long startMs = System.currentTimeMillis();
+    try {
+      JSONObject rspJson =
+        datastoreAsAclService.searchResults(path, query, fetchOptions, fields, order);
+      planner.record(QueryPlanner.Backend.DATASTORE, System.currentTimeMillis() - startMs);
+      return rspJson;
+    } catch (DatastoreNeedIndexException e) {
+      planner.recordNeedIndex(query);
+      return null;
+    }
+  }
+
+  /**
+   * Searches as above, dropping hits outside of the readable subtrees.
+   * Hits are over-fetched in growing pages until offset + limit
+   * readable hits are found or the hits are exhausted, so that offset
+   * and limit apply to the readable hits.  At most
+   * MAX_FILTERED_FETCHES pages are fetched, so a page may be short if
+   * the user can read few of the hits.
+   */
+  JSONObject searchReadable(ReadableSubtrees readable, Path path, String query,
+                            int offset, int limit, String [] fields, int [] order,
+                            String endpointId, long duration,
+                            User user) {
+    JSONObject rspJson = null;
+    JSONArray readableResults = new JSONArray();
+    int skipped = 0, rawOffset = 0;
+    int fetchLimit = Math.max(MIN_FILTERED_FETCH, Math.min(2 * (offset + limit),
+                                                           MAX_FILTERED_FETCH));
+    for (int fetches = 0; fetches < MAX_FILTERED_FETCHES; fetches++) {
+      // Only the first fetch may subscribe the query.
+      JSONObject pageJson = search.search(path, query, rawOffset, fetchLimit, fields, order,
+                                          fetches == 0 ? endpointId : null, duration, user);
+      if (rspJson == null) {
+        rspJson = pageJson;
+      }
+      JSONArray page = pageJson.optJSONArray("results");
+      int pageLength = page == null ? 0 : page.length();
+      for (int i = 0; i < pageLength && readableResults.length() < limit; i++) {
+        JSONObject result = page.optJSONObject(i);
+        String resultPath = (String) result.keys().next();
+        if (!readable.isReadable(Path.fromString(resultPath))) {
+          continue;
+        }
+        if (skipped < offset) {
+          skipped++;
+          continue;
+        }
+        readableResults.put(result);
+      }
+      if (readableResults.length() >= limit || pageLength < fetchLimit) {
+        break;
+      }
+      rawOffset += pageLength;
+      fetchLimit = Math.min(fetchLimit * 2, MAX_FILTERED_FETCH);
+    }
+    Util.jsonPut(rspJson, "results", readableResults);
+    Util.jsonPut(rspJson, "offset", offset);
+    Util.jsonPut(rspJson, "limit", readableResults.length());
+    return rspJson;
+  }
+
+  @Override
+  public JSONObject search(Path path, String query,
+                           String cursor, int limit, String [] fields, int [] order,
+                           String endpointId, long duration,
+                           User user) {
+    if (!filterSearchByAcl) {
+      datastoreAsAclService.assertAllowed(path, user, Datastore.Op.READ);
+    } else {
+      ReadableSubtrees readable =
+        datastoreAsAclService.getReadableSubtrees(path, user, Datastore.Op.READ);
+      if (!readable.isAllReadable()) {
+        return searchReadable(readable, path, query, cursor, limit, fields, order,
+                              endpointId, duration, user);
+      }
+    }
+    // Later pages stay with the store which answered the first.
+    boolean datastorePage = cursor != null && cursor.startsWith(DATASTORE_CURSOR_PREFIX);
+    if (datastorePage
+        || (cursor == null && planner != null
+            && planner.route(path, query, 0, limit, fields, order,
+                             endpointId != null && duration >= 0).backend
+               == QueryPlanner.Backend.DATASTORE)) {
+      if (planner == null) {
+        throw new IllegalArgumentException("Query routing is not enabled: " + cursor);
+      }
+      JSONObject rspJson =
+        searchDatastore(path, query,
+                        Datastore.withCursor(datastorePage
+                                             ? cursor.substring(DATASTORE_CURSOR_PREFIX.length())
+                                             : null, limit),
+                        fields, order);
+      if (rspJson != null) {
+        String next = rspJson.optString(NEXT_FIELD, null);
+        if (next != null) {
+          Util.jsonPut(rspJson, NEXT_FIELD, DATASTORE_CURSOR_PREFIX + next);
+        }
+        return rspJson;
+      }
+      if (datastorePage) {
+        throw new IllegalArgumentException("The datastore can no longer continue: " + cursor);
+      }
+    }
+    long startMs = System.currentTimeMillis();
+    JSONObject rspJson =
+      search.search(path, query, cursor, limit, fields, order, endpointId, duration, user);
+    if (planner != null) {
+      planner.record(QueryPlanner.Backend.SEARCH, System.currentTimeMillis() - startMs);
+    }
+    return rspJson;
+  }
+
+  /**
+   * Searches from a cursor as above, dropping hits outside of the
+   * readable subtrees.  Each fetch is only of as many hits as are
+   * still needed, so that every fetched page is wholly used and the
+   * cursor of the last one is where the next page starts.  At most
+   * MAX_FILTERED_FETCHES pages are fetched, so a page may be short,
+   * but still have a next cursor, if the user can read few of the
+   * hits.
+   */
+  JSONObject searchReadable(ReadableSubtrees readable, Path path, String query,
+                            String cursor, int limit, String [] fields, int [] order,
+                            String endpointId, long duration,
+                            User user) {
+    JSONObject rspJson = null;
+    Object queryId = null;
+    JSONArray readableResults = new JSONArray();
+    for (int fetches = 0; fetches < MAX_FILTERED_FETCHES; fetches++) {
+      int fetchLimit = limit - readableResults.length();
+      // Only the first fetch may subscribe the query.
+      rspJson = search.search(path, query, cursor, fetchLimit, fields, order,
+                              fetches == 0 ? endpointId : null, duration, user);
+      if (fetches == 0) {
+        queryId = rspJson.opt("queryId");
+      }
+      JSONArray page = rspJson.optJSONArray("results");
+      int pageLength = page == null ? 0 : page.length();
+      for (int i = 0; i < pageLength; i++) {
+        JSONObject result = page.optJSONObject(i);
+        String resultPath = (String) result.keys().next();
+        if (readable.isReadable(Path.fromString(resultPath))) {
+          readableResults.put(result);
+        }
+      }
+      cursor = rspJson.optString(NEXT_FIELD, null);
+      if (readableResults.length() >= limit || pageLength < fetchLimit || cursor == null) {
+        break;
+      }
+    }
+    Util.jsonPut(rspJson, "results", readableResults);
+    Util.jsonPut(rspJson, "limit", readableResults.length());
+    if (queryId != null) {
+      Util.jsonPut(rspJson, "queryId", queryId);
+    }
+    return rspJson;
+  }
+
+  @Override
+  public JSONObject retrieveAll(User user, Path ... paths) {
+    return datastore.retrieveAll(user, paths);
+  }
+
+  /**
+   * Writes the datastore first and then, unless writing behind, the
+   * search store.  So if the search update fails, e.g. for a path
+   * outside the corpus or a doc the index rejects, the objects stay
+   * written to the datastore without their docs and the exception
+   * is thrown.  Writing behind through the Outbox avoids this, as the
+   * docs are then indexed eventually.
+   */
+  @Override
+  public void updateAll(Map<Path, JSONObject> objs, User user) {
+    datastore.updateAll(objs, user);
+    if (outbox != null) {
+      outbox.enqueueDrain(objs.keySet().toArray(new Path[objs.size()]));
+    } else {
+      search.updateAll(objs, user);
+    }
   }
 
   /** TODO(pmy): updates applied to sub-paths? */
   @Override
   public void update(Path path, JSONObject json, User user) {
     datastore.update(path, json, user);
-    search.update(path, json, user);
+    if (outbox != null) {
+      outbox.enqueueDrain(path);
+    } else {
+      search.update(path, json, user);
+    }
   }
 }
@@ -14,6 +14,7 @@
  */
 package com.google.code.datahub;
 
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.EmbeddedEntity;
@@ -21,8 +22,11 @@ import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PropertyContainer;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
 import static com.google.appengine.api.datastore.FetchOptions.Builder.*;
 
 import org.json.JSONArray;
@@ -31,6 +35,11 @@ import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -50,15 +59,48 @@ public class Datastore extends AbstractStore {
 
   static final int DEFAULT_QUERY_LIMIT = 10;
 
+  /** The number of entities re-keyed per task by migrateLayout. */
+  static final int MIGRATE_BATCH_SIZE = 100;
+
   /** The key name for the ACL property. */
   static final String PROP_ACL_KEY = "##ACL##";
 
-  /** The key name for the internal-only parent-key pointer. */
+  /**
+   * The key name for the internal-only pointer to a path's logical
+   * parent, by which list finds children.
+   */
   static final String INTERNAL_PARENT_PROP = "##PARENT##";
 
+  /** The most keys the datastore accepts in one batch get. */
+  static final int MAX_GET_KEYS = 1000;
+
+  /**
+   * The most entities the datastore accepts in one batch put or
+   * delete.  A write-behind batch also writes an outbox entry per
+   * path, so holds half as many.
+   */
+  static final int MAX_PUT_ENTITIES = 500;
+
+  /** The number of keys fetched per batch while listing children. */
+  static final int LIST_CHUNK_SIZE = 100;
+
   final DatastoreService service;
 
+  /** How paths are mapped to entity groups. */
+  final KeyLayout layout;
+
+  /**
+   * If true, each write also puts an outbox entry for the written
+   * path in the same transaction, as described at Outbox.
+   */
+  boolean writeBehind = false;
+
   public Datastore() {
+    this(KeyLayout.ROOTED);
+  }
+
+  Datastore(KeyLayout layout) {
+    this.layout = layout;
     service = DatastoreServiceFactory.getDatastoreService();
     Entity root = new Entity(Path.ROOT_KEY);
     service.put(root);
@@ -67,27 +109,54 @@ public class Datastore extends AbstractStore {
   @Override
   public Path create(Path parent, JSONObject json, User user) {
     logger.fine("create, parent path: " + parent);
-    final Key parentKey = parent.toKey();
+    final Key parentKey = parent.toKey(layout);
     logger.fine("create, parent key: " + parentKey);
-    return create(new Entity(Path.PATH_KIND, parentKey), json, user);
+    if (!layout.isGroupRoot(parent.getLength() + 1)) {
+      return create(new Entity(Path.PATH_KIND, parentKey), json, user);
+    }
+    // The new path will be a group root.  At the top level the id can
+    // be allocated by the put, but below that the key must be named
+    // by its path, so allocate the id first.
+    if (parent.getLength() == 0) {
+      return create(new Entity(Path.PATH_KIND), json, user);
+    }
+    long id = service.allocateIds(Path.PATH_KIND, 1).getStart().getId();
+    return create(new Entity(parent.getChild(id).toKey(layout)), json, user);
   }
 
   @Override
   public Path create(Path parent, String name, JSONObject json, User user) {
     logger.fine("create, parent path: " + parent);
-    final Key parentKey = parent.toKey();
-    logger.fine("create, parent key: " + parentKey);
-    return create(new Entity(Path.resolvePart(name, parentKey)), json, user);
+    final Key key = parent.getChild(name).toKey(layout);
+    logger.fine("create, key: " + key);
+    return create(new Entity(key), json, user);
   }
 
   @Override
   public void delete(User user, Path ... paths) {
-    Key [] keys = new Key[paths.length];
-    for (int i = 0; i < keys.length; i++) {
-      keys[i] = paths[i].toKey();
-      assertExists(paths[i]);
+    List<Key> keys = new ArrayList<Key>(paths.length);
+    for (Path path : paths) {
+      keys.add(path.toKey(layout));
+      assertExists(path);
     }
-    service.delete(keys);
+    keys.addAll(dependentKeys(paths));
+    int batchSize = writeBehind ? MAX_PUT_ENTITIES / 2 : MAX_PUT_ENTITIES;
+    for (int i = 0; i < keys.size(); i += batchSize) {
+      List<Key> batch = keys.subList(i, Math.min(i + batchSize, keys.size()));
+      if (writeBehind) {
+        Outbox.write(service, layout, Collections.<Entity>emptyList(), batch);
+      } else {
+        service.delete(batch);
+      }
+    }
+  }
+
+  /**
+   * @return the keys of the entities kept alongside the given paths,
+   * which are deleted along with them.  None here.
+   */
+  List<Key> dependentKeys(Path ... paths) {
+    return Collections.emptyList();
   }
 
   @Override
@@ -95,21 +164,88 @@ public class Datastore extends AbstractStore {
                          int offset, int limit, String [] fields, int [] order,
                          String reqEndpointId, long duration,
                          User user) {
-    Key key = path.toKey();
-    // TODO(pmy): Shouldn't need to store the parent key in every
-    // entity to do this, but couldn't figure out how to limit results
-    // otherwise.
-    Query q = new Query(Path.PATH_KIND, Path.ROOT_KEY)
+    return list(path, null, offset, limit, fields, order);
+  }
+
+  @Override
+  public JSONObject list(Path path,
+                         String cursor, int limit, String [] fields, int [] order,
+                         String reqEndpointId, long duration,
+                         User user) {
+    return list(path, cursor, 0, limit, fields, order);
+  }
+
+  /**
+   * Lists limit of the path's children, after skipping offset of them
+   * from the given cursor, or from the start if null.
+   *
+   * Children are found with a keys-only query on their
+   * INTERNAL_PARENT_PROP.  For children in the path's entity group,
+   * the query also has the path as its ancestor, so it is strongly
+   * consistent.  The datastore serves it by merging the built-in
+   * indexes, so a page costs the same however large the subtrees of
+   * its children.  Children which are group roots have no ancestor to
+   * query by.  An ordered listing is sorted by the query, as by
+   * addSorts.
+   *
+   * @param fields the field paths of the children to return, as by
+   * entityToJson, or null for all.  The children are fetched in one
+   * batch get, unless fields is empty, when they are listed by name
+   * only, as empty objects.
+   * @return the children by name, with a NEXT_ENTRY if the page is
+   * full, so there may be more.
+   * @throws IllegalArgumentException if the cursor is not valid.
+   */
+  JSONObject list(Path path, String cursor, int offset, int limit,
+                  String [] fields, int [] order) {
+    Key key = path.toKey(layout);
+    boolean groupRoots = layout.isGroupRoot(path.getLength() + 1);
+    Query q = addSorts(new Query(Path.PATH_KIND).setKeysOnly(), fields, order)
       .setFilter(new Query.FilterPredicate(INTERNAL_PARENT_PROP,
                                            Query.FilterOperator.EQUAL,
                                            key));
-    // TODO(pmy): just .setKeysOnly(); ?
-    return entitiesToJson(service.prepare(q).asList(withLimit(10)));
+    if (!groupRoots) {
+      q.setAncestor(key);
+    }
+    FetchOptions fetchOptions = withChunkSize(LIST_CHUNK_SIZE);
+    if (cursor != null) {
+      fetchOptions.startCursor(Cursor.fromWebSafeString(cursor));
+    }
+    QueryResultIterator<Entity> itr = service.prepare(q).asQueryResultIterator(fetchOptions);
+    List<Key> children = new ArrayList<Key>();
+    while (children.size() < limit && itr.hasNext()) {
+      Key child = itr.next().getKey();
+      if (offset > 0) {
+        offset--;
+        continue;
+      }
+      children.add(child);
+    }
+    JSONObject json = new JSONObject();
+    if (fields == null || fields.length > 0) {
+      Map<Key, Entity> found = service.get(children);
+      for (Key child : children) {
+        // May have been deleted since the query.
+        Entity entity = found.get(child);
+        if (entity != null) {
+          Util.jsonPut(json, Path.fromKey(child, layout).getFilename(),
+                       entityToJson(entity, fields));
+        }
+      }
+    } else {
+      for (Key child : children) {
+        Util.jsonPut(json, Path.fromKey(child, layout).getFilename(), new JSONObject());
+      }
+    }
+    if (limit > 0 && children.size() == limit) {
+      Util.jsonPut(json, NEXT_ENTRY, itr.getCursor().toWebSafeString());
+    }
+    return json;
   }
 
   @Override
   public JSONObject retrieve(Path path, User user) {
-    Key key = path.toKey();
+    Key key = path.toKey(layout);
     logger.fine("service.get: " + key);
     // TODO(pmy): remove this try/catch when ACLs check is actually
     // performed, as it will throw for missing..
@@ -120,10 +256,46 @@ public class Datastore extends AbstractStore {
     }
   }
 
+  /** With a batch get per MAX_GET_KEYS paths. */
+  @Override
+  public JSONObject retrieveAll(User user, Path ... paths) {
+    List<Key> keys = new ArrayList<Key>(paths.length);
+    for (Path path : paths) {
+      keys.add(path.toKey(layout));
+    }
+    JSONObject json = new JSONObject();
+    for (int i = 0; i < keys.size(); i += MAX_GET_KEYS) {
+      List<Key> batch = keys.subList(i, Math.min(i + MAX_GET_KEYS, keys.size()));
+      for (Entity entity : service.get(batch).values()) {
+        Util.jsonPut(json, Path.fromKey(entity.getKey(), layout).toString(),
+                     entityToJson(entity));
+      }
+    }
+    return json;
+  }
+
   /** Named create uses this path. */
   @Override
   public void update(Path path, JSONObject json, User user) {
-    service.put(jsonToEntity(path, json));
+    put(jsonToEntity(path, json, layout));
+  }
+
+  /** With a batch put per MAX_PUT_ENTITIES objects. */
+  @Override
+  public void updateAll(Map<Path, JSONObject> objs, User user) {
+    List<Entity> entities = new ArrayList<Entity>(objs.size());
+    for (Map.Entry<Path, JSONObject> entry : objs.entrySet()) {
+      entities.add(jsonToEntity(entry.getKey(), entry.getValue(), layout));
+    }
+    int batchSize = writeBehind ? MAX_PUT_ENTITIES / 2 : MAX_PUT_ENTITIES;
+    for (int i = 0; i < entities.size(); i += batchSize) {
+      List<Entity> batch = entities.subList(i, Math.min(i + batchSize, entities.size()));
+      if (writeBehind) {
+        Outbox.write(service, layout, batch, Collections.<Key>emptyList());
+      } else {
+        service.put(batch);
+      }
+    }
   }
 
   @Override
@@ -138,28 +310,261 @@ public class Datastore extends AbstractStore {
                            String [] fields, int [] order,
                            String endpointId, long duration,
                            User user) {
-    return entitiesToJson(service.prepare(parseQuery(path, query))
+    return entitiesToJson(service.prepare(parseQuery(path, query, fields, order))
                           .asQueryResultList(FetchOptions.Builder
                                              .withOffset(offset)
-                                             .limit(limit)));
+                                             .limit(limit)), layout, fields);
+  }
+
+  @Override
+  public JSONObject search(Path path,
+                           String query,
+                           String cursor, int limit,
+                           String [] fields, int [] order,
+                           String endpointId, long duration,
+                           User user) {
+    FetchOptions fetchOptions = withCursor(cursor, limit);
+    return pageToJson(service.prepare(parseQuery(path, query, fields, order))
+                      .asQueryResultList(fetchOptions),
+                      fetchOptions, fields, NEXT_FIELD);
+  }
+
+  /**
+   * @return options to fetch limit entities from the given cursor, or
+   * from the start if null.
+   * @throws IllegalArgumentException if the cursor is not valid.
+   */
+  static FetchOptions withCursor(String cursor, int limit) {
+    FetchOptions fetchOptions = withLimit(limit);
+    if (cursor != null) {
+      fetchOptions.startCursor(Cursor.fromWebSafeString(cursor));
+    }
+    return fetchOptions;
+  }
+
+  /**
+   * @return the given page as by entitiesToJson, with its cursor as
+   * the given next field if the page is full, so there may be more.
+   */
+  JSONObject pageToJson(QueryResultList<Entity> page, FetchOptions fetchOptions,
+                        String [] fields, String nextField) {
+    JSONObject json = entitiesToJson(page, layout, fields);
+    Integer limit = fetchOptions.getLimit();
+    if (limit != null && page.size() >= limit && page.getCursor() != null) {
+      Util.jsonPut(json, nextField, page.getCursor().toWebSafeString());
+    }
+    return json;
+  }
+
+  /**
+   * Searches as above, but with the results in the form returned by
+   * Search.search, so that CompositeStore may have either store
+   * answer a search.  Access is not checked.
+   *
+   * @return an object with results, limit and, if the page is full
+   * so there may be more, NEXT_FIELD.
+   * @throws IllegalArgumentException as by parseQuery.
+   */
+  JSONObject searchResults(Path path, String query, FetchOptions fetchOptions,
+                           String [] fields, int [] order) {
+    QueryResultList<Entity> page =
+      service.prepare(parseQuery(path, query, fields, order)).asQueryResultList(fetchOptions);
+    JSONArray results = new JSONArray();
+    for (Entity entity : page) {
+      results.put(Util.jsonPut(new JSONObject(), Path.fromKey(entity.getKey(), layout).toString(),
+                               entityToJson(entity, fields)));
+    }
+    JSONObject json = Util.jsonPut(new JSONObject(), "results", results);
+    Util.jsonPut(json, "limit", page.size());
+    Integer limit = fetchOptions.getLimit();
+    if (limit != null && page.size() >= limit && page.getCursor() != null) {
+      Util.jsonPut(json, NEXT_FIELD, page.getCursor().toWebSafeString());
+    }
+    return json;
   }
 
   // Helpers.
 
+  /**
+   * Adds a sort to the given query by each of the given fields with a
+   * non-zero order, so that the first page of an ordered query is
+   * read in order from an index instead of sorting every match.  A
+   * nested field is sorted by its embedded property, e.g. "a/b" by
+   * "a.b", as indexed by setProperties.  Entities without a sorted property aren't found, and,
+   * except for a single sort without an ancestor, the query needs a
+   * composite index, which the dev server adds to
+   * datastore-indexes-auto.xml.
+   *
+   * @return the given query.
+   * @throws IllegalArgumentException if there are more orders than
+   * fields.
+   */
+  static Query addSorts(Query q, String [] fields, int [] order) {
+    if (!isOrdered(fields, order)) {
+      return q;
+    }
+    for (int i = 0; i < order.length; i++) {
+      if (order[i] != 0) {
+        q.addSort(fields[i].replace(Util.FIELD_SEP, "."),
+                  order[i] > 0 ? Query.SortDirection.ASCENDING : Query.SortDirection.DESCENDING);
+      }
+    }
+    return q;
+  }
+
   /**
    * Helper for the two public add methods, once the entity has been
    * constructed.
    */
   Path create(Entity entity, JSONObject json, User user) {
     // TODO(pmy): Util.jsonPut(json, PROP_ACL_KEY, new JSONObject());
-    Key key = service.put(setProperties(entity, json));
+    Key key = put(setProperties(entity, json, layout));
     logger.fine("create helper, inner key: " + key);
-    return Path.fromKey(key);
+    return Path.fromKey(key, layout);
+  }
+
+  /** Puts the given entity, through the outbox if writeBehind. */
+  Key put(Entity entity) {
+    if (writeBehind) {
+      Outbox.write(service, layout, Collections.singletonList(entity),
+                   Collections.<Key>emptyList());
+      return entity.getKey();
+    }
+    return service.put(entity);
+  }
+
+  /**
+   * Re-keys the entities of the given corpus' subtree stored in the
+   * given layout to their keys in this store's layout.  The work is
+   * done in batches on the task queue, so writes to the store should
+   * be stopped until the queue drains.  Running a migration twice from
+   * the same layout is not supported, as keys already migrated may not
+   * be valid in it.
+   */
+  void migrateLayout(Path corpusPath, KeyLayout from) {
+    logger.info(String.format("migrateLayout: corpus(%s) from(%s) to(%s)",
+                              corpusPath, from, layout));
+    Tasks.getInstance().enqueueProcess(migrationKeys(corpusPath, from), MIGRATE_BATCH_SIZE,
+                                       migrator(corpusPath, from));
+  }
+
+  /**
+   * @return the keys of the entities stored in the given layout under
+   * each of the subtreeRoots of the given path, read by one keys-only
+   * ancestor query per root as the keys are iterated.
+   */
+  Iterator<String> migrationKeys(Path path, KeyLayout from) {
+    final Iterator<Key> roots = subtreeRoots(path, from).iterator();
+    return new Iterator<String>() {
+      Iterator<Entity> keys = Collections.<Entity>emptyList().iterator();
+
+      public boolean hasNext() {
+        while (!keys.hasNext() && roots.hasNext()) {
+          Query q = new Query().setAncestor(roots.next()).setKeysOnly();
+          keys = service.prepare(q).asIterable().iterator();
+        }
+        return keys.hasNext();
+      }
+
+      public String next() {
+        hasNext();
+        return KeyFactory.keyToString(keys.next().getKey());
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * @return the keys, in the given layout, whose descendants hold the
+   * given path's subtree: the path's key, or, while its children are
+   * group roots, its key and those of its descendants found by their
+   * parent pointers, along with the keys stored beside each.
+   */
+  List<Key> subtreeRoots(Path path, KeyLayout from) {
+    List<Key> roots = new ArrayList<Key>();
+    LinkedList<Path> paths = new LinkedList<Path>();
+    paths.add(path);
+    while (!paths.isEmpty()) {
+      Path cur = paths.removeFirst();
+      Key key = cur.toKey(from);
+      roots.add(key);
+      roots.addAll(siblingKeys(cur, from));
+      if (from.isGroupRoot(cur.getLength() + 1)) {
+        Query q = new Query(Path.PATH_KIND).setKeysOnly()
+          .setFilter(new Query.FilterPredicate(INTERNAL_PARENT_PROP, Query.FilterOperator.EQUAL,
+                                               key));
+        for (Entity child : service.prepare(q).asIterable()) {
+          paths.add(from.fromKey(child.getKey()));
+        }
+      }
+    }
+    return roots;
+  }
+
+  /**
+   * @return the keys, in the given layout, of the entities stored
+   * beside the given path's rather than below it.  None by default.
+   */
+  List<Key> siblingKeys(Path path, KeyLayout from) {
+    return Collections.emptyList();
+  }
+
+  /** @return true if the given key is of a kind this store migrates. */
+  boolean isMigrated(Key key) {
+    String kind = key.getKind();
+    return kind.equals(Path.PATH_KIND) || kind.equals(Outbox.OUTBOX_KIND)
+      || kind.equals(Outbox.LEASE_KIND);
+  }
+
+  /** @return a processor re-keying the given keys from the given layout. */
+  Tasks.Processor migrator(Path corpusPath, final KeyLayout from) {
+    return new Tasks.Processor("migrateLayout:" + corpusPath) {
+        void process(String [] keyStrs) {
+          List<Key> oldKeys = new ArrayList<Key>(keyStrs.length);
+          for (String keyStr : keyStrs) {
+            Key key = KeyFactory.stringToKey(keyStr);
+            if (isMigrated(key)) {
+              oldKeys.add(key);
+            }
+          }
+          List<Entity> migrated = new ArrayList<Entity>(oldKeys.size());
+          List<Key> stale = new ArrayList<Key>(oldKeys.size());
+          for (Entity old : service.get(oldKeys).values()) {
+            Key newKey = migrateKey(old.getKey(), from);
+            if (newKey.equals(old.getKey())) {
+              continue;
+            }
+            Entity entity = new Entity(newKey);
+            entity.setPropertiesFrom(old);
+            if (newKey.getKind().equals(Path.PATH_KIND)) {
+              setParentProp(entity, layout);
+            }
+            migrated.add(entity);
+            stale.add(old.getKey());
+          }
+          service.put(migrated);
+          service.delete(stale);
+        }
+      };
+  }
+
+  /**
+   * @return the key in this store's layout for the given key, which
+   * is in the given layout.
+   */
+  Key migrateKey(Key key, KeyLayout from) {
+    if (key.getKind().equals(Outbox.OUTBOX_KIND) || key.getKind().equals(Outbox.LEASE_KIND)) {
+      return KeyLayout.relink(key, migrateKey(key.getParent(), from));
+    }
+    return Path.fromKey(key, from).toKey(layout);
   }
 
   void assertExists(Path path) {
     try {
-      service.get(path.toKey());
+      service.get(path.toKey(layout));
     } catch (EntityNotFoundException e) {
       throw new NotFoundException(path);
     }
@@ -167,27 +572,33 @@ public class Datastore extends AbstractStore {
 
   // Query support.
 
-  Query parseQuery(Path path, String queryString) {
-    // TODO(pmy): quick and dirty query parser, or maybe use search.query.QueryParser?
-    Query query = new Query(path.toKey());
-    /*
-    for (String [] filter : exprToTriples(filterExpr)) {
-      q.addFilter(filter[0], strToOp(filter[1]), filter[2]);
+  /**
+   * @return a query for the path's descendants matching the given
+   * query string, as compiled by QueryCompiler, sorted as by addSorts.
+   * @throws IllegalArgumentException if the query string can't be
+   * compiled, or the sort doesn't start with the property of its
+   * inequalities, as the datastore requires.
+   */
+  Query parseQuery(Path path, String queryString, String [] fields, int [] order) {
+    QueryCompiler.Plan plan = QueryCompiler.compile(queryString);
+    if (plan.inequalityProperty != null && isOrdered(fields, order)) {
+      int first = 0;
+      while (order[first] == 0) {
+        first++;
+      }
+      if (!fields[first].replace(Util.FIELD_SEP, ".").equals(plan.inequalityProperty)) {
+        throw new IllegalArgumentException("The first order must be of the field compared by "
+                                           + "inequality: " + plan.inequalityProperty);
+      }
+    }
+    // Kindless queries can't be filtered or sorted by property.
+    Query query = addSorts(new Query(Path.PATH_KIND, path.toKey(layout)), fields, order);
+    if (plan.filter != null) {
+      query.setFilter(plan.filter);
     }
-    */
-    //q.addSort("created", Query.SortDirection.DESCENDING);
     return query;
   }
 
-  String [][] filterExprToFilterTriples(String s) {
-    return new String[0][0];
-  }
-
-  // TODO(pmy)
-  static String [][] exprToTriples(String filterExpr) {
-    return new String[0][0];
-  }
-
   static Query.FilterOperator strToOp(String opStr) {
     Query.FilterOperator op;
     if (opStr.equals("=")) {
@@ -219,9 +630,17 @@ public class Datastore extends AbstractStore {
    * properties.
    */
   public static Entity jsonToEntity(Path path, JSONObject json) {
-    Key k = path.toKey();
+    return jsonToEntity(path, json, KeyLayout.ROOTED);
+  }
+
+  /**
+   * Creates a new Entity with the given path, as keyed in the given
+   * layout, and JSONObject's properties.
+   */
+  static Entity jsonToEntity(Path path, JSONObject json, KeyLayout layout) {
+    Key k = path.toKey(layout);
     Entity entity = new Entity(k);
-    setProperties(entity, json);
+    setProperties(entity, json, layout);
     return entity;
   }
 
@@ -232,18 +651,41 @@ public class Datastore extends AbstractStore {
    * @return the given Entity.
    */
   static Entity setProperties(final Entity entity, JSONObject json) {
+    return setProperties(entity, json, KeyLayout.ROOTED);
+  }
+
+  /**
+   * As setProperties(Entity, JSONObject), with the internal parent
+   * pointer set as by setParentProp.
+   */
+  static Entity setProperties(final Entity entity, JSONObject json, KeyLayout layout) {
     setProperties((PropertyContainer) entity, json);
-    Key key = entity.getKey();
-    Key parent = key.getParent();
-    // TODO(pmy): parent may be null: does this matter?
-    entity.setProperty(INTERNAL_PARENT_PROP, parent);
+    setParentProp(entity, layout);
     // TODO(pmy): search
     //entity.setProperty(Search.INTERNAL_QUERY_FIELD_PATH,
     // Search.makePathTokens(Path.fromKey(key)));
     return entity;
   }
 
-  /** Recursive callee of setProperties(Entity, JSONObject). */
+  /**
+   * Sets the internal parent pointer of the given entity to the
+   * storage key of its logical parent, which for a group root in the
+   * given layout is not its datastore parent.  ROOT has none.
+   */
+  static void setParentProp(Entity entity, KeyLayout layout) {
+    Key key = entity.getKey();
+    if (key.equals(Path.ROOT_KEY)) {
+      entity.removeProperty(INTERNAL_PARENT_PROP);
+    } else {
+      entity.setProperty(INTERNAL_PARENT_PROP, layout.toParentKey(key));
+    }
+  }
+
+  /**
+   * Recursive callee of setProperties(Entity, JSONObject).  Nested
+   * objects are set as indexed embedded entities, so that their
+   * properties may be queried and sorted by as e.g. "a.b".
+   */
   static PropertyContainer setProperties(final PropertyContainer entity, JSONObject json) {
     Util.visitJson(json, new Util.Visitor() {
         void visit(String key, Object val) {
@@ -264,7 +706,7 @@ public class Datastore extends AbstractStore {
         void visit(String key, JSONObject val) {
           EmbeddedEntity embedded = new EmbeddedEntity();
           setProperties(embedded, val);
-          entity.setProperty(key, embedded);
+          entity.setIndexedProperty(key, embedded);
         }
         void visit(String key, JSONArray val) {
           Collection<Object> objs = new ArrayList<Object>(val.length());
@@ -283,21 +725,41 @@ public class Datastore extends AbstractStore {
               objs.add(arrVal);
             }
           }
-          entity.setProperty(key, objs);
+          entity.setIndexedProperty(key, objs);
         }
       });
     return entity;
   }
 
   public static JSONObject entitiesToJson(Iterable<Entity> entities) {
+    return entitiesToJson(entities, KeyLayout.ROOTED);
+  }
+
+  static JSONObject entitiesToJson(Iterable<Entity> entities, KeyLayout layout) {
+    return entitiesToJson(entities, layout, null);
+  }
+
+  /** As above, with only the given fields of each entity, as by entityToJson. */
+  static JSONObject entitiesToJson(Iterable<Entity> entities, KeyLayout layout,
+                                   String [] fields) {
     JSONObject json = new JSONObject();
     for (Entity e : entities) {
-      Util.jsonPut(json, Path.fromKey(e.getKey()).getFilename(), entityToJson(e));
+      Util.jsonPut(json, Path.fromKey(e.getKey(), layout).getFilename(),
+                   entityToJson(e, fields));
     }
     return json;
   }
 
   public static JSONObject entityToJson(PropertyContainer entity) {
+    return entityToJson(entity, null);
+  }
+
+  /**
+   * As entityToJson(PropertyContainer), with only the properties
+   * selected by the given field paths, as by Util.jsonProject, so
+   * that unselected properties aren't converted.
+   */
+  static JSONObject entityToJson(PropertyContainer entity, String [] fields) {
     JSONObject json = new JSONObject();
     for (java.util.Map.Entry<String, Object> property : entity.getProperties().entrySet()) {
       String keyName = property.getKey();
@@ -305,20 +767,31 @@ public class Datastore extends AbstractStore {
           || keyName.startsWith(Search.INTERNAL_QUERY_FIELD_PATH)) {
         continue;
       }
+      String [] subFields = Util.subFields(keyName, fields);
+      if (subFields != null && subFields.length == 0) {
+        continue;
+      }
       Object val = property.getValue();
       if (keyName == null) {
         throw new NullPointerException("json.org's JSON doesn't allow null keys.");
       }
+      if (subFields != null
+          && !(val instanceof EmbeddedEntity || val instanceof Collection)) {
+        // Only a part of a property which has none is selected.
+        continue;
+      }
       if (val == null) {
         val = JSONObject.NULL;
       } else if (val instanceof EmbeddedEntity) {
-        val = entityToJson((EmbeddedEntity) val);
+        val = entityToJson((EmbeddedEntity) val, subFields);
       } else if (val instanceof Collection) {
         JSONArray arr = new JSONArray();
         int i = 0;
         for (Object o : (Collection) val) {
           if (o instanceof EmbeddedEntity) {
-            o = entityToJson((EmbeddedEntity) o);
+            o = entityToJson((EmbeddedEntity) o, subFields);
+          } else if (subFields != null) {
+            continue;
           }
           try {
             arr.put(i++, o);
@@ -0,0 +1,119 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.datahub;
+
+import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.Index;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The DocWriter class buffers the document puts to one index, so
+ * that many writes cost few RPCs.  Puts of the same doc id coalesce,
+ * the last one winning, and the buffer is flushed in batches of up
+ * to Search.MAX_PUT_DOCS when it holds that many, or when flushed at
+ * the end of a request by Search.flushAll.
+ *
+ * Each thread, so each request, has its own buffer, which only it
+ * flushes.  So a put that fails is reported to the request that
+ * made it, which hasn't yet answered its client, instead of to
+ * whichever request happened to flush a shared buffer.  This also
+ * means puts are only coalesced within a request, e.g. a bulk load
+ * or batch, and never wait on other requests' puts to fill a batch.
+ *
+ * @author Pablo Mayrgundter <pmy@google.com>
+ */
+final class DocWriter {
+
+  final Index index;
+  /** Each thread's pending puts, by doc id. */
+  private final ThreadLocal<Map<String, Document>> buffers =
+      new ThreadLocal<Map<String, Document>>() {
+        @Override
+        protected Map<String, Document> initialValue() {
+          return new LinkedHashMap<String, Document>();
+        }
+      };
+
+  /** The number of puts to the index, for stats and tests. */
+  final AtomicInteger puts = new AtomicInteger();
+
+  DocWriter(Index index) {
+    this.index = index;
+  }
+
+  void add(Document doc) {
+    Map<String, Document> pending = buffers.get();
+    pending.put(doc.getId(), doc);
+    if (pending.size() >= Search.MAX_PUT_DOCS) {
+      flush();
+    }
+  }
+
+  void addAll(List<Document> docs) {
+    for (Document doc : docs) {
+      add(doc);
+    }
+  }
+
+  /**
+   * @return the doc with the given id buffered by this thread, or
+   * null if none.
+   */
+  Document get(String docId) {
+    return buffers.get().get(docId);
+  }
+
+  /**
+   * Drops any puts of the given ids buffered by this thread, e.g. as
+   * they are being deleted.
+   */
+  void remove(String ... docIds) {
+    Map<String, Document> pending = buffers.get();
+    for (String docId : docIds) {
+      pending.remove(docId);
+    }
+  }
+
+  /** @return the number of docs buffered by this thread. */
+  int size() {
+    return buffers.get().size();
+  }
+
+  /**
+   * Puts all docs buffered by this thread.  They are dropped from
+   * the buffer even if a put fails, as they may have been partially
+   * indexed, and the failure is this thread's to report.
+   *
+   * @throws com.google.appengine.api.search.PutException if a put
+   * fails.
+   */
+  void flush() {
+    Map<String, Document> pending = buffers.get();
+    if (pending.isEmpty()) {
+      return;
+    }
+    List<Document> docs = new ArrayList<Document>(pending.values());
+    pending.clear();
+    for (int i = 0; i < docs.size(); i += Search.MAX_PUT_DOCS) {
+      index.put(docs.subList(i, Math.min(i + Search.MAX_PUT_DOCS, docs.size())));
+      puts.incrementAndGet();
+    }
+  }
+}
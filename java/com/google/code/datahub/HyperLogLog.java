@@ -0,0 +1,73 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.datahub;
+
+/**
+ * The HyperLogLog class estimates the number of distinct values added
+ * to it in a fixed 2^P bytes, with a standard error of about
+ * 1.04 / sqrt(2^P), or 3% for P = 10.
+ *
+ * @see http://algo.inria.fr/flajolet/Publications/FlFuGaMe07.pdf
+ * @author Pablo Mayrgundter <pmy@google.com>
+ */
+final class HyperLogLog {
+
+  static final int P = 10;
+  static final int M = 1 << P;
+
+  private final byte [] registers = new byte[M];
+
+  synchronized void add(String value) {
+    long hash = hash(value);
+    int register = (int) (hash >>> (64 - P));
+    int rank = Math.min(Long.numberOfLeadingZeros(hash << P) + 1, 64 - P + 1);
+    if (rank > registers[register]) {
+      registers[register] = (byte) rank;
+    }
+  }
+
+  /** @return the estimated number of distinct values added. */
+  synchronized long estimate() {
+    double sum = 0;
+    int zeros = 0;
+    for (byte rank : registers) {
+      sum += 1.0 / (1L << rank);
+      if (rank == 0) {
+        zeros++;
+      }
+    }
+    double estimate = 0.7213 / (1 + 1.079 / M) * M * M / sum;
+    // Linear counting is more accurate for small cardinalities.
+    if (estimate <= 2.5 * M && zeros > 0) {
+      estimate = M * Math.log((double) M / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  /** FNV-1a, with the MurmurHash3 finalizer to spread its high bits. */
+  static long hash(String value) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      h ^= value.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb93fe53e2c5bL;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,207 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.datahub;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+import java.util.LinkedList;
+
+/**
+ * The KeyLayout class maps Paths to the datastore Keys under which
+ * they are stored, and back.
+ *
+ * A Path always carries its logical keys, which are chained from
+ * {@link Path#ROOT_KEY}.  The default {@link #ROOTED} layout stores
+ * entities under exactly those keys, which puts the whole tree in a
+ * single entity group and so caps the write rate of a deployment at
+ * that of one entity group.
+ *
+ * A layout with a positive groupDepth instead stores every path of
+ * length less than or equal to groupDepth under a parentless key,
+ * making it the root of its own entity group.  Deeper paths are
+ * chained below their ancestor at groupDepth as before.  Since a
+ * parentless key can't carry its ancestry, a group root below the top
+ * level is named by its full relative path, e.g. "a/b", which is
+ * unambiguous as path part names never contain {@link Path#SEP}.
+ *
+ * <pre>
+ *   path     ROOTED                       groupDepth = 1
+ *   /a       ROOT/path:a                  path:a
+ *   /a/b     ROOT/path:a/path:b           path:a/path:b
+ *   /a/b/c   ROOT/path:a/path:b/path:c    path:a/path:b/path:c
+ *
+ *   path     groupDepth = 2
+ *   /a       path:a
+ *   /a/b     path:"a/b"
+ *   /a/b/c   path:"a/b"/path:c
+ * </pre>
+ *
+ * @author Pablo Mayrgundter <pmy@google.com>
+ */
+final class KeyLayout {
+
+  /** The original layout, with all paths in the ROOT entity group. */
+  static final KeyLayout ROOTED = new KeyLayout(0);
+
+  /**
+   * The length of the longest path that is stored as an entity group
+   * root, or 0 if all paths are in the ROOT entity group.
+   */
+  final int groupDepth;
+
+  KeyLayout(int groupDepth) {
+    if (groupDepth < 0) {
+      throw new IllegalArgumentException("groupDepth must be non-negative: " + groupDepth);
+    }
+    this.groupDepth = groupDepth;
+  }
+
+  /**
+   * @return the layout for the given groupDepth, which may be null
+   * for the default ROOTED layout.
+   */
+  static KeyLayout forGroupDepth(String groupDepth) {
+    if (groupDepth == null) {
+      return ROOTED;
+    }
+    try {
+      int depth = Integer.parseInt(groupDepth.trim());
+      return depth == 0 ? ROOTED : new KeyLayout(depth);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("groupDepth must be an integer: " + groupDepth, e);
+    }
+  }
+
+  boolean isRooted() {
+    return groupDepth == 0;
+  }
+
+  /**
+   * @return true if a path of the given length is stored as the root
+   * of its own entity group.
+   */
+  boolean isGroupRoot(int pathLength) {
+    return pathLength > 0 && pathLength <= groupDepth;
+  }
+
+  /** @return the Key under which the given path is stored. */
+  Key toKey(Path path) {
+    if (isRooted() || path.getLength() == 0) {
+      return path.toKey();
+    }
+    Key key = null;
+    for (int i = 0; i < path.path.length; i++) {
+      Key part = path.path[i];
+      if (isGroupRoot(i + 1)) {
+        if (i == 0) {
+          key = part.getName() == null
+            ? KeyFactory.createKey(part.getKind(), part.getId())
+            : KeyFactory.createKey(part.getKind(), part.getName());
+        } else {
+          key = KeyFactory.createKey(part.getKind(), groupRootName(path, i));
+        }
+      } else {
+        key = part.getName() == null
+          ? KeyFactory.createKey(key, part.getKind(), part.getId())
+          : KeyFactory.createKey(key, part.getKind(), part.getName());
+      }
+    }
+    return key;
+  }
+
+  /**
+   * The reverse of {@link #toKey(Path)}.
+   *
+   * @throws IllegalArgumentException if the given key.isComplete() returns false.
+   */
+  Path fromKey(Key key) {
+    if (isRooted() || key.equals(Path.ROOT_KEY)) {
+      return Path.fromKey(key);
+    }
+    if (!key.isComplete()) {
+      throw new IllegalArgumentException("Key is incomplete, cannot create string representation.");
+    }
+    LinkedList<Key> chain = new LinkedList<Key>();
+    do {
+      chain.push(key);
+    } while ((key = key.getParent()) != null);
+
+    Key groupRoot = chain.pop();
+    Key [] rootParts;
+    if (groupRoot.getName() != null && groupRoot.getName().contains(Path.SEP)) {
+      rootParts = Path.resolveParts(groupRoot.getName().split(Path.SEP));
+    } else {
+      rootParts = new Key[]{ relink(groupRoot, Path.ROOT_KEY) };
+    }
+
+    Key [] keys = new Key[rootParts.length + chain.size()];
+    System.arraycopy(rootParts, 0, keys, 0, rootParts.length);
+    int i = rootParts.length;
+    for (Key k : chain) {
+      keys[i] = relink(k, keys[i - 1]);
+      i++;
+    }
+    return new Path(keys);
+  }
+
+  /**
+   * @return the storage key of the given key's logical parent, which
+   * for a group root is not its datastore parent.  The given key may
+   * be incomplete, as for an entity whose id is not yet allocated.
+   */
+  Key toParentKey(Key key) {
+    if (isRooted() || key.getParent() != null) {
+      return key.getParent();
+    }
+    String name = key.getName();
+    if (name == null || !name.contains(Path.SEP)) {
+      return Path.ROOT_KEY;
+    }
+    return toKey(fromKey(key).getParent());
+  }
+
+  /**
+   * The name of the group root key for the given path truncated to
+   * i + 1 parts, e.g. "a/b" or "a/kind(b)".
+   */
+  static String groupRootName(Path path, int i) {
+    StringBuilder name = new StringBuilder();
+    for (int j = 0; j <= i; j++) {
+      if (j > 0) {
+        name.append(Path.SEP);
+      }
+      Key part = path.path[j];
+      if (!part.getKind().equals(Path.PATH_KIND)) {
+        name.append(part.getKind()).append('(').append(Path.getNameOrId(part)).append(')');
+      } else {
+        name.append(Path.getNameOrId(part));
+      }
+    }
+    return name.toString();
+  }
+
+  /** @return a copy of the given key with the given parent. */
+  static Key relink(Key key, Key parent) {
+    return key.getName() == null
+      ? KeyFactory.createKey(parent, key.getKind(), key.getId())
+      : KeyFactory.createKey(parent, key.getKind(), key.getName());
+  }
+
+  @Override
+  public String toString() {
+    return isRooted() ? "KeyLayout(ROOTED)" : String.format("KeyLayout(groupDepth:%d)", groupDepth);
+  }
+}
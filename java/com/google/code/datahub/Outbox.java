@@ -0,0 +1,435 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.datahub;
+
+import com.google.appengine.api.datastore.ConcurrentModificationException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import static com.google.appengine.api.datastore.FetchOptions.Builder.*;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * The Outbox class updates a corpus' search indexes behind its
+ * datastore writes.  Each write also puts an outbox entry for the
+ * written path, as a child of the path's key and in the same
+ * transaction, so an entry exists for every write whose indexing is
+ * pending, even if the request then fails.  Entries are drained by
+ * tasks, which index the current state of their paths in batches and
+ * then delete them.
+ *
+ * <pre>
+ *   /a/b                     the object
+ *   /a/b/outbox:1            token: 817..., queued: 1334567890123,
+ *                            paths: [/, /a, /a/b]
+ *   /a/b/outboxLease:1       expires: 1334567950123
+ * </pre>
+ *
+ * A drain leases the paths it indexes, so that only one drain indexes
+ * a path at a time and its index writes can't be overtaken by an
+ * older state.  Each write gives its entry a new random token, and a
+ * drain deletes an entry only if the token is still the one it read.
+ * Otherwise the path was written again while it was being indexed,
+ * and the drain re-enqueues it.  Writes are then indexed eventually
+ * and none are lost.
+ *
+ * Drain tasks are enqueued after each write.  The task queue is not
+ * transactional here, so a lost task leaves its entry pending until
+ * the next sweep.
+ *
+ * @author Pablo Mayrgundter <pmy@google.com>
+ */
+class Outbox {
+
+  static final Logger logger = Logger.getLogger(Outbox.class.getName());
+
+  static final String OUTBOX_KIND = "outbox";
+  static final String LEASE_KIND = "outboxLease";
+  static final String PROP_TOKEN = "token";
+  static final String PROP_QUEUED = "queued";
+  static final String PROP_EXPIRES = "expires";
+  /** The path and its ancestors, by which corpora find their entries. */
+  static final String PROP_PATHS = "paths";
+
+  /** The number of paths indexed per drain task. */
+  static final int DRAIN_BATCH_SIZE = 100;
+
+  /** How long a drain holds its paths, after which they may be drained again. */
+  static final long LEASE_MS = 60 * 1000;
+
+  /** Bounds the count of pending entries reported by getStats. */
+  static final int MAX_STATS_COUNT = 1000;
+
+  /** How many times a transaction is tried on contention. */
+  static final int TXN_RETRIES = 5;
+
+  static final Random random = new Random();
+
+  final Datastore datastore;
+  final Search search;
+  final DatastoreService service;
+  final Tasks.Processor drainer;
+
+  Outbox(Datastore datastore, Search search) {
+    this.datastore = datastore;
+    this.search = search;
+    service = datastore.service;
+    // Processors are registered by name, so each corpus needs its own.
+    drainer = new Tasks.Processor("drainOutbox:" + search.corpusPath) {
+        void process(String [] pathKeys) {
+          drain(pathKeys);
+        }
+      };
+    // Drain tasks may reach an instance which hasn't served a write.
+    Tasks.register(drainer);
+  }
+
+  static Key entryKey(Key pathKey) {
+    return KeyFactory.createKey(pathKey, OUTBOX_KIND, 1);
+  }
+
+  static Key leaseKey(Key pathKey) {
+    return KeyFactory.createKey(pathKey, LEASE_KIND, 1);
+  }
+
+  /** @return the root key of the entity group of the given key. */
+  static Key groupOf(Key key) {
+    while (key.getParent() != null) {
+      key = key.getParent();
+    }
+    return key;
+  }
+
+  static <K, V> List<V> listFor(Map<K, List<V>> map, K key) {
+    List<V> list = map.get(key);
+    if (list == null) {
+      map.put(key, list = new ArrayList<V>());
+    }
+    return list;
+  }
+
+  static Entity newEntry(Key pathKey, KeyLayout layout) {
+    Entity entry = new Entity(entryKey(pathKey));
+    entry.setUnindexedProperty(PROP_TOKEN, random.nextLong());
+    entry.setProperty(PROP_QUEUED, System.currentTimeMillis());
+    List<String> paths = new ArrayList<String>();
+    for (Path path : layout.fromKey(pathKey).getAncestors()) {
+      paths.add(path.toString());
+    }
+    entry.setProperty(PROP_PATHS, paths);
+    return entry;
+  }
+
+  /** @return a query for the entries of the given corpus' paths. */
+  static Query corpusQuery(Path corpusPath) {
+    return new Query(OUTBOX_KIND)
+      .setFilter(new Query.FilterPredicate(PROP_PATHS, Query.FilterOperator.EQUAL,
+                                           corpusPath.toString()));
+  }
+
+  /**
+   * Puts the given entities and deletes the given keys along with an
+   * outbox entry for each path among them, in one transaction per
+   * entity group.
+   * Entities with incomplete keys have their keys completed, as by
+   * DatastoreService.put.
+   */
+  static void write(DatastoreService service, KeyLayout layout,
+                    List<Entity> puts, List<Key> deletes) {
+    Map<Object, List<Entity>> putsByGroup = new LinkedHashMap<Object, List<Entity>>();
+    for (Entity entity : puts) {
+      Key key = entity.getKey();
+      // An entity without an id or parent is the root of a new group.
+      listFor(putsByGroup, key.isComplete() || key.getParent() != null
+              ? groupOf(key) : entity).add(entity);
+    }
+    Map<Object, List<Key>> deletesByGroup = new LinkedHashMap<Object, List<Key>>();
+    for (Key key : deletes) {
+      listFor(deletesByGroup, groupOf(key)).add(key);
+    }
+    Set<Object> groups = new LinkedHashSet<Object>(putsByGroup.keySet());
+    groups.addAll(deletesByGroup.keySet());
+    for (Object group : groups) {
+      List<Entity> groupPuts = putsByGroup.get(group);
+      List<Key> groupDeletes = deletesByGroup.get(group);
+      for (int tries = 1; ; tries++) {
+        try {
+          writeGroup(service, layout, groupPuts, groupDeletes);
+          break;
+        } catch (ConcurrentModificationException e) {
+          if (tries == TXN_RETRIES) {
+            throw e;
+          }
+          logger.fine("Retrying outbox write");
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes one entity group's share of a write, as above.  Either
+   * list may be null.
+   */
+  static void writeGroup(DatastoreService service, KeyLayout layout,
+                         List<Entity> groupPuts, List<Key> groupDeletes) {
+    List<Entity> entries = new ArrayList<Entity>();
+    Transaction txn = service.beginTransaction();
+    try {
+      if (groupPuts != null) {
+        for (Key key : service.put(txn, groupPuts)) {
+          if (Path.PATH_KIND.equals(key.getKind())) {
+            entries.add(newEntry(key, layout));
+          }
+        }
+      }
+      if (groupDeletes != null) {
+        service.delete(txn, groupDeletes);
+        for (Key key : groupDeletes) {
+          if (Path.PATH_KIND.equals(key.getKind())) {
+            entries.add(newEntry(key, layout));
+          }
+        }
+      }
+      service.put(txn, entries);
+      txn.commit();
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
+  }
+
+  /**
+   * Enqueues the draining of the given paths.  The entries are
+   * durable, so failing to enqueue only delays indexing until the
+   * next sweep.
+   */
+  void enqueueDrain(Path ... paths) {
+    List<String> pathKeys = new ArrayList<String>(paths.length);
+    for (Path path : paths) {
+      pathKeys.add(KeyFactory.keyToString(path.toKey(datastore.layout)));
+    }
+    try {
+      Tasks.getInstance().enqueueProcess(pathKeys.iterator(), DRAIN_BATCH_SIZE, drainer);
+    } catch (RuntimeException e) {
+      logger.warning(String.format("Leaving %d paths for the next sweep: %s", paths.length, e));
+    }
+  }
+
+  /**
+   * Enqueues the draining of every pending entry of this corpus, for
+   * those whose drain task was lost.
+   */
+  void sweep() {
+    Query q = corpusQuery(search.corpusPath).setKeysOnly();
+    Iterator<String> allPathKeysItr =
+        new Tasks.ToStringIterator<Entity>(service.prepare(q).asIterable().iterator()) {
+      public String next() {
+        return KeyFactory.keyToString(innerItr.next().getKey().getParent());
+      }
+    };
+    Tasks.getInstance().enqueueProcess(allPathKeysItr, DRAIN_BATCH_SIZE, drainer);
+  }
+
+  /** Drains the entries of the given path keys, one group at a time. */
+  void drain(String [] pathKeyStrs) {
+    Map<Key, List<Key>> byGroup = new LinkedHashMap<Key, List<Key>>();
+    for (String pathKeyStr : pathKeyStrs) {
+      Key pathKey = KeyFactory.stringToKey(pathKeyStr);
+      listFor(byGroup, groupOf(pathKey)).add(pathKey);
+    }
+    List<Path> missed = new ArrayList<Path>();
+    for (List<Key> pathKeys : byGroup.values()) {
+      drainGroup(pathKeys, missed);
+    }
+    if (!missed.isEmpty()) {
+      enqueueDrain(missed.toArray(new Path[missed.size()]));
+    }
+  }
+
+  /**
+   * Leases and indexes the pending paths of one entity group, then
+   * deletes their entries unless they were written again meanwhile,
+   * in which case they are added to missed.
+   */
+  void drainGroup(List<Key> pathKeys, List<Path> missed) {
+    Map<Key, Object> claimed = new LinkedHashMap<Key, Object>();
+    Map<Path, JSONObject> updates = new LinkedHashMap<Path, JSONObject>();
+    List<Path> deletes = new ArrayList<Path>();
+    for (int tries = 1; ; tries++) {
+      claimed.clear();
+      updates.clear();
+      deletes.clear();
+      try {
+        lease(pathKeys, claimed, updates, deletes);
+        break;
+      } catch (ConcurrentModificationException e) {
+        if (tries == TXN_RETRIES) {
+          throw e;
+        }
+        logger.fine("Retrying outbox lease");
+      }
+    }
+    if (claimed.isEmpty()) {
+      return;
+    }
+    boolean indexed = false;
+    try {
+      // Search doesn't check users; the datastore write was checked.
+      if (!updates.isEmpty()) {
+        search.updateAll(updates, null);
+      }
+      if (!deletes.isEmpty()) {
+        search.delete(null, deletes.toArray(new Path[deletes.size()]));
+      }
+      indexed = true;
+    } finally {
+      for (int tries = 1; ; tries++) {
+        try {
+          release(claimed, indexed, missed);
+          break;
+        } catch (ConcurrentModificationException e) {
+          if (tries == TXN_RETRIES) {
+            // The leases expire and the entries are left for the next sweep.
+            throw e;
+          }
+          logger.fine("Retrying outbox release");
+        }
+      }
+    }
+  }
+
+  /**
+   * Leases the given pending paths of one entity group which aren't
+   * leased already, in one transaction.  Their entries' tokens are
+   * added to claimed, and their current states to updates, or to
+   * deletes if gone.
+   */
+  void lease(List<Key> pathKeys, Map<Key, Object> claimed,
+             Map<Path, JSONObject> updates, List<Path> deletes) {
+    long now = System.currentTimeMillis();
+    Transaction txn = service.beginTransaction();
+    try {
+      List<Key> keys = new ArrayList<Key>(3 * pathKeys.size());
+      for (Key pathKey : pathKeys) {
+        keys.add(pathKey);
+        keys.add(entryKey(pathKey));
+        keys.add(leaseKey(pathKey));
+      }
+      Map<Key, Entity> got = service.get(txn, keys);
+      List<Entity> leases = new ArrayList<Entity>();
+      for (Key pathKey : pathKeys) {
+        Entity entry = got.get(entryKey(pathKey));
+        Entity lease = got.get(leaseKey(pathKey));
+        Path path = Path.fromKey(pathKey, datastore.layout);
+        if (entry == null || claimed.containsKey(pathKey)
+            || !search.corpusPath.isParentOf(path)) {
+          continue;
+        }
+        if (lease != null && ((Number) lease.getProperty(PROP_EXPIRES)).longValue() > now) {
+          // The drain holding it will see this entry's token changed.
+          continue;
+        }
+        lease = new Entity(leaseKey(pathKey));
+        lease.setUnindexedProperty(PROP_EXPIRES, now + LEASE_MS);
+        leases.add(lease);
+        claimed.put(pathKey, entry.getProperty(PROP_TOKEN));
+        Entity obj = got.get(pathKey);
+        if (obj == null) {
+          deletes.add(path);
+        } else {
+          updates.put(path, Datastore.entityToJson(obj));
+        }
+      }
+      service.put(txn, leases);
+      txn.commit();
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
+  }
+
+  /**
+   * Drops the leases of the claimed paths and, if they were indexed,
+   * the entries whose tokens are unchanged.  The others are added to
+   * missed once committed.
+   */
+  void release(Map<Key, Object> claimed, boolean indexed, List<Path> missed) {
+    List<Path> changed = new ArrayList<Path>();
+    Transaction txn = service.beginTransaction();
+    try {
+      List<Key> entryKeys = new ArrayList<Key>(claimed.size());
+      List<Key> drop = new ArrayList<Key>(2 * claimed.size());
+      for (Key pathKey : claimed.keySet()) {
+        entryKeys.add(entryKey(pathKey));
+        drop.add(leaseKey(pathKey));
+      }
+      Map<Key, Entity> entries = indexed
+        ? service.get(txn, entryKeys) : Collections.<Key, Entity>emptyMap();
+      for (Map.Entry<Key, Object> claim : claimed.entrySet()) {
+        Entity entry = entries.get(entryKey(claim.getKey()));
+        if (entry == null) {
+          continue;
+        }
+        if (claim.getValue().equals(entry.getProperty(PROP_TOKEN))) {
+          drop.add(entry.getKey());
+        } else {
+          changed.add(Path.fromKey(claim.getKey(), datastore.layout));
+        }
+      }
+      service.delete(txn, drop);
+      txn.commit();
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
+    missed.addAll(changed);
+  }
+
+  /**
+   * @return the number of this corpus' pending entries, up to
+   * MAX_STATS_COUNT, and the age in ms of the oldest.
+   */
+  JSONObject getStats() {
+    int pending = service.prepare(corpusQuery(search.corpusPath).setKeysOnly())
+      .countEntities(withLimit(MAX_STATS_COUNT));
+    List<Entity> oldest = service.prepare(corpusQuery(search.corpusPath).addSort(PROP_QUEUED))
+      .asList(withLimit(1));
+    long lagMs = oldest.isEmpty() ? 0
+      : System.currentTimeMillis()
+        - ((Number) oldest.get(0).getProperty(PROP_QUEUED)).longValue();
+    JSONObject stats = new JSONObject();
+    Util.jsonPut(stats, "pending", pending);
+    Util.jsonPut(stats, "lagMs", lagMs);
+    return stats;
+  }
+}
@@ -17,12 +17,12 @@ package com.google.code.datahub;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -33,6 +33,12 @@ import static com.google.code.datahub.Check.*;
 /**
  * Minimal wrapper for URI paths, e.g. "/a/b/c".
  *
+ * Paths are immutable, so their string and doc id forms, parent and
+ * chain of ancestors are computed once, on first use, and paths
+ * parsed from request URIs are interned in a bounded cache shared by
+ * all requests.  As a path's ancestors are its parent's, a chain of
+ * paths shares their cached forms.
+ *
  * @author Pablo Mayrgundter <pmy@google.com>
  */
 public class Path {
@@ -46,8 +52,22 @@ public class Path {
   static final Pattern REGEX_SPECIAL = Pattern.compile("__(.+)__");
   static final Pattern REGEX_SERIAL = Pattern.compile("\\d+");
 
+  /** Bounds the cache of paths parsed by fromRequest, which is cleared when full. */
+  static final int MAX_INTERNED_PATHS = 10000;
+
+  static final ConcurrentMap<String, Path> interned = new ConcurrentHashMap<String, Path>();
+
   final Key [] path;
 
+  // Computed on first use.  Racing threads compute equal strings, so
+  // these need no synchronization.
+  private String str = null;
+  private String docId = null;
+  private String pathTokens = null;
+  private Path parent = null;
+  // Volatile as the array's elements aren't otherwise safely published.
+  private volatile Path [] ancestors = null;
+
   /** Root constructor. */
   private Path() {
     path = new Key[0];
@@ -76,14 +96,18 @@ public class Path {
    */
   @Override
   public String toString() {
-    if (path.length == 0) {
-      return SEP;
-    }
-    String s = "";
-    for (Key key : path) {
-      s += SEP + getNameOrId(key);
+    if (str == null) {
+      if (path.length == 0) {
+        str = SEP;
+      } else {
+        StringBuilder sb = new StringBuilder();
+        for (Key key : path) {
+          sb.append(SEP).append(getNameOrId(key));
+        }
+        str = sb.toString();
+      }
     }
-    return s;
+    return str;
   }
 
   public int getLength() {
@@ -111,8 +135,70 @@ public class Path {
     if (path.length <= 1) {
       return ROOT;
     }
-    Key [] sub = new Key[path.length - 1];
-    System.arraycopy(path, 0, sub, 0, sub.length);
+    if (parent == null) {
+      Key [] sub = new Key[path.length - 1];
+      System.arraycopy(path, 0, sub, 0, sub.length);
+      parent = new Path(sub);
+    }
+    return parent;
+  }
+
+  /**
+   * @return this path and each of its ancestors, indexed by path
+   * length so that ROOT is first and this path last.  The array is
+   * shared, so must not be modified.
+   */
+  Path [] getAncestors() {
+    Path [] paths = ancestors;
+    if (paths == null) {
+      paths = new Path[path.length + 1];
+      Path cur = this;
+      for (int len = path.length; len >= 0; len--) {
+        paths[len] = cur;
+        cur = cur.getParent();
+      }
+      ancestors = paths;
+    }
+    return paths;
+  }
+
+  /**
+   * @return the doc ids of this path and each of its ancestors,
+   * deepest first, separated by spaces, so that a search for a
+   * path's doc id matches its descendants.
+   */
+  String getPathTokens() {
+    if (pathTokens == null) {
+      Path [] paths = getAncestors();
+      StringBuilder sb = new StringBuilder();
+      for (int len = paths.length - 1; len >= 0; len--) {
+        if (sb.length() > 0) {
+          sb.append(' ');
+        }
+        sb.append(paths[len].toDocId());
+      }
+      pathTokens = sb.toString();
+    }
+    return pathTokens;
+  }
+
+  /**
+   * @return the path of the child of this path with the given name,
+   * which is interpreted as in {@link #fromString}.
+   */
+  Path getChild(String name) {
+    return append(resolvePart(name, toKey()));
+  }
+
+  /** @return the path of the child of this path with the given id. */
+  Path getChild(long id) {
+    return append(KeyFactory.createKey(toKey(), PATH_KIND, id));
+  }
+
+  private Path append(Key child) {
+    Key [] sub = new Key[path.length + 1];
+    System.arraycopy(path, 0, sub, 0, path.length);
+    sub[path.length] = child;
     return new Path(sub);
   }
 
@@ -121,11 +207,8 @@ public class Path {
     if (path.length >= other.path.length) {
       return false;
     }
-    boolean eq = true;
-    for (int i = 0; i < path.length; i++) {
-      eq &= path[i].equals(other.path[i]);
-    }
-    return eq;
+    // A key's equality covers its ancestors, so only the last need be compared.
+    return path.length == 0 || path[path.length - 1].equals(other.path[path.length - 1]);
   }
 
   public boolean isSpecial() {
@@ -153,22 +236,14 @@ public class Path {
    * occurences of the other replacement patterns in the original
    * string.  This is followed by replacement of the other special
    * characters.
+   *
+   * Both steps are done in one pass by encodeDocId.
    */
   String toDocId() {
-    String id = toString();
-    if (id.startsWith(SEP)) {
-      id = ROOT_NAME + id.substring(SEP.length());
-    }
-    try {
-      id = URLEncoder.encode(id, ENC_CHARSET);
-    } catch (UnsupportedEncodingException e) {
-      throw new IllegalStateException("UTF-8 string encoding not supported.", e);
+    if (docId == null) {
+      docId = encodeDocId(toString());
     }
-    for (int i = 0; i < REPL_PAIRS.length; i++) {
-      String [] repl = REPL_PAIRS[i];
-      id = id.replaceAll(repl[0], repl[1]);
-    }
-    return id;
+    return docId;
   }
 
   /**
@@ -187,6 +262,15 @@ public class Path {
     return path[path.length - 1];
   }
 
+  /**
+   * @return the Key under which this path is stored in the given
+   * layout.
+   * @see KeyLayout
+   */
+  Key toKey(KeyLayout layout) {
+    return layout.toKey(this);
+  }
+
   /**
    * Converts the given key's inheritance hierarchy to an equivalent
    * Path.
@@ -215,6 +299,15 @@ public class Path {
     return new Path(path.toArray(new Key[path.size()]));
   }
 
+  /**
+   * The reverse of {@link #toKey(KeyLayout)}.
+   *
+   * @throws IllegalArgumentException if the given key.isComplete() returns false.
+   */
+  static final Path fromKey(Key key, KeyLayout layout) {
+    return layout.fromKey(key);
+  }
+
   /**
    * Splits the given {@code pathStr} on SEP and stores the parts
    * as the path.
@@ -249,7 +342,23 @@ public class Path {
     String uri = req.getRequestURI();
     String srvPath = req.getServletPath();
     String relPath = uri.substring(srvPath.length());
-    return fromString(relPath);
+    return intern(relPath);
+  }
+
+  /**
+   * @return the path for the given string as by fromString, shared
+   * with earlier callers for the same string.
+   */
+  static Path intern(String pathStr) {
+    Path path = interned.get(pathStr);
+    if (path == null) {
+      path = fromString(pathStr);
+      if (interned.size() >= MAX_INTERNED_PATHS) {
+        interned.clear();
+      }
+      interned.put(pathStr, path);
+    }
+    return path;
   }
 
   static final Pattern PART_PATTERN = Pattern.compile("(\\w+)(?:[(](\\w+)[)])?");
@@ -261,17 +370,23 @@ public class Path {
     if (parent == null) {
       throw new NullPointerException("Given null parent, use ROOT singleton instead.");
     }
-    Matcher m = PART_PATTERN.matcher(part);
-    if (!m.find()) {
-      throw new IllegalArgumentException(String.format("Path part(%s) must match: %s",
-                                                       part, PART_PATTERN));
-    }
     String kind = PATH_KIND, name;
-    if (m.group(2) == null) {
-      name = m.group(1);
+    int end = wordEnd(part, 0);
+    if (end == part.length() && end > 0) {
+      // The common case of a plain name, matched without the regex.
+      name = part;
     } else {
-      kind = m.group(1);
-      name = m.group(2);
+      Matcher m = PART_PATTERN.matcher(part);
+      if (!m.find()) {
+        throw new IllegalArgumentException(String.format("Path part(%s) must match: %s",
+                                                         part, PART_PATTERN));
+      }
+      if (m.group(2) == null) {
+        name = m.group(1);
+      } else {
+        kind = m.group(1);
+        name = m.group(2);
+      }
     }
     long id = -1;
     if (name.startsWith("__") && name.endsWith("__")) {
@@ -282,6 +397,18 @@ public class Path {
     return id == -1 ? KeyFactory.createKey(parent, kind, name) : KeyFactory.createKey(parent, kind, id);
   }
 
+  /** @return the index after the run of word chars, as PART_PATTERN's \w, at i. */
+  static int wordEnd(String s, int i) {
+    while (i < s.length()) {
+      char c = s.charAt(i);
+      if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_')) {
+        break;
+      }
+      i++;
+    }
+    return i;
+  }
+
   static Key[] resolveParts(String [] parts) {
     Key [] keys = new Key[parts.length];
     Key parent = ROOT_KEY;
@@ -317,25 +444,108 @@ public class Path {
 
   static final String ENC_CHARSET = "UTF-8";
 
-  // TODO(pmy): en/de-coding could be single-pass.
+  static final Charset UTF8 = Charset.forName(ENC_CHARSET);
+
+  static final char [] HEX = "0123456789ABCDEF".toCharArray();
+
+  /**
+   * Encodes the given path string as described at toDocId, as
+   * URLEncoder and then REPL_PAIRS would, but in one pass.
+   */
+  static String encodeDocId(String pathStr) {
+    int start = pathStr.startsWith(SEP) ? SEP.length() : 0;
+    StringBuilder sb = new StringBuilder(ROOT_NAME.length() + 2 * pathStr.length());
+    if (start > 0) {
+      sb.append(ROOT_NAME);
+    }
+    for (int i = start; i < pathStr.length(); i++) {
+      char c = pathStr.charAt(i);
+      if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9') {
+        sb.append(c);
+      } else if (c == '_') {
+        sb.append("_U");
+      } else if (c == '.') {
+        sb.append("_D");
+      } else if (c == '-') {
+        sb.append("_M");
+      } else if (c == '*') {
+        sb.append("_S");
+      } else if (c == ' ') {
+        // URLEncoder's '+'.
+        sb.append("_L");
+      } else if (c < 0x80) {
+        appendByte(sb, c);
+      } else {
+        int end = i + 1;
+        if (Character.isHighSurrogate(c) && end < pathStr.length()
+            && Character.isLowSurrogate(pathStr.charAt(end))) {
+          end++;
+        }
+        for (byte b : pathStr.substring(i, end).getBytes(UTF8)) {
+          appendByte(sb, b);
+        }
+        i = end - 1;
+      }
+    }
+    return sb.toString();
+  }
+
+  /** Appends the given byte as URLEncoder's %XX, with '%' as "_P". */
+  static void appendByte(StringBuilder sb, int b) {
+    sb.append("_P").append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+  }
 
   /**
    * The reverse of the encoding process described in
-   * {@link toDocId()}.
+   * {@link toDocId()}, in one pass.
+   *
+   * @throws IllegalArgumentException if the given id is not a valid
+   * encoding.
    */
   static Path fromDocId(String id) {
-    for (int i = REPL_PAIRS.length - 1; i >= 0; i--) {
-      String [] repl = REPL_PAIRS[i];
-      id = id.replaceAll(repl[1], repl[0]);
-    }
-    try {
-      id = URLDecoder.decode(id, ENC_CHARSET);
-    } catch (UnsupportedEncodingException e) {
-      throw new IllegalStateException("UTF-8 string decoding not supported.", e);
+    byte [] bytes = new byte[id.length()];
+    int n = 0;
+    for (int i = 0; i < id.length(); i++) {
+      char c = id.charAt(i);
+      if (c == '+') {
+        bytes[n++] = ' ';
+        continue;
+      } else if (c != '_') {
+        if (c >= 0x80) {
+          throw new IllegalArgumentException("Bad doc id: " + id);
+        }
+        bytes[n++] = (byte) c;
+        continue;
+      }
+      if (++i >= id.length()) {
+        throw new IllegalArgumentException("Bad doc id: " + id);
+      }
+      switch (id.charAt(i)) {
+        case 'U': bytes[n++] = '_'; break;
+        case 'D': bytes[n++] = '.'; break;
+        case 'M': bytes[n++] = '-'; break;
+        case 'S': bytes[n++] = '*'; break;
+        case 'L': bytes[n++] = ' '; break;
+        case 'P':
+          if (i + 2 >= id.length()) {
+            throw new IllegalArgumentException("Bad doc id: " + id);
+          }
+          int hi = Character.digit(id.charAt(i + 1), 16);
+          int lo = Character.digit(id.charAt(i + 2), 16);
+          if (hi < 0 || lo < 0) {
+            throw new IllegalArgumentException("Bad doc id: " + id);
+          }
+          bytes[n++] = (byte) (hi << 4 | lo);
+          i += 2;
+          break;
+        default:
+          throw new IllegalArgumentException("Bad doc id: " + id);
+      }
     }
-    if (id.startsWith(ROOT_NAME)) {
-      id = SEP + id.substring(ROOT_NAME.length());
+    String pathStr = new String(bytes, 0, n, UTF8);
+    if (pathStr.startsWith(ROOT_NAME)) {
+      pathStr = SEP + pathStr.substring(ROOT_NAME.length());
     }
-    return Path.fromString(id);
+    return Path.fromString(pathStr);
   }
 }
@@ -0,0 +1,178 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.datahub;
+
+import com.google.appengine.api.datastore.Key;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The PathTrie class maps paths to values in a tree of their parts,
+ * so that the values registered at a path's prefixes are found in one
+ * walk down from the root, in time linear in the path's length and
+ * independent of how many paths are registered.
+ *
+ * Each part is keyed by its kind and name or id only, as its Key's
+ * hash and equality would cost the length of its ancestry again.
+ *
+ * Instances are safe for concurrent use.  Nodes are not pruned when
+ * their value is removed, which suits registries of few, long-lived
+ * paths.
+ *
+ * @author Pablo Mayrgundter <pmy@google.com>
+ */
+final class PathTrie<V> {
+
+  static final class Node<V> {
+    final ConcurrentMap<Object, Node<V>> children = new ConcurrentHashMap<Object, Node<V>>();
+    volatile V value = null;
+  }
+
+  private final Node<V> root = new Node<V>();
+  private final AtomicInteger size = new AtomicInteger();
+
+  /**
+   * Maps the given path to the given value.
+   *
+   * @return the value it replaced, or null if none.
+   * @throws NullPointerException if the given value is null.
+   */
+  V put(Path path, V value) {
+    if (value == null) {
+      throw new NullPointerException("Value may not be null, use remove instead.");
+    }
+    Node<V> node = root;
+    for (Key key : path.path) {
+      Object part = part(key);
+      Node<V> child = node.children.get(part);
+      if (child == null) {
+        node.children.putIfAbsent(part, new Node<V>());
+        child = node.children.get(part);
+      }
+      node = child;
+    }
+    synchronized (node) {
+      V old = node.value;
+      node.value = value;
+      if (old == null) {
+        size.incrementAndGet();
+      }
+      return old;
+    }
+  }
+
+  /** @return the value of the given path, or null if none. */
+  V get(Path path) {
+    Node<V> node = find(path);
+    return node == null ? null : node.value;
+  }
+
+  /** @return the removed value of the given path, or null if none. */
+  V remove(Path path) {
+    Node<V> node = find(path);
+    if (node == null) {
+      return null;
+    }
+    synchronized (node) {
+      V old = node.value;
+      node.value = null;
+      if (old != null) {
+        size.decrementAndGet();
+      }
+      return old;
+    }
+  }
+
+  /**
+   * @return the value of the deepest of the given path and its
+   * ancestors that has one, or null if none do.
+   */
+  V longestPrefix(Path path) {
+    Node<V> node = root;
+    V found = node.value;
+    for (Key key : path.path) {
+      node = node.children.get(part(key));
+      if (node == null) {
+        break;
+      }
+      V value = node.value;
+      if (value != null) {
+        found = value;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * @return the values of the given path and its ancestors, root
+   * first.
+   */
+  List<V> ancestors(Path path) {
+    List<V> found = new ArrayList<V>();
+    Node<V> node = root;
+    for (int i = 0; node != null; i++) {
+      V value = node.value;
+      if (value != null) {
+        found.add(value);
+      }
+      node = i < path.path.length ? node.children.get(part(path.path[i])) : null;
+    }
+    return found;
+  }
+
+  /** @return all of the values, each before those of its descendants. */
+  List<V> values() {
+    List<V> found = new ArrayList<V>();
+    LinkedList<Node<V>> stack = new LinkedList<Node<V>>();
+    stack.push(root);
+    while (!stack.isEmpty()) {
+      Node<V> node = stack.pop();
+      V value = node.value;
+      if (value != null) {
+        found.add(value);
+      }
+      for (Node<V> child : node.children.values()) {
+        stack.push(child);
+      }
+    }
+    return found;
+  }
+
+  int size() {
+    return size.get();
+  }
+
+  // Helpers.
+
+  private Node<V> find(Path path) {
+    Node<V> node = root;
+    for (int i = 0; node != null && i < path.path.length; i++) {
+      node = node.children.get(part(path.path[i]));
+    }
+    return node;
+  }
+
+  /** @return the given key's kind and name or id, without its ancestry. */
+  static Object part(Key key) {
+    Object nameOrId = key.getName() == null ? (Object) key.getId() : key.getName();
+    return Path.PATH_KIND.equals(key.getKind()) ? nameOrId : Arrays.asList(key.getKind(), nameOrId);
+  }
+}
@@ -0,0 +1,389 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.datahub;
+
+import com.google.appengine.api.datastore.Query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The QueryCompiler class compiles the field queries accepted by
+ * Search into datastore filters, so that Datastore.search can answer
+ * them from the built-in property indexes.  The grammar is:
+ *
+ * <pre>
+ *   query      := disjunction
+ *   disjunction := conjunction ("OR" conjunction)*
+ *   conjunction := unary (["AND"] unary)*
+ *   unary      := "NOT" unary | "(" disjunction ")" | field op value
+ *   op         := ":" | "=" | "!=" | "<" | "<=" | ">" | ">="
+ *   value      := "quoted string" | number | true | false | word
+ * </pre>
+ *
+ * where ":" is equality and a nested field is named by its field
+ * path, e.g. author/name.  NOT is pushed down to the comparisons,
+ * inverting them.  These differ from Search's NOT: the datastore never
+ * matches an entity on a property it lacks, so NOT tag:a skips objects
+ * without a tag, and matches a multi-valued tag if any of its values
+ * isn't a.  Plans record these negated properties, so that the
+ * QueryPlanner leaves such queries to Search.
+ *
+ * Queries the datastore can't answer from its indexes, e.g. bare
+ * keywords, which need full-text search, or inequalities on more than
+ * one field, are rejected instead of being run as a scan.
+ *
+ * A number is compared with both the integers and the floating point
+ * numbers stored, which the datastore orders as separate types, so
+ * that e.g. n > 2 matches both 3 and 2.5, as in Search.
+ *
+ * Plans are cached by the query string, normalized by collapsing
+ * whitespace, and are immutable, so may be shared by all requests.
+ *
+ * @author Pablo Mayrgundter <pmy@google.com>
+ */
+final class QueryCompiler {
+
+  /** Bounds the cache, which is cleared when full. */
+  static final int MAX_CACHED_PLANS = 1000;
+
+  /**
+   * The most queries the datastore will run for one query, as each !=
+   * is run as two and each OR as one per disjunct.
+   */
+  static final int MAX_SUBQUERIES = 30;
+
+  static final Pattern NUMBER = Pattern.compile("-?[0-9]+(\\.[0-9]+)?([eE][-+]?[0-9]+)?");
+
+  static final Pattern TOKEN = Pattern.compile(
+      "\\s*(\"(?:[^\"\\\\]|\\\\.)*\"|[():]|!=|<=|>=|[=<>]|[^\\s():=<>!\"]+)");
+
+  /** A compiled query. */
+  static final class Plan {
+    /** The filter, or null to match everything. */
+    final Query.Filter filter;
+    /** The one property with inequalities, or null if none. */
+    final String inequalityProperty;
+    /** All of the properties compared, and those only by equality. */
+    final Set<String> properties, equalityProperties;
+    /** The properties compared by != or under NOT. */
+    final Set<String> negatedProperties;
+
+    Plan(Query.Filter filter, String inequalityProperty, Set<String> properties,
+         Set<String> equalityProperties, Set<String> negatedProperties) {
+      this.filter = filter;
+      this.inequalityProperty = inequalityProperty;
+      this.properties = Collections.unmodifiableSet(properties);
+      this.equalityProperties = Collections.unmodifiableSet(equalityProperties);
+      this.negatedProperties = Collections.unmodifiableSet(negatedProperties);
+    }
+  }
+
+  static final Plan MATCH_ALL =
+    new Plan(null, null, Collections.<String>emptySet(), Collections.<String>emptySet(),
+             Collections.<String>emptySet());
+
+  static final ConcurrentMap<String, Plan> cache = new ConcurrentHashMap<String, Plan>();
+
+  /**
+   * @return the plan for the given query, compiling and caching it if
+   * not already cached.  A null or blank query matches everything.
+   * @throws IllegalArgumentException if the query can't be parsed or
+   * can't be answered from the datastore's indexes.
+   */
+  static Plan compile(String query) {
+    String normalized = normalize(query);
+    if (normalized.length() == 0) {
+      return MATCH_ALL;
+    }
+    Plan plan = cache.get(normalized);
+    if (plan == null) {
+      plan = new QueryCompiler(normalized).compile();
+      if (cache.size() >= MAX_CACHED_PLANS) {
+        cache.clear();
+      }
+      cache.put(normalized, plan);
+    }
+    return plan;
+  }
+
+  /** @return the query trimmed and with its runs of whitespace as one space. */
+  static String normalize(String query) {
+    return query == null ? "" : query.trim().replaceAll("\\s+", " ");
+  }
+
+  final String query;
+  final List<String> tokens = new ArrayList<String>();
+  final Set<String> inequalityProperties = new LinkedHashSet<String>();
+  final Set<String> properties = new LinkedHashSet<String>();
+  final Set<String> negatedProperties = new LinkedHashSet<String>();
+  int pos = 0;
+
+  QueryCompiler(String query) {
+    this.query = query;
+    Matcher m = TOKEN.matcher(query);
+    int end = 0;
+    while (end < query.length()) {
+      if (!m.find(end) || m.start() != end) {
+        throw new IllegalArgumentException("Bad query at " + end + ": " + query);
+      }
+      tokens.add(m.group(1));
+      end = m.end();
+    }
+  }
+
+  Plan compile() {
+    Query.Filter filter = parseDisjunction(false);
+    if (pos < tokens.size()) {
+      throw badQuery("unexpected " + tokens.get(pos));
+    }
+    if (inequalityProperties.size() > 1) {
+      throw badQuery("inequalities on more than one field " + inequalityProperties);
+    }
+    if (countSubqueries(filter) > MAX_SUBQUERIES) {
+      throw badQuery("more than " + MAX_SUBQUERIES + " subqueries");
+    }
+    Set<String> equalityProperties = new LinkedHashSet<String>(properties);
+    equalityProperties.removeAll(inequalityProperties);
+    return new Plan(filter,
+                    inequalityProperties.isEmpty() ? null : inequalityProperties.iterator().next(),
+                    properties, equalityProperties, negatedProperties);
+  }
+
+  // Parser.
+
+  /** As a conjunction if negated, by De Morgan. */
+  Query.Filter parseDisjunction(boolean negated) {
+    List<Query.Filter> filters = new ArrayList<Query.Filter>();
+    filters.add(parseConjunction(negated));
+    while (accept("OR")) {
+      filters.add(parseConjunction(negated));
+    }
+    return combine(negated ? Query.CompositeFilterOperator.AND : Query.CompositeFilterOperator.OR,
+                   filters);
+  }
+
+  /** As a disjunction if negated, by De Morgan. */
+  Query.Filter parseConjunction(boolean negated) {
+    List<Query.Filter> filters = new ArrayList<Query.Filter>();
+    filters.add(parseUnary(negated));
+    while (pos < tokens.size() && !peek("OR") && !peek(")")) {
+      accept("AND");
+      filters.add(parseUnary(negated));
+    }
+    return combine(negated ? Query.CompositeFilterOperator.OR : Query.CompositeFilterOperator.AND,
+                   filters);
+  }
+
+  Query.Filter parseUnary(boolean negated) {
+    if (accept("NOT")) {
+      return parseUnary(!negated);
+    }
+    if (accept("(")) {
+      Query.Filter filter = parseDisjunction(negated);
+      expect(")");
+      return filter;
+    }
+    String field = next();
+    if (!isWord(field)) {
+      throw badQuery("expected a field but found " + field);
+    }
+    if (pos >= tokens.size() || !isOp(tokens.get(pos))) {
+      throw badQuery("bare keyword " + field + " needs full-text search");
+    }
+    String op = next();
+    String value = next();
+    if (!isWord(value) && !value.startsWith("\"")) {
+      throw badQuery("expected a value but found " + value);
+    }
+    if (op.equals(":")) {
+      op = "=";
+    }
+    String property = field.replace(Util.FIELD_SEP, ".");
+    properties.add(property);
+    if (negated || op.equals("!=")) {
+      negatedProperties.add(property);
+    }
+    if (negated) {
+      op = negate(op);
+    }
+    if (!op.equals("=")) {
+      inequalityProperties.add(property);
+    }
+    Object parsed = parseValue(value);
+    if (parsed instanceof Number) {
+      return compareNumber(property, op, (Number) parsed);
+    }
+    return new Query.FilterPredicate(property, Datastore.strToOp(op), parsed);
+  }
+
+  /**
+   * The datastore orders all integers before all floating point
+   * numbers, while Search compares them by value, so a number is
+   * compared with the values of each type separately, each range
+   * bounded to its own type.
+   */
+  static Query.Filter compareNumber(String property, String op, Number value) {
+    double d = value.doubleValue();
+    boolean integral = value instanceof Long || d == Math.floor(d);
+    Query.Filter asDouble = compare(property, op, d, Double.NEGATIVE_INFINITY,
+                                    Double.POSITIVE_INFINITY);
+    if (op.equals("=") || op.equals("!=")) {
+      if (!integral) {
+        return asDouble;
+      }
+      List<Query.Filter> filters = new ArrayList<Query.Filter>();
+      filters.add(compare(property, op, value.longValue(), null, null));
+      filters.add(asDouble);
+      return combine(op.equals("=") ? Query.CompositeFilterOperator.OR
+                     : Query.CompositeFilterOperator.AND, filters);
+    }
+    long l = value instanceof Long ? value.longValue() : (long) Math.floor(d);
+    if (!integral) {
+      // E.g. n > 2.5 as n > 2, and n < 2.5 as n <= 2.
+      op = op.startsWith(">") ? ">" : "<=";
+    }
+    List<Query.Filter> filters = new ArrayList<Query.Filter>();
+    filters.add(compare(property, op, l, Long.MIN_VALUE, Long.MAX_VALUE));
+    filters.add(asDouble);
+    return combine(Query.CompositeFilterOperator.OR, filters);
+  }
+
+  /** @return the comparison, within the given bounds if not null. */
+  static Query.Filter compare(String property, String op, Object value, Object min, Object max) {
+    Query.Filter filter = new Query.FilterPredicate(property, Datastore.strToOp(op), value);
+    if (min == null || op.equals("=") || op.equals("!=")) {
+      return filter;
+    }
+    List<Query.Filter> filters = new ArrayList<Query.Filter>();
+    filters.add(filter);
+    filters.add(new Query.FilterPredicate(property, Query.FilterOperator.GREATER_THAN_OR_EQUAL,
+                                          min));
+    filters.add(new Query.FilterPredicate(property, Query.FilterOperator.LESS_THAN_OR_EQUAL, max));
+    return combine(Query.CompositeFilterOperator.AND, filters);
+  }
+
+  static Query.Filter combine(Query.CompositeFilterOperator op, List<Query.Filter> filters) {
+    if (filters.size() == 1) {
+      return filters.get(0);
+    }
+    return op == Query.CompositeFilterOperator.AND
+      ? Query.CompositeFilterOperator.and(filters)
+      : Query.CompositeFilterOperator.or(filters);
+  }
+
+  static String negate(String op) {
+    if (op.equals("=")) {
+      return "!=";
+    } else if (op.equals("!=")) {
+      return "=";
+    } else if (op.equals("<")) {
+      return ">=";
+    } else if (op.equals("<=")) {
+      return ">";
+    } else if (op.equals(">")) {
+      return "<=";
+    }
+    return "<";
+  }
+
+  /** @return the value of the given token, typed as when stored from JSON. */
+  static Object parseValue(String token) {
+    if (token.startsWith("\"")) {
+      return token.substring(1, token.length() - 1).replaceAll("\\\\(.)", "$1");
+    }
+    if (token.equals("true") || token.equals("false")) {
+      return Boolean.valueOf(token);
+    }
+    if (NUMBER.matcher(token).matches()) {
+      try {
+        return Long.valueOf(token);
+      } catch (NumberFormatException e) {
+        return Double.valueOf(token);
+      }
+    }
+    return token;
+  }
+
+  /** @return the number of queries the datastore would run for the filter. */
+  static int countSubqueries(Query.Filter filter) {
+    if (filter == null) {
+      return 1;
+    }
+    if (filter instanceof Query.FilterPredicate) {
+      return ((Query.FilterPredicate) filter).getOperator() == Query.FilterOperator.NOT_EQUAL
+        ? 2 : 1;
+    }
+    Query.CompositeFilter composite = (Query.CompositeFilter) filter;
+    boolean and = composite.getOperator() == Query.CompositeFilterOperator.AND;
+    int count = and ? 1 : 0;
+    for (Query.Filter sub : composite.getSubFilters()) {
+      count = and ? count * countSubqueries(sub) : count + countSubqueries(sub);
+      // Stop before overflowing.
+      if (count > MAX_SUBQUERIES) {
+        return count;
+      }
+    }
+    return count;
+  }
+
+  // Tokens.
+
+  boolean isOp(String token) {
+    return token.equals(":") || token.equals("=") || token.equals("!=")
+      || token.equals("<") || token.equals("<=") || token.equals(">") || token.equals(">=");
+  }
+
+  boolean isWord(String token) {
+    return !isOp(token) && !token.equals("(") && !token.equals(")") && !token.startsWith("\"")
+      && !token.equals("AND") && !token.equals("OR") && !token.equals("NOT");
+  }
+
+  boolean peek(String token) {
+    return pos < tokens.size() && tokens.get(pos).equals(token);
+  }
+
+  boolean accept(String token) {
+    if (peek(token)) {
+      pos++;
+      return true;
+    }
+    return false;
+  }
+
+  void expect(String token) {
+    if (!accept(token)) {
+      throw badQuery("expected " + token);
+    }
+  }
+
+  String next() {
+    if (pos >= tokens.size()) {
+      throw badQuery("unexpected end");
+    }
+    return tokens.get(pos++);
+  }
+
+  IllegalArgumentException badQuery(String reason) {
+    return new IllegalArgumentException(String.format("Bad query, %s: %s", reason, query));
+  }
+}
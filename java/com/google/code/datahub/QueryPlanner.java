@@ -0,0 +1,222 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.datahub;
+
+import com.google.appengine.api.search.Field;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The QueryPlanner class routes each search of a CompositeStore to
+ * the datastore or the search service, whichever should answer it
+ * more cheaply.  A search may only go to the datastore if:
+ *
+ * <ol>
+ *   <li>it doesn't subscribe to updates, which only Search does,</li>
+ *   <li>QueryCompiler can compile it, e.g. it has no bare keywords,</li>
+ *   <li>every field it compares is an atom, number or date in the
+ *     schema of the path's children, as the datastore can't match
+ *     the words of text fields,</li>
+ *   <li>the path's descendants are in its entity group, so are found
+ *     by an ancestor query, and</li>
+ *   <li>the datastore hasn't lacked an index for the same query.</li>
+ * </ol>
+ *
+ * Such a search goes to the datastore if it is ordered and is
+ * estimated to match more docs than Search sorts exactly, estimating
+ * from the field value sketches of SchemaManager.FieldStats.
+ * Otherwise it goes to the store with the lower mean latency, that
+ * of the datastore scaled up by how many results it skips for the
+ * offset, after each store has been sampled MIN_SAMPLES times.
+ *
+ * The most recent decisions and the latencies are reported by
+ * getStats for debugging.
+ *
+ * @author Pablo Mayrgundter <pmy@google.com>
+ */
+final class QueryPlanner {
+
+  enum Backend { DATASTORE, SEARCH }
+
+  /** The searches each store answers before routing by latency. */
+  static final int MIN_SAMPLES = 5;
+
+  /** The weight of the latest latency in its moving average. */
+  static final double LATENCY_WEIGHT = 0.2;
+
+  /** The most recent decisions kept for getStats. */
+  static final int MAX_DECISIONS = 20;
+
+  /** The decision for one search. */
+  static final class Route {
+    final Backend backend;
+    final String reason;
+    final Path path;
+    final String query;
+
+    Route(Backend backend, String reason, Path path, String query) {
+      this.backend = backend;
+      this.reason = reason;
+      this.path = path;
+      this.query = query;
+    }
+
+    JSONObject toJson() {
+      JSONObject json = new JSONObject();
+      Util.jsonPut(json, "path", path.toString());
+      Util.jsonPut(json, "query", query);
+      Util.jsonPut(json, "backend", backend.name());
+      Util.jsonPut(json, "reason", reason);
+      return json;
+    }
+  }
+
+  final KeyLayout layout;
+  private final long [] samples = new long[Backend.values().length];
+  private final double [] meanMs = new double[Backend.values().length];
+  private final LinkedList<Route> decisions = new LinkedList<Route>();
+  /** Normalized queries the datastore lacked an index for. */
+  final Set<String> needIndex =
+    Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  QueryPlanner(KeyLayout layout) {
+    this.layout = layout;
+  }
+
+  /**
+   * @param subscribe whether the search also subscribes to updates.
+   * @return the store to answer the given search.
+   */
+  Route route(Path path, String query, int offset, int limit, String [] fields, int [] order,
+              boolean subscribe) {
+    Route route = decide(path, query, offset, limit, fields, order, subscribe);
+    synchronized (this) {
+      decisions.addFirst(route);
+      if (decisions.size() > MAX_DECISIONS) {
+        decisions.removeLast();
+      }
+    }
+    return route;
+  }
+
+  Route decide(Path path, String query, int offset, int limit, String [] fields, int [] order,
+               boolean subscribe) {
+    if (subscribe) {
+      return new Route(Backend.SEARCH, "subscribes to updates", path, query);
+    }
+    QueryCompiler.Plan plan;
+    try {
+      plan = QueryCompiler.compile(query);
+    } catch (IllegalArgumentException e) {
+      return new Route(Backend.SEARCH, e.getMessage(), path, query);
+    }
+    if (!plan.negatedProperties.isEmpty()) {
+      return new Route(Backend.SEARCH, "datastore negation skips objects lacking "
+                       + plan.negatedProperties, path, query);
+    }
+    if (layout.isGroupRoot(path.getLength() + 1)) {
+      return new Route(Backend.SEARCH, "descendants span entity groups", path, query);
+    }
+    if (needIndex.contains(QueryCompiler.normalize(query))) {
+      return new Route(Backend.SEARCH, "datastore lacks an index", path, query);
+    }
+    Map<String, Field.FieldType> types =
+      SchemaManager.getSchema(SchemaManager.childSchemaKey(path)).types;
+    for (String property : plan.properties) {
+      Field.FieldType type = types.get(Search.toFieldName(property, "."));
+      if (type != Field.FieldType.ATOM && type != Field.FieldType.NUMBER
+          && type != Field.FieldType.DATE) {
+        return new Route(Backend.SEARCH, "field " + property + " is " + type, path, query);
+      }
+    }
+    if (AbstractStore.isOrdered(fields, order)) {
+      long matches = estimateMatches(path, plan);
+      if (matches > Search.MAX_SORTED_DOCS) {
+        return new Route(Backend.DATASTORE,
+                         String.format("ordered, ~%d matches, more than search sorts", matches),
+                         path, query);
+      }
+    }
+    synchronized (this) {
+      for (Backend backend : Backend.values()) {
+        if (samples[backend.ordinal()] < MIN_SAMPLES) {
+          return new Route(backend, "sampling", path, query);
+        }
+      }
+      // The datastore reads the results it skips.
+      double datastoreMs = meanMs[Backend.DATASTORE.ordinal()]
+        * (1 + offset / (double) Math.max(limit, 1));
+      double searchMs = meanMs[Backend.SEARCH.ordinal()];
+      return new Route(datastoreMs <= searchMs ? Backend.DATASTORE : Backend.SEARCH,
+                       String.format("estimated datastore %.1fms, search %.1fms",
+                                     datastoreMs, searchMs),
+                       path, query);
+    }
+  }
+
+  /**
+   * @return the estimated number of the path's children matching the
+   * given plan, assuming its equalities are independent.
+   */
+  static long estimateMatches(Path path, QueryCompiler.Plan plan) {
+    SchemaManager.FieldStats stats =
+      SchemaManager.getFieldStats(SchemaManager.childSchemaKey(path));
+    double matches = stats.docs.estimate();
+    for (String property : plan.equalityProperties) {
+      matches *= stats.selectivity(Search.toFieldName(property, "."));
+    }
+    return Math.round(matches);
+  }
+
+  /** Records the latency of a search answered by the given store. */
+  synchronized void record(Backend backend, long ms) {
+    int i = backend.ordinal();
+    meanMs[i] = samples[i] == 0 ? ms : (1 - LATENCY_WEIGHT) * meanMs[i] + LATENCY_WEIGHT * ms;
+    samples[i]++;
+  }
+
+  /** Routes the given query to Search from now on, as the datastore can't answer it. */
+  void recordNeedIndex(String query) {
+    needIndex.add(QueryCompiler.normalize(query));
+  }
+
+  /**
+   * @return the sample count and mean latency of each store, and the
+   * most recent decisions, latest first.
+   */
+  synchronized JSONObject getStats() {
+    JSONObject json = new JSONObject();
+    for (Backend backend : Backend.values()) {
+      JSONObject backendJson = new JSONObject();
+      Util.jsonPut(backendJson, "samples", samples[backend.ordinal()]);
+      Util.jsonPut(backendJson, "meanMs", meanMs[backend.ordinal()]);
+      Util.jsonPut(json, backend.name().toLowerCase(), backendJson);
+    }
+    JSONArray decisionsJson = new JSONArray();
+    for (Route route : decisions) {
+      decisionsJson.put(route.toJson());
+    }
+    Util.jsonPut(json, "decisions", decisionsJson);
+    Util.jsonPut(json, "needIndex", new JSONArray(needIndex));
+    return json;
+  }
+}
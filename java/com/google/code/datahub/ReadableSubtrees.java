@@ -0,0 +1,71 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.datahub;
+
+/**
+ * The ReadableSubtrees class is the set of subtrees one user may and
+ * may not perform an operation on, as the paths of the ACLs which
+ * assert a control for that user and operation.  The decision for any
+ * path is then that of its deepest such prefix, found in one walk of
+ * a PathTrie, so that e.g. search hits can be filtered in memory
+ * instead of checking each through the datastore.
+ *
+ * Instances are immutable once built, and carry the ACL cache
+ * generation and time they were built at so that the owning store
+ * can tell when they are stale.
+ *
+ * @author Pablo Mayrgundter <pmy@google.com>
+ */
+final class ReadableSubtrees {
+
+  /** ACL'd path prefixes to true if the subtree is restricted. */
+  private final PathTrie<Boolean> prefixes = new PathTrie<Boolean>();
+  private boolean anyRestricted = false;
+
+  final long generation;
+  final long expiresMs;
+
+  ReadableSubtrees(long generation, long expiresMs) {
+    this.generation = generation;
+    this.expiresMs = expiresMs;
+  }
+
+  /**
+   * Records the control asserted by the ACL at the given path.  An
+   * allowance wins over a restriction in the same ACL, as in
+   * SecureDatastore.isRestricted.
+   */
+  void add(Path path, boolean allowed, boolean restricted) {
+    if (allowed || restricted) {
+      prefixes.put(path, !allowed);
+      anyRestricted |= !allowed;
+    }
+  }
+
+  /** @return true unless the deepest controlled prefix of path is restricted. */
+  boolean isReadable(Path path) {
+    Boolean restricted = prefixes.longestPrefix(path);
+    return restricted == null || !restricted;
+  }
+
+  /** @return true if nothing is restricted, so no filtering is needed. */
+  boolean isAllReadable() {
+    return !anyRestricted;
+  }
+
+  int size() {
+    return prefixes.size();
+  }
+}
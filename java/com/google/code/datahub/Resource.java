@@ -14,10 +14,15 @@
  */
 package com.google.code.datahub;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
@@ -55,6 +60,9 @@ public class Resource extends AbstractServlet {
 
   static final String JSON_CONTENT_TYPE = "application/json; charset=UTF-8";
 
+  /** The most operations accepted in one __batch__ request. */
+  static final int MAX_BATCH_OPS = 100;
+
   /**
    * The path to the current request, equivalent ot
    * request.getRequestURI().
@@ -84,13 +92,27 @@ public class Resource extends AbstractServlet {
   public void init() throws ServletException {
     String path = getServletConfig().getInitParameter("path");
     String parentPath = getServletConfig().getInitParameter("parentPath");
+    String groupDepth = getServletConfig().getInitParameter("groupDepth");
+    String materializeAcls = getServletConfig().getInitParameter("materializeAcls");
     if (path == null) {
       throw new IllegalStateException(String.format("web.xml config for servlet(%s) requires"
                                                     + " init param 'path'",
                                                     getServletConfig().getServletName()));
     }
     store = new CompositeStore(Path.fromString(path),
-                               parentPath == null ? null : Path.fromString(parentPath));
+                               parentPath == null ? null : Path.fromString(parentPath),
+                               KeyLayout.forGroupDepth(groupDepth),
+                               Boolean.parseBoolean(materializeAcls));
+    store.filterSearchByAcl =
+      Boolean.parseBoolean(getServletConfig().getInitParameter("filterSearchByAcl"));
+    store.setConcurrentWrites(
+        Boolean.parseBoolean(getServletConfig().getInitParameter("concurrentWrites")));
+    store.setWriteBehind(
+        Boolean.parseBoolean(getServletConfig().getInitParameter("writeBehind")));
+    store.setBufferSearchWrites(
+        Boolean.parseBoolean(getServletConfig().getInitParameter("bufferSearchWrites")));
+    store.setRouteQueries(
+        Boolean.parseBoolean(getServletConfig().getInitParameter("routeQueries")));
   }
 
   // HTTP method delegation: service, DELETE, GET, POST, PUT
@@ -116,6 +138,8 @@ public class Resource extends AbstractServlet {
       rsp.getWriter().println(secEx.getMessage());
     } catch (Store.NotFoundException missingEx) {
       rsp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+    } finally {
+      flushSearchWrites(rsp);
     }
 
     // Setup for next request.
@@ -124,6 +148,24 @@ public class Resource extends AbstractServlet {
     reqJson = null;
   }
 
+  /**
+   * Buffered search writes don't outlive the request.  Failing to
+   * flush them fails the request, so replaces its response if that
+   * hasn't been sent yet.
+   */
+  void flushSearchWrites(HttpServletResponse rsp) throws IOException {
+    try {
+      Search.flushAll();
+    } catch (RuntimeException e) {
+      if (rsp.isCommitted()) {
+        throw e;
+      }
+      rsp.reset();
+      rsp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      rsp.getWriter().println("Failed updating search index: " + e.getMessage());
+    }
+  }
+
   /**
    * Deletes the resource at the requested path, or the search indexes
    * for this resoruce if path is of the form /[this rsrc]/__index__.
@@ -167,11 +209,19 @@ public class Resource extends AbstractServlet {
    *
    * <ol>
    *   <li>query: <code>q=[see query grammar link below]</code></li>
-   *   <li>field ordering: <code>order=(asc||desc)(,(asc||desc))*</code></li>
+   *   <li>field ordering: <code>order=(asc||desc)(,(asc||desc))*</code>,
+   *     of the corresponding selected fields</li>
    *   <li>result set offset: <code>offset=\d+</code></li>
    *   <li>result set limit: <code>limit=\d+</code></li>
+   *   <li>result set cursor: <code>cursor=[next of the previous page]</code></li>
    * </ol>
    *
+   * A cursor is used instead of an offset to page deeply, as its
+   * pages cost the same at any depth.  Listings and searches given a
+   * cursor parameter, empty for the first page, include the cursor of
+   * their next page as <code>__next__</code> or <code>next</code>
+   * respectively, if there may be one.
+   *
    * TODO(pmy): this adds side-effects to GET.
    *
    * Both request forms may be monitored for future modifications by
@@ -185,7 +235,10 @@ public class Resource extends AbstractServlet {
    * TODO(pmy): link to query grammar.
    *
    * <code>field_path</code> may be interpreted as a simple name or as
-   * a path to a field within a hierarchical document, as in XPath.
+   * a path to a field within a hierarchical document, as in XPath,
+   * e.g. <code>author/name</code>.  Only the selected fields are read
+   * and returned, and an empty selection returns just the names of
+   * the elements of a listing or search.
    *
    * <code>stream_id</code> TODO(pmy)
    *
@@ -211,6 +264,13 @@ public class Resource extends AbstractServlet {
         }
         // __acl__ requests are on the parent.
         reqPath = reqPath.getParent();
+        if (paramAllowNull("cacheStats") != null) {
+          if (!reqUser.isAdmin()) {
+            throw new Store.OperationRestrictedException(reqPath, reqUser, Store.Op.READ);
+          }
+          httpOk(store.datastoreAsAclService.aclCache.getStats(), rsp);
+          return;
+        }
         final String reqRestrictUser = param("user");
         final String reqRestrictOp = param("op");
 
@@ -228,6 +288,34 @@ public class Resource extends AbstractServlet {
           httpOk(store.retrieveQueries(reqUser), rsp);
         }
         return;
+      } else if (filename.equals("__outbox__")) {
+        // Reports the backlog of write-behind indexing, or with sweep
+        // re-enqueues it as PUT does, for cron, which can only GET.
+        if (!reqUser.isAdmin() && !isCronRequest(req)) {
+          throw new Store.OperationRestrictedException(reqPath, reqUser, Store.Op.READ);
+        }
+        if (store.outbox == null) {
+          notFound("Write-behind is not enabled", rsp);
+          return;
+        }
+        if (paramAllowNull("sweep") != null) {
+          store.outbox.sweep();
+          httpOk("Sweep enqueued", rsp);
+          return;
+        }
+        httpOk(store.outbox.getStats(), rsp);
+        return;
+      } else if (filename.equals("__planner__")) {
+        // Reports the latencies and recent decisions of query routing.
+        if (!reqUser.isAdmin()) {
+          throw new Store.OperationRestrictedException(reqPath, reqUser, Store.Op.READ);
+        }
+        if (store.planner == null) {
+          notFound("Query routing is not enabled", rsp);
+          return;
+        }
+        httpOk(store.planner.getStats(), rsp);
+        return;
       } else if (filename.equals("__bbqsauce__")) {
         // This is a gross hack to expose a global administrative
         // interface to the low-level PSI subscription state.  This is
@@ -245,6 +333,8 @@ public class Resource extends AbstractServlet {
     }
 
     final String reqQuery = req.getParameter("q");
+    final String reqCursor = req.getParameter("cursor");
+    final String [] reqFields = Util.parseFields(req.getParameter("select"));
     final int reqOffset = Math.abs(paramToInt("offset", 0));
     final int reqLimit = Math.abs(paramToInt("limit", 10));
     final long reqDuration = paramToInt("duration", -1);
@@ -255,24 +345,41 @@ public class Resource extends AbstractServlet {
 
     // http://en.wikipedia.org/wiki/Representational_state_transfer#RESTful_web_services
     JSONObject rspJson;
-    if (req.getRequestURI().endsWith("/")) {
-      // Colleciton request.
-      rspJson = store.list(reqPath, reqOffset, reqLimit,
-                           null, null, reqUser.id, reqDuration, reqUser);
-    } else {
-      // Item request or Search.
-      if (reqQuery == null) {
-        // Just retrieve the item.
-        rspJson = store.retrieve(reqPath, reqUser);
+    try {
+      final int [] reqOrder = Util.parseOrder(req.getParameter("order"));
+      if (req.getRequestURI().endsWith("/")) {
+        // Colleciton request.
+        rspJson = reqCursor == null
+          ? store.list(reqPath, reqOffset, reqLimit,
+                       reqFields, reqOrder, reqUser.id, reqDuration, reqUser)
+          : store.list(reqPath, emptyToNull(reqCursor), reqLimit,
+                       reqFields, reqOrder, reqUser.id, reqDuration, reqUser);
       } else {
-        // Search its index.
-        rspJson = store.search(reqPath, reqQuery,
-                               reqOffset, reqLimit,
-                               null, null,
-                               reqUser.id,
-                               reqDuration,
-                               reqUser);
+        // Item request or Search.
+        if (reqQuery == null) {
+          // Just retrieve the item.
+          rspJson = Util.jsonProject(store.retrieve(reqPath, reqUser), reqFields);
+        } else if (reqCursor == null) {
+          // Search its index.
+          rspJson = store.search(reqPath, reqQuery,
+                                 reqOffset, reqLimit,
+                                 reqFields, reqOrder,
+                                 reqUser.id,
+                                 reqDuration,
+                                 reqUser);
+        } else {
+          rspJson = store.search(reqPath, reqQuery,
+                                 emptyToNull(reqCursor), reqLimit,
+                                 reqFields, reqOrder,
+                                 reqUser.id,
+                                 reqDuration,
+                                 reqUser);
+        }
       }
+    } catch (IllegalArgumentException e) {
+      // An invalid cursor, selected field or order.
+      badRequest(e.getMessage(), rsp);
+      return;
     }
 
     httpOk(rspJson, rsp);
@@ -281,10 +388,32 @@ public class Resource extends AbstractServlet {
   /**
    * The given JSON-encoded resource is created in the collection
    * specified by the given address.
+   *
+   * A POST to /[this rsrc]/__batch__ instead runs a JSON-encoded
+   * array of operations in one request, as described in runBatch.
    */
   @Override
   public void doPost(HttpServletRequest req, HttpServletResponse rsp)
       throws ServletException, IOException {
+    if (reqPath.isSpecial()
+        && !reqPath.isSpecialSerial()
+        && reqPath.getFilename().equals("__batch__")) {
+      JSONArray ops;
+      try {
+        ops = new JSONArray(readPostBody(req.getReader()));
+      } catch (JSONException e) {
+        badRequest("The request must include a JSON-encoded array of operations.", rsp);
+        return;
+      }
+      if (ops.length() > MAX_BATCH_OPS) {
+        badRequest(String.format("At most %d operations may be batched.", MAX_BATCH_OPS), rsp);
+        return;
+      }
+      JSONObject rspJson = new JSONObject();
+      Util.jsonPut(rspJson, "results", runBatch(ops));
+      httpOk(rspJson, rsp);
+      return;
+    }
     reqJson = readJsonOrBadRequest("The request must include a JSON-encoded object.",
                                    rsp);
     if (reqJson == null) {
@@ -314,6 +443,15 @@ public class Resource extends AbstractServlet {
       }
       // __acl__ requests are on the parent.
       reqPath = reqPath.getParent();
+      if (paramAllowNull("migrateFormat") != null) {
+        // Converts ACLs stored in the original JSON format.
+        if (!reqUser.isAdmin()) {
+          throw new Store.OperationRestrictedException(reqPath, reqUser, Store.Op.UPDATE);
+        }
+        store.datastoreAsAclService.migrateAclFormat();
+        httpOk("Migration enqueued", rsp);
+        return;
+      }
       final String reqAclCtrl = param("ctrl");
       final String reqAclUser = param("user");
       final String reqAclOp = param("op");
@@ -349,6 +487,73 @@ public class Resource extends AbstractServlet {
         }
       }
       return;
+    } else if (filename.equals("__group__")) {
+      // Adds or, with clear, removes a member of a group, e.g. PUT
+      // /__group__?group=eng&user=bob.  The group is then controlled
+      // in ACLs as the user "group:eng".
+      if (!reqUser.isAdmin()) {
+        throw new Store.OperationRestrictedException(reqPath, reqUser, Store.Op.UPDATE);
+      }
+      final String reqGroup = param("group");
+      final String reqGroupUser = param("user");
+      final String reqGroupClear = paramAllowNull("clear");
+      if (!paramsOk("Must specify group and user; clear is an optional boolean", rsp)) {
+        return;
+      }
+      if (reqGroupClear != null) {
+        store.datastoreAsAclService.removeGroupMember(reqGroup, new User(reqGroupUser));
+      } else {
+        store.datastoreAsAclService.addGroupMember(reqGroup, new User(reqGroupUser));
+      }
+      return;
+    } else if (filename.equals("__outbox__")) {
+      // Re-enqueues all pending write-behind indexing, e.g. from cron
+      // to pick up entries whose drain task was lost.
+      if (!reqUser.isAdmin()) {
+        throw new Store.OperationRestrictedException(reqPath, reqUser, Store.Op.UPDATE);
+      }
+      if (store.outbox == null) {
+        notFound("Write-behind is not enabled", rsp);
+        return;
+      }
+      store.outbox.sweep();
+      httpOk("Sweep enqueued", rsp);
+      return;
+    } else if (filename.equals("__propagation__")) {
+      // Repairs the materialized ACLs of the parent's subtree after a
+      // propagation failed for good, as described at
+      // SecureDatastore.resetPropagations.
+      if (!reqUser.isAdmin()) {
+        throw new Store.OperationRestrictedException(reqPath, reqUser, Store.Op.UPDATE);
+      }
+      if (!store.datastoreAsAclService.materializeAcls) {
+        notFound("ACLs are not materialized", rsp);
+        return;
+      }
+      store.datastoreAsAclService.resetPropagations(reqPath.getParent());
+      httpOk("Propagation enqueued", rsp);
+      return;
+    } else if (filename.equals("__layout__")) {
+      // Migrates this store to its configured key layout from the
+      // given one, e.g. PUT /__layout__?from=0 after adding a
+      // groupDepth init param to a corpus using the ROOTED layout.
+      if (!reqUser.isAdmin()) {
+        throw new Store.OperationRestrictedException(reqPath, reqUser, Store.Op.UPDATE);
+      }
+      final String reqFromDepth = param("from");
+      if (!paramsOk("Must specify the groupDepth to migrate from.", rsp)) {
+        return;
+      }
+      final KeyLayout fromLayout;
+      try {
+        fromLayout = KeyLayout.forGroupDepth(reqFromDepth);
+      } catch (IllegalArgumentException e) {
+        badRequest(e.getMessage(), rsp);
+        return;
+      }
+      store.migrateLayout(fromLayout);
+      httpOk("Migration enqueued", rsp);
+      return;
     }
 
     reqJson = readJsonOrBadRequest("The request must include a JSON-encoded object.",
@@ -365,8 +570,207 @@ public class Resource extends AbstractServlet {
     store.update(reqPath, reqJson, reqUser);
   }
 
+  // Batch helpers.
+
+  /**
+   * Runs the given operations for the requesting user and returns
+   * their results in the same order.  Each operation is an object
+   * like:
+   *
+   * <pre>
+   *   {"method": "GET", "path": "/foo/bar"}
+   *   {"method": "GET", "path": "/foo/", "offset": 0, "limit": 10}
+   *   {"method": "GET", "path": "/foo/", "cursor": "", "limit": 10}
+   *   {"method": "GET", "path": "/foo/bar", "select": "title,author/name"}
+   *   {"method": "GET", "path": "/foo/", "select": "date", "order": "desc"}
+   *   {"method": "GET", "path": "/foo", "q": "bar"}
+   *   {"method": "POST", "path": "/foo/", "body": {...}}
+   *   {"method": "PUT", "path": "/foo/bar", "body": {...}}
+   *   {"method": "DELETE", "path": "/foo/bar"}
+   * </pre>
+   *
+   * with the same meaning as the corresponding request.  Each result
+   * has the HTTP status of its operation and, as applicable, its
+   * response body or Location.  An operation failing does not stop
+   * those after it.
+   *
+   * Runs of consecutive item GETs and of consecutive PUTs are sent to
+   * the store as one retrieveAll or updateAll.  If such a run is
+   * restricted, not found or invalid as a whole, it is retried an
+   * operation at a time to find the status of each.  A failed
+   * updateAll may have written some of its run, as described at
+   * CompositeStore.updateAll, which the retried PUTs then rewrite.
+   */
+  JSONArray runBatch(JSONArray ops) {
+    JSONObject [] results = new JSONObject[ops.length()];
+    int start = 0;
+    while (start < ops.length()) {
+      String method = batchMethod(ops.optJSONObject(start));
+      int end = start + 1;
+      if (method != null) {
+        Set<String> paths = new HashSet<String>();
+        paths.add(ops.optJSONObject(start).optString("path"));
+        while (end < ops.length()
+               && method.equals(batchMethod(ops.optJSONObject(end)))
+               && paths.add(ops.optJSONObject(end).optString("path"))) {
+          end++;
+        }
+      }
+      if (end - start > 1) {
+        try {
+          runBatchGroup(method, ops, start, end, results);
+        } catch (Store.OperationRestrictedException e) {
+          // Fall through to single ops.
+        } catch (Store.NotFoundException e) {
+          // Fall through to single ops.
+        } catch (IllegalArgumentException e) {
+          // Fall through to single ops.
+        }
+      }
+      for (int i = start; i < end; i++) {
+        if (results[i] == null) {
+          results[i] = runBatchOp(ops.optJSONObject(i));
+        }
+      }
+      start = end;
+    }
+    JSONArray resultsJson = new JSONArray();
+    for (JSONObject result : results) {
+      resultsJson.put(result);
+    }
+    return resultsJson;
+  }
+
+  /**
+   * @return "GET" or "PUT" if the given op may be run together with
+   * others of the same method, otherwise null.
+   */
+  static String batchMethod(JSONObject op) {
+    if (op == null || !op.has("path")) {
+      return null;
+    }
+    String method = op.optString("method");
+    String path = op.optString("path");
+    if (method.equals("GET") && !path.endsWith("/") && !op.has("q")) {
+      return method;
+    }
+    if (method.equals("PUT") && op.optJSONObject("body") != null) {
+      return method;
+    }
+    return null;
+  }
+
+  /** Runs ops [start, end) with one call to the store. */
+  void runBatchGroup(String method, JSONArray ops, int start, int end, JSONObject [] results) {
+    if (method.equals("GET")) {
+      Path [] paths = new Path[end - start];
+      for (int i = start; i < end; i++) {
+        paths[i - start] = Path.fromString(ops.optJSONObject(i).optString("path"));
+      }
+      JSONObject objs = store.retrieveAll(reqUser, paths);
+      for (int i = start; i < end; i++) {
+        JSONObject obj = objs.optJSONObject(paths[i - start].toString());
+        results[i] = obj == null
+          ? batchResult(HttpServletResponse.SC_NOT_FOUND)
+          : Util.jsonPut(batchResult(HttpServletResponse.SC_OK), "body",
+                         Util.jsonProject(obj, batchFields(ops.optJSONObject(i))));
+      }
+    } else {
+      Map<Path, JSONObject> objs = new LinkedHashMap<Path, JSONObject>();
+      for (int i = start; i < end; i++) {
+        JSONObject op = ops.optJSONObject(i);
+        objs.put(Path.fromString(op.optString("path")), op.optJSONObject("body"));
+      }
+      store.updateAll(objs, reqUser);
+      for (int i = start; i < end; i++) {
+        results[i] = batchResult(HttpServletResponse.SC_OK);
+      }
+    }
+  }
+
+  /** @return the result of running the given op alone. */
+  JSONObject runBatchOp(JSONObject op) {
+    if (op == null || !op.has("method") || !op.has("path")) {
+      return Util.jsonPut(batchResult(HttpServletResponse.SC_BAD_REQUEST),
+                          "error", "Each operation must have a method and path.");
+    }
+    String method = op.optString("method");
+    String pathStr = op.optString("path");
+    JSONObject body = op.optJSONObject("body");
+    try {
+      Path path = Path.fromString(pathStr);
+      if (method.equals("GET")) {
+        JSONObject rspJson;
+        String cursor = op.has("cursor") ? emptyToNull(op.optString("cursor")) : null;
+        String [] fields = batchFields(op);
+        int [] order = Util.parseOrder(op.has("order") ? op.optString("order") : null);
+        if (pathStr.endsWith("/")) {
+          rspJson = op.has("cursor")
+            ? store.list(path, cursor, Math.abs(op.optInt("limit", 10)),
+                         fields, order, reqUser.id, -1, reqUser)
+            : store.list(path, Math.abs(op.optInt("offset", 0)),
+                         Math.abs(op.optInt("limit", 10)),
+                         fields, order, reqUser.id, -1, reqUser);
+        } else if (op.has("q")) {
+          rspJson = op.has("cursor")
+            ? store.search(path, op.optString("q"), cursor,
+                           Math.abs(op.optInt("limit", 10)),
+                           fields, order, reqUser.id, -1, reqUser)
+            : store.search(path, op.optString("q"),
+                           Math.abs(op.optInt("offset", 0)),
+                           Math.abs(op.optInt("limit", 10)),
+                           fields, order, reqUser.id, -1, reqUser);
+        } else {
+          rspJson = Util.jsonProject(store.retrieve(path, reqUser), fields);
+        }
+        return Util.jsonPut(batchResult(HttpServletResponse.SC_OK), "body", rspJson);
+      } else if (method.equals("POST") && body != null) {
+        Path newPath = store.create(path, body, reqUser);
+        return Util.jsonPut(batchResult(HttpServletResponse.SC_CREATED),
+                            "location", req.getServletPath() + newPath);
+      } else if (method.equals("PUT") && body != null) {
+        store.update(path, body, reqUser);
+        return batchResult(HttpServletResponse.SC_OK);
+      } else if (method.equals("DELETE")) {
+        store.delete(reqUser, path);
+        return batchResult(HttpServletResponse.SC_OK);
+      }
+      return Util.jsonPut(batchResult(HttpServletResponse.SC_BAD_REQUEST),
+                          "error", "Method must be one of GET, DELETE or, with a body, POST or PUT.");
+    } catch (Store.OperationRestrictedException e) {
+      return Util.jsonPut(batchResult(HttpServletResponse.SC_FORBIDDEN), "error", e.getMessage());
+    } catch (Store.NotFoundException e) {
+      return batchResult(HttpServletResponse.SC_NOT_FOUND);
+    } catch (IllegalArgumentException e) {
+      return Util.jsonPut(batchResult(HttpServletResponse.SC_BAD_REQUEST), "error", e.getMessage());
+    }
+  }
+
+  static JSONObject batchResult(int status) {
+    return Util.jsonPut(new JSONObject(), "status", status);
+  }
+
+  /** @return the fields selected by the given op, as by the select parameter. */
+  static String [] batchFields(JSONObject op) {
+    return Util.parseFields(op.has("select") ? op.optString("select") : null);
+  }
+
+  /** An empty cursor parameter asks for the first page. */
+  static String emptyToNull(String cursor) {
+    return cursor.equals("") ? null : cursor;
+  }
+
   // Protocol helpers.
 
+  /**
+   * @return true if the request was issued by the cron service,
+   * which sets this header, and which App Engine strips from
+   * external requests.
+   */
+  static boolean isCronRequest(HttpServletRequest req) {
+    return "true".equals(req.getHeader("X-AppEngine-Cron"));
+  }
+
   protected JSONObject readJsonOrBadRequest(String errorMsg,
                                             HttpServletResponse rsp) throws IOException {
     String postBody = readPostBody(req.getReader());
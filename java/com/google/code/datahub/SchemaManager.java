@@ -16,18 +16,23 @@ package com.google.code.datahub;
 
 import static com.google.appengine.api.prospectivesearch.FieldType.*;
 
+import com.google.appengine.api.datastore.ConcurrentModificationException;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.prospectivesearch.FieldType;
 import com.google.appengine.api.search.Document;
 import com.google.appengine.api.search.Field;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 /**
@@ -35,25 +40,170 @@ import java.util.logging.Logger;
  * conversion between the various low-level service entity
  * representations.
  *
+ * Schemas are cached in memory, so that a write only reads its
+ * schema when the cached copy is older than CACHE_TTL_MS, and only
+ * writes it when the written doc adds a field or changes a field's
+ * type.  Each change to a schema increments its version property, so
+ * an instance whose cached copy is stale reloads it on its next
+ * check, and changes are made in a transaction so that concurrent
+ * changes from other instances are merged rather than lost.
+ *
  * @author Pablo Mayrgundter <pmy@google.com>
  */
 class SchemaManager {
 
   static final Logger logger = Logger.getLogger(SchemaManager.class.getName());
 
+  /**
+   * The schema entity property counting its changes.  Search field
+   * names must start with a letter, so this can't name a field.
+   */
+  static final String VERSION_PROP = "_version";
+
+  /** How long a cached schema is used before its version is checked. */
+  static final long CACHE_TTL_MS = 10 * 1000;
+
+  /** Bounds the cache, which is cleared when full. */
+  static final int MAX_CACHED_SCHEMAS = 1000;
+
+  static final int SAVE_RETRIES = 5;
+
+  /** The field types of one schema at one version. */
+  static final class CachedSchema {
+    final Key key;
+    final Map<String, Field.FieldType> types;
+    final long version;
+    volatile long checkedMs;
+
+    CachedSchema(Entity schema, long checkedMs) {
+      Map<String, Field.FieldType> types = new HashMap<String, Field.FieldType>();
+      for (Map.Entry<String, Object> prop : schema.getProperties().entrySet()) {
+        if (!prop.getKey().equals(VERSION_PROP)) {
+          types.put(prop.getKey(), Field.FieldType.valueOf((String) prop.getValue()));
+        }
+      }
+      this.key = schema.getKey();
+      this.types = Collections.unmodifiableMap(types);
+      this.version = getVersion(schema);
+      this.checkedMs = checkedMs;
+    }
+
+    /** @return true if each of the given types is already in this schema. */
+    boolean covers(Map<String, Field.FieldType> fieldTypes) {
+      for (Map.Entry<String, Field.FieldType> fieldType : fieldTypes.entrySet()) {
+        if (types.get(fieldType.getKey()) != fieldType.getValue()) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  static final ConcurrentMap<Key, CachedSchema> cache =
+      new ConcurrentHashMap<Key, CachedSchema>();
+
+  /**
+   * Sketches of the distinct docs of a schema and of the distinct
+   * values of each of its fields, for estimating the selectivity of
+   * queries in QueryPlanner.  They are kept in memory only, so
+   * estimate the docs written through this instance.
+   */
+  static final class FieldStats {
+    final HyperLogLog docs = new HyperLogLog();
+    final ConcurrentMap<String, HyperLogLog> values =
+        new ConcurrentHashMap<String, HyperLogLog>();
+
+    void observe(Document doc) {
+      docs.add(doc.getId());
+      for (Field field : doc.getFields()) {
+        String name = field.getName();
+        if (name.startsWith(Search.INTERNAL_QUERY_FIELD_PATH)) {
+          continue;
+        }
+        HyperLogLog sketch = values.get(name);
+        if (sketch == null) {
+          values.putIfAbsent(name, new HyperLogLog());
+          sketch = values.get(name);
+        }
+        sketch.add(fieldValue(field));
+      }
+    }
+
+    /**
+     * @return the estimated fraction of docs matching an equality on
+     * the given field, or 1 if its values aren't known.
+     */
+    double selectivity(String field) {
+      HyperLogLog sketch = values.get(field);
+      long distinct = sketch == null ? 0 : sketch.estimate();
+      return distinct == 0 ? 1 : 1.0 / distinct;
+    }
+  }
+
+  static final ConcurrentMap<Key, FieldStats> fieldStats =
+      new ConcurrentHashMap<Key, FieldStats>();
+
   // TODO(pmy): probably not static.
   static DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
 
   static void initSchemaForPsi(Path path) {
-    Entity schema = findCreateSchema(path);
-    mapFieldType(schema, Search.INTERNAL_QUERY_FIELD_PATH, Field.FieldType.TEXT);
-    saveSchema(schema);
+    Map<String, Field.FieldType> fieldTypes = new HashMap<String, Field.FieldType>();
+    fieldTypes.put(Search.INTERNAL_QUERY_FIELD_PATH, Field.FieldType.TEXT);
+    updateSchema(schemaKey(path), fieldTypes);
   }
 
   static void updateSchema(Path path, Document doc) {
-    Entity schema = findCreateSchema(path);
-    updateSchema(schema, doc);
-    saveSchema(schema);
+    Map<String, Field.FieldType> fieldTypes = new HashMap<String, Field.FieldType>();
+    for (Field field : doc.getFields()) {
+      fieldTypes.put(field.getName(), field.getType());
+    }
+    Key schemaKey = schemaKey(path);
+    updateSchema(schemaKey, fieldTypes);
+    getFieldStats(schemaKey).observe(doc);
+  }
+
+  /**
+   * @return the field stats of the given schema, empty if none
+   * observed.  Stats can't be rebuilt from the store, so when
+   * MAX_CACHED_SCHEMAS are kept, only those of the schema with the
+   * fewest docs observed are dropped to make room, rather than all.
+   */
+  static FieldStats getFieldStats(Key schemaKey) {
+    FieldStats stats = fieldStats.get(schemaKey);
+    if (stats == null) {
+      if (fieldStats.size() >= MAX_CACHED_SCHEMAS) {
+        evictFieldStats();
+      }
+      fieldStats.putIfAbsent(schemaKey, new FieldStats());
+      stats = fieldStats.get(schemaKey);
+    }
+    return stats;
+  }
+
+  /** Drops the field stats with the fewest docs observed. */
+  static void evictFieldStats() {
+    Key smallest = null;
+    long smallestDocs = Long.MAX_VALUE;
+    for (Map.Entry<Key, FieldStats> entry : fieldStats.entrySet()) {
+      long docs = entry.getValue().docs.estimate();
+      if (docs < smallestDocs) {
+        smallest = entry.getKey();
+        smallestDocs = docs;
+      }
+    }
+    if (smallest != null) {
+      fieldStats.remove(smallest);
+    }
+  }
+
+  static String fieldValue(Field field) {
+    switch (field.getType()) {
+      case HTML: return field.getHTML();
+      case ATOM: return field.getAtom();
+      case NUMBER: return String.valueOf(field.getNumber());
+      case DATE: return String.valueOf(field.getDate().getTime());
+      default: return field.getText();
+    }
   }
 
   /**
@@ -68,11 +218,10 @@ class SchemaManager {
    * </pre>
    */
   static Map<String, FieldType> getSchemaForPsi(Path path) {
-    Entity schema = findCreateSchema(path);
     Map<String, FieldType> psiSchema = new HashMap<String, FieldType>();
-    for (String name : schema.getProperties().keySet()) {
-      final Field.FieldType ftsType = Field.FieldType.valueOf((String) schema.getProperty(name));
-      switch (ftsType) {
+    for (Map.Entry<String, Field.FieldType> field : getSchema(schemaKey(path)).types.entrySet()) {
+      final String name = field.getKey();
+      switch (field.getValue()) {
         case ATOM: psiSchema.put(name, FieldType.STRING); break;
         case DATE: psiSchema.put(name, FieldType.DOUBLE); break;
         case HTML: psiSchema.put(name, FieldType.TEXT); break;
@@ -83,43 +232,94 @@ class SchemaManager {
     return psiSchema;
   }
 
-  private static Entity findCreateSchema(Path path) {
+  static Key schemaKey(Path path) {
     Key key = path.toKey();
     if (key.getParent() != null) {
       key = key.getParent();
     }
-    Key schemaKey = KeyFactory.createKey("schema", Path.fromKey(key).toString());
+    return KeyFactory.createKey("schema", Path.fromKey(key).toString());
+  }
+
+  /** @return the key of the schema of the given path's children. */
+  static Key childSchemaKey(Path path) {
+    return KeyFactory.createKey("schema", path.toString());
+  }
+
+  private static long getVersion(Entity schema) {
+    Object version = schema.getProperty(VERSION_PROP);
+    return version == null ? 0 : ((Number) version).longValue();
+  }
+
+  /**
+   * @return the cached schema, reloading it if not checked within
+   * CACHE_TTL_MS and its version has changed since.
+   */
+  static CachedSchema getSchema(Key schemaKey) {
+    CachedSchema cached = cache.get(schemaKey);
+    long now = System.currentTimeMillis();
+    if (cached != null && now - cached.checkedMs <= CACHE_TTL_MS) {
+      return cached;
+    }
     Entity schema;
     try {
       schema = datastore.get(schemaKey);
     } catch (EntityNotFoundException e) {
       schema = new Entity(schemaKey);
     }
+    if (cached != null && cached.version == getVersion(schema)) {
+      cached.checkedMs = now;
+      return cached;
+    }
+    return cache(new CachedSchema(schema, now));
+  }
+
+  private static CachedSchema cache(CachedSchema schema) {
+    if (cache.size() >= MAX_CACHED_SCHEMAS) {
+      cache.clear();
+    }
+    cache.put(schema.key, schema);
     return schema;
   }
 
   /**
-   * Updates the given schema to have the same field types as the
-   * given doc, as well as any previous types.
+   * Adds the given field types to the schema, writing it only if
+   * they aren't all already there.  The latest type of a field wins,
+   * as before.
    */
-  private static void updateSchema(Entity schema, Document doc) {
-    for (Field field : doc.getFields()) {
-      final String fieldName = field.getName();
-      switch (field.getType()) {
-        case ATOM: mapFieldType(schema, fieldName, Field.FieldType.ATOM); break;
-        case DATE: mapFieldType(schema, fieldName, Field.FieldType.DATE); break;
-        case HTML: mapFieldType(schema, fieldName, Field.FieldType.HTML); break;
-        case NUMBER: mapFieldType(schema, fieldName, Field.FieldType.NUMBER); break;
-        case TEXT: mapFieldType(schema, fieldName, Field.FieldType.TEXT); break;
+  private static void updateSchema(Key schemaKey, Map<String, Field.FieldType> fieldTypes) {
+    if (getSchema(schemaKey).covers(fieldTypes)) {
+      return;
+    }
+    for (int tries = 1; ; tries++) {
+      Transaction txn = datastore.beginTransaction();
+      try {
+        Entity schema;
+        try {
+          schema = datastore.get(txn, schemaKey);
+        } catch (EntityNotFoundException e) {
+          schema = new Entity(schemaKey);
+        }
+        for (Map.Entry<String, Field.FieldType> fieldType : fieldTypes.entrySet()) {
+          mapFieldType(schema, fieldType.getKey(), fieldType.getValue());
+        }
+        schema.setProperty(VERSION_PROP, getVersion(schema) + 1);
+        logger.fine("SchemaManager: saveSchema: " + schema);
+        datastore.put(txn, schema);
+        txn.commit();
+        cache(new CachedSchema(schema, System.currentTimeMillis()));
+        return;
+      } catch (ConcurrentModificationException e) {
+        if (tries == SAVE_RETRIES) {
+          throw e;
+        }
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
       }
     }
   }
 
-  private static void saveSchema(Entity schema) {
-    logger.fine("SchemaManager: saveSchema: " + schema);
-    datastore.put(schema);
-  }
-
   /** Helper to set field type proeprty on an entity in a single way. */
   private static void mapFieldType(Entity e, String fieldName, Field.FieldType f) {
     e.setProperty(fieldName, f.name());
@@ -20,6 +20,7 @@ import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.prospectivesearch.FieldType;
 import com.google.appengine.api.prospectivesearch.ProspectiveSearchService;
 import com.google.appengine.api.prospectivesearch.Subscription;
+import com.google.appengine.api.search.Cursor;
 import com.google.appengine.api.search.Document;
 import com.google.appengine.api.search.Field;
 import com.google.appengine.api.search.Index;
@@ -30,15 +31,23 @@ import com.google.appengine.api.search.QueryOptions;
 import com.google.appengine.api.search.Results;
 import com.google.appengine.api.search.ScoredDocument;
 import com.google.appengine.api.search.SearchServiceFactory;
+import com.google.appengine.api.search.SortExpression;
+import com.google.appengine.api.search.SortOptions;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 /**
  * JSON api combining to api.search and api.prospectivesearch.
@@ -80,6 +89,42 @@ public class Search extends AbstractStore {
    */
   static final String EMPTY_QUERY = "";
 
+  /**
+   * Joins the names of nested objects and their fields in document
+   * field names, which may not contain dots.  The names are escaped
+   * by escapeFieldName so that they can be split again.
+   */
+  static final String NESTED_SEP = "__";
+
+  /**
+   * Strings mapped to ATOM fields: short identifiers without spaces
+   * which contain at least one digit or punctuation character, so
+   * that plain words are still tokenized as TEXT.  Neither "true" nor
+   * "false" match, so those ATOMs can be read back as booleans.
+   * Only for fields whose type isn't yet recorded, see isAtom.
+   */
+  static final Pattern ATOM_PATTERN = Pattern.compile("(?=.*[0-9_:./@-])[\\w:./@-]{1,64}");
+
+  /** The longest string the index accepts as an ATOM. */
+  static final int MAX_ATOM_LENGTH = 500;
+
+  /**
+   * The largest magnitude of a NUMBER field.  Numbers beyond it are
+   * mapped to ATOMs of their decimal form instead, which match this
+   * pattern.  Strings that match it are mapped to TEXT, so that those
+   * ATOMs can be read back as numbers.
+   */
+  static final double MAX_NUMBER = 2147483647;
+  static final Pattern NUMBER_ATOM_PATTERN =
+    Pattern.compile("-?[0-9]+(\\.[0-9]+)?(E-?[0-9]+)?");
+
+  /** Strings mapped to DATE fields, which hold dates without times. */
+  static final Pattern DATE_PATTERN = Pattern.compile("\\d{4}-\\d{2}-\\d{2}");
+  static final String DATE_FORMAT = "yyyy-MM-dd";
+
+  /** Doubles below this are exact integers if integral. */
+  static final double MAX_EXACT_LONG = 1L << 53;
+
   /**
    * An non-trivial unsatisfiable query is created with the
    * conjunction of a complex predicate and its negation.  A trivial
@@ -149,20 +194,42 @@ public class Search extends AbstractStore {
     }
   }
 
-  static final Map<Path, Search> CORPORA_BY_NAME = new LinkedHashMap<Path, Search>();
+  /** The most documents the search service accepts in one put. */
+  static final int MAX_PUT_DOCS = 200;
+
+  /** The most matches the search service sorts for one query. */
+  static final int MAX_SORTED_DOCS = 10000;
+
+  static final PathTrie<Search> CORPORA_BY_NAME = new PathTrie<Search>();
 
   final Index docIndex;
   final ProspectiveSearchIndex queryIndex;
   final Path corpusPath;
   final Search parent;
 
+  /**
+   * If true, the doc index writes of this corpus and its parents are
+   * started asynchronously and overlapped with the schema and
+   * prospective search updates, and all of their failures are
+   * reported together by a WritePipeline.WriteException.  Only the
+   * corpus written to needs it set.
+   */
+  boolean concurrentWrites = false;
+
+  /**
+   * If not null, puts to this corpus' doc index are buffered and
+   * batched, as described at DocWriter.  Pending puts are visible to
+   * retrieves by the same request but not to search until flushed.
+   */
+  DocWriter writer = null;
+
   /**
    * Create a new search store that is rooted at the given corpusPath,
    * which is itself prefixed by the (optional) given
    * parentCorpusPath.  Adding documents to the corpusPath will also
    * add them to the parentCorpusPath, recursively until the root.
    *
-   * A static map of path to Search objects is maintained to lookup
+   * A static trie of path to Search objects is maintained to lookup
    * the parent search object referenced by the given
    * parentCorpusPath, so it is necessary to first construct the
    * parent; otherwise an IllegalArgumentException will be thrown if
@@ -176,7 +243,7 @@ public class Search extends AbstractStore {
     logger.info(String.format("Creating search endpoint for corpusPath(%s), parentCorpusPath(%s)",
                               corpusPath, parentCorpusPath));
     this.corpusPath = corpusPath;
-    Search parent = CORPORA_BY_NAME.get(parentCorpusPath);
+    Search parent = parentCorpusPath == null ? null : CORPORA_BY_NAME.get(parentCorpusPath);
     if (parentCorpusPath != null && parent == null) {
       throw new IllegalArgumentException(String.format("No such parent(%s) for corpusPath(%s)\n",
                                                        parentCorpusPath, corpusPath));
@@ -190,6 +257,48 @@ public class Search extends AbstractStore {
     CORPORA_BY_NAME.put(corpusPath, this);
   }
 
+  /**
+   * Turns buffering of this corpus' doc index puts on or off,
+   * flushing the calling thread's buffer if off.
+   */
+  void setBufferWrites(boolean bufferWrites) {
+    if (bufferWrites) {
+      if (writer == null) {
+        writer = new DocWriter(docIndex);
+      }
+    } else if (writer != null) {
+      writer.flush();
+      writer = null;
+    }
+  }
+
+  /**
+   * Flushes the calling thread's buffered puts to all corpora, which
+   * should be done at the end of each request that may have written,
+   * before it responds.  Every corpus is flushed even if one fails,
+   * so that no puts are left for the thread's next request.
+   *
+   * @throws RuntimeException the first failure of a flush.
+   */
+  static void flushAll() {
+    RuntimeException failure = null;
+    for (Search corpus : CORPORA_BY_NAME.values()) {
+      if (corpus.writer != null) {
+        try {
+          corpus.writer.flush();
+        } catch (RuntimeException e) {
+          logger.warning(String.format("Failed flushing puts to %s: %s", corpus.corpusPath, e));
+          if (failure == null) {
+            failure = e;
+          }
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
   /**
    * Equivalent to create(new Path(path.toString() + Path.SEP + name), obj);
    *
@@ -222,12 +331,55 @@ public class Search extends AbstractStore {
     return path;
   }
 
+  /**
+   * Indexes all of the given objects with batched puts to the doc
+   * index.
+   *
+   * @throws ServiceException to wrap low-level checked exceptions.
+   */
+  @Override
+  public void updateAll(Map<Path, JSONObject> objs, User user) {
+    List<Path> paths = new ArrayList<Path>(objs.size());
+    List<Document> docs = new ArrayList<Document>(objs.size());
+    List<Entity> ents = new ArrayList<Entity>(objs.size());
+    for (Map.Entry<Path, JSONObject> entry : objs.entrySet()) {
+      Path path = entry.getKey();
+      if (!corpusPath.isParentOf(path)) {
+        throw new IllegalArgumentException(
+            String.format("path(%s) must be a sub-path of this corpusPath(%s)",
+                          path, corpusPath));
+      }
+      paths.add(path);
+      docs.add(jsonToDocument(path, entry.getValue()));
+      ents.add(Datastore.jsonToEntity(path, entry.getValue()));
+    }
+    try {
+      createAll(paths, docs, ents);
+    } catch (com.google.appengine.api.search.PutException e) {
+      throw new ServiceException(e);
+    }
+  }
+
   @Override
   public void delete(User user, Path ... paths) {
     String [] docIds = new String[paths.length];
     for (int i = 0; i < paths.length; i++) {
       docIds[i] = paths[i].toDocId();
     }
+    if (concurrentWrites) {
+      WritePipeline pipeline = new WritePipeline();
+      for (Search corpus = this; corpus != null; corpus = corpus.parent) {
+        if (corpus.writer != null) {
+          corpus.writer.remove(docIds);
+        }
+        pipeline.add(corpus.docIndex.deleteAsync(docIds));
+      }
+      pipeline.await();
+      return;
+    }
+    if (writer != null) {
+      writer.remove(docIds);
+    }
     docIndex.delete(docIds);
     if (parent != null) {
       parent.delete(user, paths);
@@ -316,19 +468,55 @@ public class Search extends AbstractStore {
                   user);
   }
 
+  @Override
+  public JSONObject list(Path path,
+                         String cursor, int limit, String [] fields, int [] order,
+                         String endpointId, long duration, User user) {
+    return search(path, Search.EMPTY_QUERY, cursor, limit, fields, order, endpointId, duration,
+                  user);
+  }
+
   @Override
   public JSONObject retrieve(Path path, User user) {
-    Document doc = docIndex.get(path.toDocId());
+    Document doc = writer == null ? null : writer.get(path.toDocId());
+    if (doc == null) {
+      doc = docIndex.get(path.toDocId());
+    }
     return doc == null ? null : documentToJson(doc);
   }
 
-  /** TODO(pmy): fields and order currently ignored. */
   @Override
   public JSONObject search(Path path, String query,
                            int offset, int limit,
                            String [] fields, int [] order,
                            String endpointId, long duration,
                            User user) {
+    return search(path, query, offset, null, limit, fields, order, endpointId, duration);
+  }
+
+  @Override
+  public JSONObject search(Path path, String query,
+                           String cursor, int limit,
+                           String [] fields, int [] order,
+                           String endpointId, long duration,
+                           User user) {
+    // The first page of a cursored search takes an empty cursor.
+    return search(path, query, 0,
+                  cursor == null ? Cursor.newBuilder().build() : Cursor.newBuilder().build(cursor),
+                  limit, fields, order, endpointId, duration);
+  }
+
+  /**
+   * Searches from the given cursor if not null, otherwise from the
+   * given offset.  The given field paths are projected from the
+   * returned docs, or just the doc ids are returned if fields is empty.
+   * The hits are sorted by the index as given by sortOptions.
+   *
+   * @throws IllegalArgumentException if the cursor, a field or the
+   * order is not valid.
+   */
+  JSONObject search(Path path, String query, int offset, Cursor cursor, int limit,
+                    String [] fields, int [] order, String endpointId, long duration) {
 
     query = fixupQuery(query);
 
@@ -364,8 +552,20 @@ public class Search extends AbstractStore {
     }
 
     QueryOptions.Builder queryOptions = QueryOptions.newBuilder();
-    queryOptions.setOffset(offset);
+    if (cursor != null) {
+      queryOptions.setCursor(cursor);
+    } else {
+      queryOptions.setOffset(offset);
+    }
     queryOptions.setLimit(limit);
+    // Selected fields are projected from the whole docs below, as the
+    // flattened fields of a nested object aren't known to the index.
+    if (fields != null && fields.length == 0) {
+      queryOptions.setReturningIdsOnly(true);
+    }
+    if (isOrdered(fields, order)) {
+      queryOptions.setSortOptions(sortOptions(path, fields, order));
+    }
     Results<ScoredDocument> results;
     try {
       results = docIndex.search(Query.newBuilder().setOptions(queryOptions.build()).build(query));
@@ -376,12 +576,16 @@ public class Search extends AbstractStore {
     JSONArray resultsJson = new JSONArray();
     for (ScoredDocument doc : results) {
       final JSONObject result = new JSONObject();
-      final JSONObject obj = documentToJson(doc);
+      final JSONObject obj = Util.jsonProject(documentToJson(doc), fields);
       Util.jsonPut(result, Path.fromDocId(doc.getId()).toString(), obj);
       resultsJson.put(result);
     }
     Util.jsonPut(rspJson, "results", resultsJson);
-    Util.jsonPut(rspJson, "offset", offset);
+    if (cursor == null) {
+      Util.jsonPut(rspJson, "offset", offset);
+    } else if (results.getCursor() != null) {
+      Util.jsonPut(rspJson, NEXT_FIELD, results.getCursor().toWebSafeString());
+    }
     Util.jsonPut(rspJson, "limit", Math.min(results.getNumberReturned(), limit));
 
     if (queryId != null) {
@@ -393,6 +597,71 @@ public class Search extends AbstractStore {
 
   // Helpers
 
+  /** Batched create, as the doc index accepts at most MAX_PUT_DOCS per put. */
+  void createAll(List<Path> paths, List<Document> docs, List<Entity> ents)
+      throws ServiceException {
+    debug("createAll: %d docs, corpusPath(%s)", docs.size(), corpusPath);
+    if (concurrentWrites) {
+      WritePipeline pipeline = new WritePipeline();
+      createAll(paths, docs, ents, pipeline);
+      pipeline.await();
+      return;
+    }
+    if (writer != null) {
+      writer.addAll(docs);
+    } else {
+      for (int i = 0; i < docs.size(); i += MAX_PUT_DOCS) {
+        docIndex.put(docs.subList(i, Math.min(i + MAX_PUT_DOCS, docs.size())));
+      }
+    }
+    for (int i = 0; i < paths.size(); i++) {
+      SchemaManager.updateSchema(paths.get(i), docs.get(i));
+      queryIndex.add(ents.get(i));
+    }
+    if (parent != null) {
+      parent.createAll(paths, docs, ents);
+    }
+  }
+
+  /**
+   * Starts the doc index puts of this corpus and its parents and then
+   * updates the schema and prospective search while they are in
+   * flight.  The schema is kept per directory, so is updated once
+   * rather than once per corpus.
+   */
+  void createAll(List<Path> paths, List<Document> docs, List<Entity> ents,
+                 WritePipeline pipeline) {
+    for (Search corpus = this; corpus != null; corpus = corpus.parent) {
+      if (corpus.writer != null) {
+        corpus.writer.addAll(docs);
+        continue;
+      }
+      for (int i = 0; i < docs.size(); i += MAX_PUT_DOCS) {
+        pipeline.add(corpus.docIndex.putAsync(
+            docs.subList(i, Math.min(i + MAX_PUT_DOCS, docs.size()))));
+      }
+    }
+    for (int i = 0; i < paths.size(); i++) {
+      final Path path = paths.get(i);
+      final Document doc = docs.get(i);
+      pipeline.run(new Runnable() {
+          public void run() {
+            SchemaManager.updateSchema(path, doc);
+          }
+        });
+    }
+    for (Search corpus = this; corpus != null; corpus = corpus.parent) {
+      final ProspectiveSearchIndex queryIndex = corpus.queryIndex;
+      for (final Entity ent : ents) {
+        pipeline.run(new Runnable() {
+            public void run() {
+              queryIndex.add(ent);
+            }
+          });
+      }
+    }
+  }
+
   /**
    * Add to search and prospective and tail-recursively call
    * parent.create.
@@ -402,7 +671,19 @@ public class Search extends AbstractStore {
     debug("create: path(%s), objAsDoc(%s), objAsEnt(%s), corpusPath(%s)",
           path, objAsDoc, objAsEnt, corpusPath);
 
-    docIndex.put(objAsDoc);
+    if (concurrentWrites) {
+      WritePipeline pipeline = new WritePipeline();
+      createAll(Collections.singletonList(path), Collections.singletonList(objAsDoc),
+                Collections.singletonList(objAsEnt), pipeline);
+      pipeline.await();
+      return;
+    }
+
+    if (writer != null) {
+      writer.add(objAsDoc);
+    } else {
+      docIndex.put(objAsDoc);
+    }
 
     // Update schema at this path to include the fields of the given
     // doc.
@@ -434,14 +715,30 @@ public class Search extends AbstractStore {
   // TODO(pmy): consolidate jsonToEntity mapping with Search and
   // delegate for customziation.
 
+  /**
+   * Maps the fields of the given object to typed document fields:
+   *
+   * <pre>
+   * Integer, Long, Double        -> NUMBER, or ATOM if beyond MAX_NUMBER
+   * Boolean                      -> ATOM "true" or "false"
+   * "2012-03-14"                 -> DATE
+   * "12", "-1.5"                 -> TEXT, see NUMBER_ATOM_PATTERN
+   * "user_1", "a-b", "x@y.com"   -> ATOM, see isAtom
+   * JSONObject                   -> its fields, named [name]__[field],
+   *                                 escaped by escapeFieldName
+   * anything else                -> TEXT
+   * </pre>
+   *
+   * so that NUMBER and DATE fields may be range queried and sorted,
+   * and identifiers matched exactly.  Numbers beyond MAX_NUMBER, which
+   * the index rejects, may only be matched exactly.  documentToJson
+   * reverses this.
+   */
   static Document jsonToDocument(Path path, JSONObject json) {
     final Document.Builder docBuilder = Document.newBuilder();
-    Util.visitJson(json, new Util.Visitor() {
-        // TODO(pmy): handle different val types.
-        public void visit(String key, Object val) {
-          docBuilder.addField(Field.newBuilder().setName(key).setText(val.toString()));
-        }
-      });
+    Map<String, Field.FieldType> types =
+      SchemaManager.getSchema(SchemaManager.schemaKey(path)).types;
+    Util.visitJson(json, new FieldVisitor(docBuilder, "", types));
 
     docBuilder.setId(path.toDocId());
     docBuilder.addField(Field.newBuilder().setName(INTERNAL_QUERY_FIELD_PATH)
@@ -457,9 +754,203 @@ public class Search extends AbstractStore {
     return json;
   }
 
+  /**
+   * Adds a typed field for each visited value, as described at
+   * jsonToDocument, with names prefixed by those of the enclosing
+   * objects.
+   */
+  static class FieldVisitor extends Util.Visitor {
+    final Document.Builder docBuilder;
+    final String prefix;
+    /** The field types recorded in the doc's schema. */
+    final Map<String, Field.FieldType> types;
+
+    FieldVisitor(Document.Builder docBuilder, String prefix,
+                 Map<String, Field.FieldType> types) {
+      this.docBuilder = docBuilder;
+      this.prefix = prefix;
+      this.types = types;
+    }
+
+    String name(String key) {
+      return prefix + escapeFieldName(key);
+    }
+
+    Field.Builder field(String key) {
+      return Field.newBuilder().setName(name(key));
+    }
+
+    void visit(String key, Object val) {
+      docBuilder.addField(field(key).setText(val.toString()));
+    }
+
+    void visit(String key, Boolean val) {
+      docBuilder.addField(field(key).setAtom(val.toString()));
+    }
+
+    void visit(String key, Double val) {
+      number(key, val, val);
+    }
+
+    void visit(String key, Integer val) {
+      number(key, val, val);
+    }
+
+    void visit(String key, Long val) {
+      number(key, val, val);
+    }
+
+    void number(String key, double num, Object val) {
+      if (Math.abs(num) <= MAX_NUMBER) {
+        docBuilder.addField(field(key).setNumber(num));
+      } else {
+        docBuilder.addField(field(key).setAtom(val.toString()));
+      }
+    }
+
+    void visit(String key, JSONObject val) {
+      Util.visitJson(val, new FieldVisitor(docBuilder, name(key) + NESTED_SEP, types));
+    }
+
+    void visit(String key, String val) {
+      Date date = parseDate(val);
+      if (date != null) {
+        docBuilder.addField(field(key).setDate(date));
+      } else if (isAtom(types.get(name(key)), val)) {
+        docBuilder.addField(field(key).setAtom(val));
+      } else {
+        docBuilder.addField(field(key).setText(val));
+      }
+    }
+  }
+
+  /**
+   * @return true if the given string, which isn't a date, is mapped
+   * to an ATOM rather than TEXT.  A field keeps the type recorded for
+   * it in its schema, so that it doesn't flip between docs with the
+   * value, which would rewrite the schema and change how the field is
+   * matched and sorted.  Only a field without one is typed by its
+   * value, by ATOM_PATTERN.  Strings that an ATOM would read back as
+   * a boolean or number, or that are too long for one, are TEXT
+   * regardless, which then records the field as TEXT.
+   */
+  static boolean isAtom(Field.FieldType recorded, String val) {
+    if (val.equals("true") || val.equals("false") || val.length() > MAX_ATOM_LENGTH
+        || NUMBER_ATOM_PATTERN.matcher(val).matches()) {
+      return false;
+    }
+    if (recorded == Field.FieldType.ATOM || recorded == Field.FieldType.TEXT) {
+      return recorded == Field.FieldType.ATOM;
+    }
+    return ATOM_PATTERN.matcher(val).matches();
+  }
+
+  /**
+   * @return the given object key escaped for use in a field name, so
+   * that names joined by NESTED_SEP can be split again.  An
+   * underscore is written as "_1" if at either end of the key, next
+   * to another or followed by a 1, so that an escaped key neither
+   * contains NESTED_SEP nor ends with an underscore, and is otherwise
+   * left as is, so that e.g. user_id is unchanged.
+   */
+  static String escapeFieldName(String key) {
+    if (key.indexOf('_') == -1) {
+      return key;
+    }
+    int len = key.length();
+    StringBuilder sb = new StringBuilder(len + 4);
+    for (int i = 0; i < len; i++) {
+      char c = key.charAt(i);
+      sb.append(c);
+      if (c == '_'
+          && (i == 0 || i == len - 1 || key.charAt(i - 1) == '_'
+              || key.charAt(i + 1) == '_' || key.charAt(i + 1) == '1')) {
+        sb.append('1');
+      }
+    }
+    return sb.toString();
+  }
+
+  /** The reverse of escapeFieldName. */
+  static String unescapeFieldName(String name) {
+    return name.replace("_1", "_");
+  }
+
+  /**
+   * @return the document field name of the given field path, whose
+   * names are separated by the given separator, e.g. Util.FIELD_SEP.
+   */
+  static String toFieldName(String fieldPath, String sep) {
+    StringBuilder sb = new StringBuilder();
+    for (String name : fieldPath.split(Pattern.quote(sep))) {
+      if (sb.length() > 0) {
+        sb.append(NESTED_SEP);
+      }
+      sb.append(escapeFieldName(name));
+    }
+    return sb.toString();
+  }
+
+  /** @return the given ISO date, e.g. 2012-03-14, or null if not one. */
+  static Date parseDate(String val) {
+    if (!DATE_PATTERN.matcher(val).matches()) {
+      return null;
+    }
+    try {
+      return newDateFormat().parse(val);
+    } catch (ParseException e) {
+      return null;
+    }
+  }
+
+  /** SimpleDateFormat isn't thread-safe, so one is made per use. */
+  static SimpleDateFormat newDateFormat() {
+    SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    format.setLenient(false);
+    return format;
+  }
+
+  /**
+   * @return options sorting by each of the given fields with a
+   * non-zero order, using the schema of the path's children for the
+   * type of its default value.  Docs without a sorted field sort as
+   * if it were zero, empty or the epoch.  The index sorts only the
+   * first MAX_SORTED_DOCS matches, so that is the most that are
+   * sorted exactly.
+   */
+  static SortOptions sortOptions(Path path, String [] fields, int [] order) {
+    Map<String, Field.FieldType> types =
+      SchemaManager.getSchema(SchemaManager.childSchemaKey(path)).types;
+    SortOptions.Builder sortOptions = SortOptions.newBuilder().setLimit(MAX_SORTED_DOCS);
+    for (int i = 0; i < order.length; i++) {
+      if (order[i] == 0) {
+        continue;
+      }
+      String name = toFieldName(fields[i], Util.FIELD_SEP);
+      SortExpression.Builder sort = SortExpression.newBuilder()
+        .setExpression(name)
+        .setDirection(order[i] > 0
+                      ? SortExpression.SortDirection.ASCENDING
+                      : SortExpression.SortDirection.DESCENDING);
+      Field.FieldType type = types.get(name);
+      if (type == Field.FieldType.NUMBER) {
+        sort.setDefaultValueNumeric(0);
+      } else if (type == Field.FieldType.DATE) {
+        sort.setDefaultValueDate(new Date(0));
+      } else {
+        sort.setDefaultValue("");
+      }
+      sortOptions.addSortExpression(sort);
+    }
+    return sortOptions.build();
+  }
+
   /**
    * Creates a JSONObject with the same fields as the given document,
-   * except internal fields are not mapped.
+   * except internal fields are not mapped.  Values are restored to
+   * the types mapped by jsonToDocument, with integral NUMBERs as
+   * Longs, and flattened fields nested again.
    */
   static JSONObject documentToJson(Document doc) {
     JSONObject json = new JSONObject();
@@ -472,15 +963,43 @@ public class Search extends AbstractStore {
       switch (field.getType()) {
         case TEXT: val = field.getText(); break;
         case HTML: val = field.getHTML(); break;
-        case ATOM: val = field.getAtom(); break;
-        case DATE: val = field.getDate(); break;
+        case ATOM:
+          val = atomToValue(field.getAtom());
+          break;
+        case DATE: val = newDateFormat().format(field.getDate()); break;
+        case NUMBER:
+          double num = field.getNumber();
+          val = num == Math.rint(num) && Math.abs(num) < MAX_EXACT_LONG ? (Object) (long) num : num;
+          break;
+      }
+      JSONObject obj = json;
+      String [] names = fieldName.split(NESTED_SEP);
+      for (int i = 0; i < names.length - 1; i++) {
+        String name = unescapeFieldName(names[i]);
+        JSONObject nested = obj.optJSONObject(name);
+        if (nested == null) {
+          Util.jsonPut(obj, name, nested = new JSONObject());
+        }
+        obj = nested;
       }
-      Util.jsonPut(json, fieldName, val);
+      Util.jsonPut(obj, unescapeFieldName(names[names.length - 1]), val);
     }
     // Order matters.. override any field called "id".
     return json;
   }
 
+  /** @return the value mapped to the given ATOM by jsonToDocument. */
+  static Object atomToValue(String atom) {
+    if (atom.equals("true") || atom.equals("false")) {
+      return Boolean.valueOf(atom);
+    }
+    if (NUMBER_ATOM_PATTERN.matcher(atom).matches()) {
+      return atom.indexOf('.') == -1 && atom.indexOf('E') == -1
+        ? (Object) Long.valueOf(atom) : Double.valueOf(atom);
+    }
+    return atom;
+  }
+
   // Misc helpers.
   static String fixupQuery(String query) {
     if (query == null) {
@@ -495,13 +1014,7 @@ public class Search extends AbstractStore {
    * Helper to generate parent path prefixes.
    */
   static String makePathTokens(Path path) {
-    String toks = "";
-    do {
-      toks += " " + path.toDocId();
-    } while ((path = path.getParent()) != Path.ROOT);
-    toks = toks + " " + Path.ROOT.toDocId();
-    System.err.printf("!!!! makePathTokens %s\n", toks);
-    return toks.trim();
+    return path.getPathTokens();
   }
 
   void debug(String format, Object ... args) {
@@ -14,15 +14,35 @@
  */
 package com.google.code.datahub;
 
+import com.google.appengine.api.datastore.ConcurrentModificationException;
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import static com.google.appengine.api.datastore.FetchOptions.Builder.*;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -47,6 +67,33 @@ class SecureDatastore extends Datastore {
 
   protected static final Logger logger = Logger.getLogger(Datastore.class.getName() + "_ACLs");
 
+  /** Cross-request cache of ACLs, and of their absence, by ACL key. */
+  final AclCache aclCache = new AclCache();
+
+  final boolean materializeAcls;
+
+  SecureDatastore() {
+    this(KeyLayout.ROOTED);
+  }
+
+  SecureDatastore(KeyLayout layout) {
+    this(layout, false);
+  }
+
+  /**
+   * @param materializeAcls whether ACL changes are pushed down to the
+   * effective ACLs of the paths below them, as described at
+   * propagateAcls.
+   */
+  SecureDatastore(KeyLayout layout, boolean materializeAcls) {
+    super(layout);
+    this.materializeAcls = materializeAcls;
+    if (materializeAcls) {
+      // Propagation tasks may reach an instance which hasn't changed an ACL.
+      Tasks.register(propagator);
+    }
+  }
+
   @Override
   public Path create(Path parent, JSONObject json, User user) {
     assertAllowed(parent, user, Op.CREATE);
@@ -65,6 +112,33 @@ class SecureDatastore extends Datastore {
       assertAllowed(path, user, Op.DELETE);
     }
     super.delete(user, paths);
+    if (materializeAcls) {
+      for (Path path : paths) {
+        aclCache.invalidate(createAclKey(path, EFFECTIVE_ACL_KIND));
+      }
+    }
+  }
+
+  /**
+   * The effective ACLs of deleted paths are deleted with them, else a
+   * path recreated at the same key would be checked against the ACL
+   * materialized for its predecessor, though an ancestor's ACL may
+   * have changed since.
+   */
+  @Override
+  List<Key> dependentKeys(Path ... paths) {
+    if (!materializeAcls) {
+      return Collections.emptyList();
+    }
+    List<Key> heads = new ArrayList<Key>(paths.length);
+    for (Path path : paths) {
+      heads.add(createAclKey(path, EFFECTIVE_ACL_KIND));
+    }
+    List<Key> keys = new ArrayList<Key>(heads);
+    for (Entity head : service.get(heads).values()) {
+      keys.addAll(StoredAcl.shardKeys(head.getKey(), StoredAcl.getShardCount(head)));
+    }
+    return keys;
   }
 
   @Override
@@ -76,12 +150,37 @@ class SecureDatastore extends Datastore {
     return super.list(path, offset, limit, fields, order, reqEndpointId, duration, user);
   }
 
+  @Override
+  public JSONObject list(Path path,
+                         String cursor, int limit, String [] fields, int [] order,
+                         String reqEndpointId, long duration,
+                         User user) {
+    assertAllowed(path, user, Op.READ);
+    return super.list(path, cursor, limit, fields, order, reqEndpointId, duration, user);
+  }
+
   @Override
   public JSONObject retrieve(Path path, User user) {
     assertAllowed(path, user, Op.READ);
     return super.retrieve(path, user);
   }
 
+  @Override
+  public JSONObject retrieveAll(User user, Path ... paths) {
+    for (Path path : paths) {
+      assertAllowed(path, user, Op.READ);
+    }
+    return super.retrieveAll(user, paths);
+  }
+
+  @Override
+  public void updateAll(Map<Path, JSONObject> objs, User user) {
+    for (Path path : objs.keySet()) {
+      assertAllowed(path, user, Op.UPDATE);
+    }
+    super.updateAll(objs, user);
+  }
+
   @Override
   public void update(Path path, JSONObject json, User user) {
     try {
@@ -109,19 +208,39 @@ class SecureDatastore extends Datastore {
     return super.search(path, query, offset, limit, fields, order, endpointId, duration, user);
   }
 
+  @Override
+  public JSONObject search(Path path,
+                           String query,
+                           String cursor, int limit,
+                           String [] fields, int [] order,
+                           String endpointId, long duration,
+                           User user) {
+    assertAllowed(path, user, Op.READ);
+    return super.search(path, query, cursor, limit, fields, order, endpointId, duration, user);
+  }
+
   // ACL API.
 
   static enum ControlType { RESTRICT, ALLOW };
   static final String ACL_KIND = "acl";
   static final String ACL_KEY_ALLOW = "allow";
+  static final int ACL_TXN_RETRIES = 5;
+  /**
+   * The indexed property of an ACL head listing its path and that
+   * path's ancestors, by which getReadableSubtrees finds the ACLs
+   * within a subtree.
+   */
+  static final String ACL_PATHS_PROP = "paths";
 
   /**
    * @throws OperationRestrictedException If the given tuple is restricted.
    * @throws NotFoundException If the given path does not exist.
    */
   public void assertAllowed(Path path, User user, Op op) throws SecurityException {
-    String euid = user.getEffectiveUID();
-    logger.fine(String.format("path(%s) uid(%s) operation(%s)", path, euid, op));
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine(String.format("path(%s) uid(%s) operation(%s)",
+                                path, user.getEffectiveUID(), op));
+    }
     if (isRestricted(path, user, op)) {
       throw new OperationRestrictedException(path, user, op);
     }
@@ -136,18 +255,85 @@ class SecureDatastore extends Datastore {
   }
 
   public boolean isAllowed(Path path, User user, Op op) throws SecurityException {
-    // return isControlled(path, ControlType.ALLOW, user, op);
-    return getControlLevel(path, ControlType.ALLOW, user, op)
-      >= getControlLevel(path, ControlType.RESTRICT, user, op);
+    return !isRestricted(path, user, op);
   }
-  // getControlLevel(ALLOW) >= getControlLevel(RESTRICT).
 
+  /**
+   * Decisions are memoized in the user's AuthContext, so repeated
+   * checks within a request are free.
+   */
   public boolean isRestricted(Path path, User user, Op op) throws SecurityException {
-    // return isControlled(path, ControlType.RESTRICT, user, op);
-    return getControlLevel(path, ControlType.ALLOW, user, op)
-      < getControlLevel(path, ControlType.RESTRICT, user, op);
+    AuthContext auth = user.authContext.validate(this, aclCache.generation());
+    byte decision = auth.getDecision(path, op);
+    if (decision != AuthContext.UNKNOWN) {
+      return decision == AuthContext.RESTRICTED;
+    }
+    int [] uids = lookupUids(getPrincipals(user));
+    CompiledAcl effective = null;
+    // Effective ACLs are per principal, so can't decide for a member
+    // of groups, whose principals may be controlled at other levels.
+    if (materializeAcls && uids.length == 1 && !isPropagating(path)) {
+      effective = getCachedAcl(createAclKey(path, EFFECTIVE_ACL_KIND));
+    }
+    boolean restricted = effective != null
+      ? isRestricted(effective, uids[0], op)
+      : isRestricted(getAncestorAcls(path, auth), uids, op);
+    auth.putDecision(path, op, restricted);
+    return restricted;
+  }
+
+  /**
+   * Decides restriction from a materialized effective ACL, which
+   * asserts at most one control type per user and op.
+   */
+  static boolean isRestricted(CompiledAcl effective, int uid, Op op) {
+    int mask = effective.getMask(uid);
+    return (mask & CompiledAcl.bit(ControlType.ALLOW, op)) == 0
+      && (mask & CompiledAcl.bit(ControlType.RESTRICT, op)) != 0;
+  }
+
+  /**
+   * Decides restriction for the given interned principals from the
+   * given compiled ancestor ACLs, as returned by getAncestorAcls, in
+   * O(depth * principals) bit tests and without allocation.  The
+   * controls of all of a user's principals in one ACL are combined.
+   * Equivalent to ControlLevels.isRestricted.
+   */
+  static boolean isRestricted(CompiledAcl [] acls, int [] uids, Op op) {
+    final int allowBit = CompiledAcl.bit(ControlType.ALLOW, op);
+    final int restrictBit = CompiledAcl.bit(ControlType.RESTRICT, op);
+    // The deepest assertion of either type decides; allow wins a tie.
+    for (int len = acls.length - 1; len >= 0; len--) {
+      if (acls[len] == null) {
+        continue;
+      }
+      int mask = getMask(acls[len], uids);
+      if ((mask & allowBit) != 0) {
+        return false;
+      }
+      if ((mask & restrictBit) != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** @return the union of the masks asserted for the given uids. */
+  static int getMask(CompiledAcl acl, int [] uids) {
+    int mask = 0;
+    for (int uid : uids) {
+      mask |= acl.getMask(uid);
+    }
+    return mask;
+  }
+
+  static int [] lookupUids(String [] principals) {
+    int [] uids = new int[principals.length];
+    for (int i = 0; i < principals.length; i++) {
+      uids[i] = CompiledAcl.lookupUid(principals[i]);
+    }
+    return uids;
   }
-  // getControlLevel(ALLOW) < getControlLevel(RESTRICT).
 
   public void setAllowed(Path path, User user, Op op) throws SecurityException {
     setControl(path, ControlType.ALLOW, user, op);
@@ -160,14 +346,7 @@ class SecureDatastore extends Datastore {
   // Shared helpers for restrict/allow publics above.
 
   void clearControl(Path path, ControlType cType, User user, Op op) throws SecurityException {
-    String euid = user.getEffectiveUID();
-    logger.fine(String.format("path(%s) uid(%s) operation(%s)", path, euid, op));
-    JSONObject acl = getAcl(path);
-    if (acl == null) {
-      return;
-    }
-    clearInAcl(acl, cType, euid, op);
-    saveAcl(path, acl);
+    updateControl(path, cType, user, op, false);
   }
 
   /**
@@ -175,38 +354,173 @@ class SecureDatastore extends Datastore {
    * set, or -1 if not set.
    */
   int getControlLevel(Path path, ControlType cType, User user, Op op) throws SecurityException {
-    String euid = user.getEffectiveUID();
-    logger.fine(String.format("path(%s) type(%s) uid(%s) operation(%s)", path, cType, euid, op));
-    // TODO(pmy): iteration order is from path to root; could be reversed.
-    Path curPath = path;
-    do {
-      JSONObject acl = getAcl(curPath);
-      if (acl != null && isAssertedInAcl(acl, cType, euid, op)) {
-        return curPath.getLength();
-        // return true;
+    ControlLevels levels = resolveControlLevels(path, user, op);
+    return cType == ControlType.ALLOW ? levels.allow : levels.restrict;
+  }
+
+  /**
+   * The levels of both control types for a (path, user, op) tuple, as
+   * defined by getControlLevel.  The operation is restricted if the
+   * deepest restriction is below the deepest allowance.
+   */
+  static class ControlLevels {
+    final int allow, restrict;
+    ControlLevels(int allow, int restrict) {
+      this.allow = allow;
+      this.restrict = restrict;
+    }
+    boolean isRestricted() {
+      return allow < restrict;
+    }
+  }
+
+  /**
+   * Resolves both control levels from the ACLs of the given path and
+   * its ancestors, which are fetched in a single batch get so that the
+   * cost in datastore round trips doesn't grow with path depth.
+   */
+  ControlLevels resolveControlLevels(Path path, User user, Op op) {
+    int [] uids = lookupUids(getPrincipals(user));
+    CompiledAcl [] acls =
+      getAncestorAcls(path, user.authContext.validate(this, aclCache.generation()));
+    final int allowBit = CompiledAcl.bit(ControlType.ALLOW, op);
+    final int restrictBit = CompiledAcl.bit(ControlType.RESTRICT, op);
+    int allow = -1, restrict = -1;
+    for (int len = acls.length - 1; len >= 0 && (allow == -1 || restrict == -1); len--) {
+      if (acls[len] == null) {
+        continue;
+      }
+      int mask = getMask(acls[len], uids);
+      if (allow == -1 && (mask & allowBit) != 0) {
+        allow = len;
+      }
+      if (restrict == -1 && (mask & restrictBit) != 0) {
+        restrict = len;
       }
-    } while ((curPath = curPath.getParent()) != Path.ROOT);
-    JSONObject acl = getAcl(Path.ROOT);
-    if (acl != null && isAssertedInAcl(acl, cType, euid, op)) {
-      return 0;
-      // return true;
     }
-    return -1;
-    // return false;
+    return new ControlLevels(allow, restrict);
   }
 
   void setControl(Path path, ControlType cType, User user, Op op) throws SecurityException {
+    updateControl(path, cType, user, op, true);
+  }
+
+  /**
+   * Sets or clears one control for one user, in a transaction on the
+   * ACL's entity group, which holds its head and shards, retried up to
+   * ACL_TXN_RETRIES times on contention so that concurrent changes to
+   * one ACL aren't lost.  Only the head or shard entity holding the
+   * user is rewritten, unless the ACL is still in the original format
+   * and so is converted, or has outgrown its shards.
+   *
+   * If ACLs are materialized, a change also starts its propagation in
+   * the same, then cross-group, transaction, as described at
+   * propagateAcls.
+   *
+   * @return true if the ACL was changed.
+   */
+  boolean updateControl(Path path, ControlType cType, User user, Op op, boolean set) {
     String euid = user.getEffectiveUID();
-    logger.fine(String.format("path(%s) uid(%s) operation(%s)", path, euid, op));
-    JSONObject acl = getAcl(path);
-    if (acl == null) {
-      acl = new JSONObject();
+    logger.fine(String.format("path(%s) uid(%s) operation(%s) set(%s)", path, euid, op, set));
+    Key aclKey = createAclKey(path);
+    int bit = CompiledAcl.bit(cType, op);
+    for (int tries = 1; ; tries++) {
+      Transaction txn = materializeAcls
+        ? service.beginTransaction(TransactionOptions.Builder.withXG(true))
+        : service.beginTransaction();
+      try {
+        boolean changed = updateControl(txn, aclKey, euid, bit, set);
+        if (changed && materializeAcls) {
+          startPropagation(txn, path);
+        }
+        txn.commit();
+        if (changed) {
+          aclCache.invalidate(aclKey);
+          if (materializeAcls) {
+            expireMarker(getMarkedSubtree(path));
+          }
+        }
+        return changed;
+      } catch (ConcurrentModificationException e) {
+        if (tries == ACL_TXN_RETRIES) {
+          throw e;
+        }
+        logger.fine("Retrying ACL update: " + aclKey);
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
     }
-    setControlInAcl(acl, cType, euid, op);
-    saveAcl(path, acl);
   }
 
-  // ACL manipulation.
+  /** Sets or clears the given bit for one uid within the given transaction. */
+  boolean updateControl(Transaction txn, Key aclKey, String euid, int bit, boolean set) {
+    Entity head;
+    try {
+      head = service.get(txn, aclKey);
+    } catch (EntityNotFoundException e) {
+      if (!set) {
+        return false;
+      }
+      head = null;
+    }
+
+    if (head == null || StoredAcl.isLegacy(head)) {
+      Map<String, Integer> masks = head == null
+        ? new HashMap<String, Integer>()
+        : StoredAcl.fromLegacy(entityToJson(head));
+      Integer mask = masks.get(euid);
+      int newMask = updateMask(mask == null ? 0 : mask, bit, set);
+      if (newMask == 0) {
+        masks.remove(euid);
+      } else {
+        masks.put(euid, newMask);
+      }
+      saveAcl(txn, aclKey, masks, 0, 0);
+      return true;
+    }
+
+    int numShards = StoredAcl.getShardCount(head);
+    Entity part = head;
+    if (numShards > 0) {
+      Key shardKey = StoredAcl.shardKey(aclKey, StoredAcl.shardOf(euid, numShards));
+      try {
+        part = service.get(txn, shardKey);
+      } catch (EntityNotFoundException e) {
+        part = new Entity(shardKey);
+      }
+    }
+    int mask = StoredAcl.getMask(part, euid);
+    int newMask = updateMask(mask, bit, set);
+    if (newMask == mask) {
+      return false;
+    }
+    StoredAcl.setMask(part, euid, newMask);
+    int count = StoredAcl.countUids(part);
+    if (numShards == 0 && count > StoredAcl.MAX_INLINE_UIDS) {
+      saveAcl(txn, aclKey, StoredAcl.readMasks(head, new HashMap<String, Integer>()), 0, 0);
+    } else if (numShards > 0 && count > StoredAcl.MAX_SHARD_UIDS) {
+      Map<String, Integer> masks = new HashMap<String, Integer>();
+      for (Entity shard : service.get(txn, StoredAcl.shardKeys(aclKey, numShards)).values()) {
+        StoredAcl.readMasks(shard, masks);
+      }
+      masks.put(euid, newMask);
+      saveAcl(txn, aclKey, masks, numShards * 2, numShards);
+    } else if (numShards == 0 && count == 0) {
+      service.delete(txn, aclKey);
+    } else {
+      service.put(txn, part);
+    }
+    return true;
+  }
+
+  static int updateMask(int mask, int bit, boolean set) {
+    return set ? mask | bit : mask & ~bit;
+  }
+
+  // Manipulation of ACLs in the original JSON format, as read by
+  // StoredAcl.fromLegacy.
 
   void clearInAcl(JSONObject acl, ControlType controlType, String uid, Op op) {
     // TODO(pmy): remove empty acl containers.
@@ -228,25 +542,6 @@ class SecureDatastore extends Datastore {
       });
   }
 
-  boolean isAssertedInAcl(JSONObject acl, ControlType controlType, String uid, Op op) {
-    JSONObject control = Util.jsonGet(acl, controlType.name());
-    if (control == null) {
-      return false;
-    }
-
-    JSONArray controlledUids = getControlledAcls(control, op);
-    if (controlledUids == null) {
-      return false;
-    }
-
-    if (findUid(controlledUids, uid, new UserVisitor())) {
-      return true;
-    }
-
-    logger.fine("Missing user in acl op list, so not controlled");
-    return false;
-  }
-
   void setControlInAcl(JSONObject acl, ControlType controlType, String uid, Op op) {
     JSONObject control = Util.jsonGet(acl, controlType.name());
     if (control == null) {
@@ -306,37 +601,894 @@ class SecureDatastore extends Datastore {
   // ACL storage.
 
   Key createAclKey(Path path) {
-    Key pathKey = path.toKey();
+    return createAclKey(path, ACL_KIND);
+  }
+
+  /** @return the key of the given kind that mirrors the path's key. */
+  Key createAclKey(Path path, String kind) {
+    return createAclKey(path, kind, layout);
+  }
+
+  /** As createAclKey(Path, String), for the path's key in the given layout. */
+  static Key createAclKey(Path path, String kind, KeyLayout layout) {
+    Key pathKey = path.toKey(layout);
     if (pathKey.getName() == null) {
-      return KeyFactory.createKey(pathKey.getParent(), ACL_KIND, pathKey.getId());
+      return KeyFactory.createKey(pathKey.getParent(), kind, pathKey.getId());
     } else {
-      return KeyFactory.createKey(pathKey.getParent(), ACL_KIND, pathKey.getName());
+      return KeyFactory.createKey(pathKey.getParent(), kind, pathKey.getName());
     }
   }
 
+  /** Migrates ACLs along with the paths they control. */
+  @Override
+  void migrateLayout(Path corpusPath, KeyLayout from) {
+    super.migrateLayout(corpusPath, from);
+    aclCache.clear();
+  }
+
+  /**
+   * A path's ACL and effective ACL mirror its key, so are stored
+   * beside it, with their shards below them.
+   */
+  @Override
+  List<Key> siblingKeys(Path path, KeyLayout from) {
+    return Arrays.asList(createAclKey(path, ACL_KIND, from),
+                         createAclKey(path, EFFECTIVE_ACL_KIND, from));
+  }
+
+  @Override
+  boolean isMigrated(Key key) {
+    String kind = key.getKind();
+    return super.isMigrated(key) || kind.equals(ACL_KIND) || kind.equals(EFFECTIVE_ACL_KIND)
+      || kind.equals(StoredAcl.SHARD_KIND);
+  }
+
+  /**
+   * ACL and effective ACL keys mirror the keys of their paths, so are
+   * migrated by recovering the path key.  ACL shards follow their
+   * heads.
+   */
+  @Override
+  Key migrateKey(Key key, KeyLayout from) {
+    if (key.getKind().equals(StoredAcl.SHARD_KIND)) {
+      return KeyLayout.relink(key, migrateKey(key.getParent(), from));
+    }
+    if (!key.getKind().equals(ACL_KIND) && !key.getKind().equals(EFFECTIVE_ACL_KIND)) {
+      return super.migrateKey(key, from);
+    }
+    return createAclKey(aclKeyToPath(key, from), key.getKind());
+  }
+
+  /** The reverse of createAclKey, for keys in the given layout. */
+  static Path aclKeyToPath(Key aclKey, KeyLayout layout) {
+    Key pathKey = aclKey.getName() == null
+      ? KeyFactory.createKey(aclKey.getParent(), Path.PATH_KIND, aclKey.getId())
+      : KeyFactory.createKey(aclKey.getParent(), Path.PATH_KIND, aclKey.getName());
+    return Path.fromKey(pathKey, layout);
+  }
+
   // TODO(pmy): would be nice to hand back only the needed part of the
   // acl.
-  // TODO(pmy): cache key ACLs.
-  JSONObject getAcl(Path path) {
-    Key aclKey = createAclKey(path);
-    Entity aclEntity;
+  /**
+   * @return the possibly cached, compiled ACL for the given path, or
+   * null if it has none.
+   */
+  CompiledAcl getAcl(Path path) {
+    return getCachedAcl(createAclKey(path));
+  }
+
+  /** As getAcl, by ACL key. */
+  CompiledAcl getCachedAcl(Key aclKey) {
+    AclCache.Entry cached = aclCache.get(aclKey);
+    if (cached != null) {
+      return cached.acl;
+    }
+    long generation = aclCache.generation();
+    CompiledAcl compiled = loadAcls(Collections.singletonList(aclKey)).get(aclKey);
+    aclCache.put(aclKey, compiled, generation);
+    return compiled;
+  }
+
+  /**
+   * Loads and compiles the stored ACLs for the given keys, as
+   * described at loadMasks.
+   *
+   * @return the compiled ACLs by key, without entries for keys that
+   * have no ACL.
+   */
+  Map<Key, CompiledAcl> loadAcls(List<Key> aclKeys) {
+    Map<Key, CompiledAcl> acls = new HashMap<Key, CompiledAcl>();
+    for (Map.Entry<Key, Map<String, Integer>> entry : loadMasks(aclKeys).entrySet()) {
+      acls.put(entry.getKey(), CompiledAcl.compile(entry.getValue()));
+    }
+    return acls;
+  }
+
+  /**
+   * Loads the stored ACLs for the given keys, in either format, with
+   * one batch get for the heads and at most one more for the shards
+   * of any sharded ACLs.
+   *
+   * @return the masks by uid of each ACL by key, without entries for
+   * keys that have no ACL.
+   */
+  Map<Key, Map<String, Integer>> loadMasks(List<Key> aclKeys) {
+    Map<Key, Entity> heads = service.get(aclKeys);
+    List<Key> shardKeys = new ArrayList<Key>();
+    for (Entity head : heads.values()) {
+      if (!StoredAcl.isLegacy(head)) {
+        shardKeys.addAll(StoredAcl.shardKeys(head.getKey(), StoredAcl.getShardCount(head)));
+      }
+    }
+    Map<Key, Entity> shards = shardKeys.isEmpty()
+      ? Collections.<Key, Entity>emptyMap() : service.get(shardKeys);
+    Map<Key, Map<String, Integer>> acls = new HashMap<Key, Map<String, Integer>>();
+    for (Entity head : heads.values()) {
+      if (StoredAcl.isLegacy(head)) {
+        acls.put(head.getKey(), StoredAcl.fromLegacy(entityToJson(head)));
+        continue;
+      }
+      Map<String, Integer> masks = StoredAcl.readMasks(head, new HashMap<String, Integer>());
+      for (Key shardKey : StoredAcl.shardKeys(head.getKey(), StoredAcl.getShardCount(head))) {
+        Entity shard = shards.get(shardKey);
+        if (shard != null) {
+          StoredAcl.readMasks(shard, masks);
+        }
+      }
+      acls.put(head.getKey(), masks);
+    }
+    return acls;
+  }
+
+  /**
+   * As getAncestorAcls(Path), memoized in the given context.  A path
+   * whose parent's ACLs are memoized, e.g. when checking the entries
+   * of a listing, costs only its own ACL.
+   */
+  CompiledAcl [] getAncestorAcls(Path path, AuthContext auth) {
+    CompiledAcl [] acls = auth.getAncestorAcls(path);
+    if (acls != null) {
+      return acls;
+    }
+    CompiledAcl [] parentAcls =
+      path.getLength() == 0 ? null : auth.getAncestorAcls(path.getParent());
+    if (parentAcls != null) {
+      acls = Arrays.copyOf(parentAcls, parentAcls.length + 1);
+      acls[parentAcls.length] = getAcl(path);
+    } else {
+      acls = getAncestorAcls(path);
+    }
+    auth.putAncestorAcls(path, acls);
+    return acls;
+  }
+
+  /**
+   * @return the compiled ACLs of the given path and each of its
+   * ancestors, indexed by path length so that the root's ACL is
+   * first.  Entries for paths without an ACL are null.  ACLs are taken
+   * from the cache where possible, and the rest loaded together by
+   * loadAcls.
+   */
+  CompiledAcl [] getAncestorAcls(Path path) {
+    Path [] ancestors = path.getAncestors();
+    Key [] aclKeys = new Key[ancestors.length];
+    for (int len = 0; len < aclKeys.length; len++) {
+      aclKeys[len] = createAclKey(ancestors[len]);
+    }
+    CompiledAcl [] acls = new CompiledAcl[aclKeys.length];
+    boolean [] cached = new boolean[aclKeys.length];
+    List<Key> missing = new ArrayList<Key>(aclKeys.length);
+    for (int len = 0; len < aclKeys.length; len++) {
+      AclCache.Entry entry = aclCache.get(aclKeys[len]);
+      if (entry == null) {
+        missing.add(aclKeys[len]);
+      } else {
+        acls[len] = entry.acl;
+        cached[len] = true;
+      }
+    }
+    if (!missing.isEmpty()) {
+      long generation = aclCache.generation();
+      Map<Key, CompiledAcl> loaded = loadAcls(missing);
+      for (int len = 0; len < aclKeys.length; len++) {
+        if (cached[len]) {
+          continue;
+        }
+        acls[len] = loaded.get(aclKeys[len]);
+        aclCache.put(aclKeys[len], acls[len], generation);
+      }
+    }
+    return acls;
+  }
+
+  /** Sets the ACL_PATHS_PROP of the given ACL head. */
+  void setAclPaths(Entity head) {
+    List<String> paths = new ArrayList<String>();
+    for (Path path : aclKeyToPath(head.getKey(), layout).getAncestors()) {
+      paths.add(path.toString());
+    }
+    head.setProperty(ACL_PATHS_PROP, paths);
+  }
+
+  /**
+   * Stores the given masks by uid as the whole ACL for the given key,
+   * removing any of its oldShards no longer used, within the given
+   * transaction, which may be null for none.
+   */
+  void saveAcl(Transaction txn, Key aclKey, Map<String, Integer> masks, int minShards,
+               int oldShards) {
+    int newShards = 0;
+    if (masks.isEmpty()) {
+      service.delete(txn, aclKey);
+    } else {
+      List<Entity> entities = StoredAcl.toEntities(aclKey, masks, minShards);
+      setAclPaths(entities.get(0));
+      newShards = entities.size() - 1;
+      service.put(txn, entities);
+    }
+    if (oldShards > newShards) {
+      service.delete(txn, StoredAcl.shardKeys(aclKey, oldShards).subList(newShards, oldShards));
+    }
+    logger.finer(String.format("saveAcl: aclKey(%s) uids(%d) shards(%d)",
+                               aclKey, masks.size(), newShards));
+  }
+
+  /**
+   * Converts all ACLs still in the original JSON format to the
+   * StoredAcl format, and sets the ACL_PATHS_PROP of those saved
+   * without it, in batches on the task queue.  Reads and writes
+   * handle both formats in the meantime, so this may run while the
+   * store is serving, though getReadableSubtrees misses the ACLs not
+   * yet converted.
+   */
+  void migrateAclFormat() {
+    logger.info("migrateAclFormat");
+    Query q = new Query(ACL_KIND).setKeysOnly();
+    Iterator<String> allKeysItr =
+        new Tasks.ToStringIterator<Entity>(service.prepare(q).asIterable().iterator()) {
+      public String next() {
+        return KeyFactory.keyToString(innerItr.next().getKey());
+      }
+    };
+
+    Tasks.Processor converter = new Tasks.Processor("migrateAclFormat") {
+        void process(String [] keyStrs) {
+          List<Key> keys = new ArrayList<Key>(keyStrs.length);
+          for (String keyStr : keyStrs) {
+            keys.add(KeyFactory.stringToKey(keyStr));
+          }
+          for (Entity head : service.get(keys).values()) {
+            if (StoredAcl.isLegacy(head)) {
+              saveAcl(null, head.getKey(), StoredAcl.fromLegacy(entityToJson(head)), 0, 0);
+              aclCache.invalidate(head.getKey());
+            } else if (!head.hasProperty(ACL_PATHS_PROP)) {
+              setAclPaths(head);
+              service.put(head);
+            }
+          }
+        }
+      };
+
+    Tasks.getInstance().enqueueProcess(allKeysItr, MIGRATE_BATCH_SIZE, converter);
+  }
+
+  // Readable subtrees, for filtering search results.
+
+  static final int MAX_READABLE_SUBTREES = 1000;
+
+  /** Per-user ReadableSubtrees, by uid and op. */
+  final ConcurrentMap<String, ReadableSubtrees> readableSubtrees =
+    new ConcurrentHashMap<String, ReadableSubtrees>();
+
+  /**
+   * @return the subtrees within the given path that the given user
+   * may and may not perform the given operation on, built from a query
+   * for the ACL heads within the path, a batch get of those of its
+   * ancestors and one of the shards that would hold the user, and
+   * cached until the ACL cache is invalidated or its TTL passes.
+   */
+  ReadableSubtrees getReadableSubtrees(Path path, User user, Op op) {
+    String uid = user.getEffectiveUID();
+    String cacheKey = op + " " + uid + " " + path;
+    long generation = aclCache.generation();
+    ReadableSubtrees subtrees = readableSubtrees.get(cacheKey);
+    if (subtrees != null && subtrees.generation == generation
+        && subtrees.expiresMs >= System.currentTimeMillis()) {
+      return subtrees;
+    }
+    String [] principals = getPrincipals(user);
+    subtrees = new ReadableSubtrees(generation, System.currentTimeMillis() + aclCache.ttlMs);
+    int allowBit = CompiledAcl.bit(ControlType.ALLOW, op);
+    int restrictBit = CompiledAcl.bit(ControlType.RESTRICT, op);
+    Set<Key> shardKeys = new HashSet<Key>();
+    List<Key> ancestorKeys = new ArrayList<Key>();
+    Path [] ancestors = path.getAncestors();
+    for (int i = 0; i < ancestors.length - 1; i++) {
+      ancestorKeys.add(createAclKey(ancestors[i]));
+    }
+    List<Entity> heads = new ArrayList<Entity>(service.get(ancestorKeys).values());
+    Query q = new Query(ACL_KIND)
+      .setFilter(new Query.FilterPredicate(ACL_PATHS_PROP, Query.FilterOperator.EQUAL,
+                                           path.toString()));
+    for (Entity head : service.prepare(q).asIterable()) {
+      heads.add(head);
+    }
+    for (Entity head : heads) {
+      int mask = 0;
+      if (StoredAcl.isLegacy(head)) {
+        Map<String, Integer> masks = StoredAcl.fromLegacy(entityToJson(head));
+        for (String principal : principals) {
+          Integer principalMask = masks.get(principal);
+          mask |= principalMask == null ? 0 : principalMask;
+        }
+      } else {
+        int numShards = StoredAcl.getShardCount(head);
+        if (numShards > 0) {
+          for (String principal : principals) {
+            shardKeys.add(StoredAcl.shardKey(head.getKey(),
+                                             StoredAcl.shardOf(principal, numShards)));
+          }
+          continue;
+        }
+        mask = StoredAcl.getMask(head, principals);
+      }
+      subtrees.add(aclKeyToPath(head.getKey(), layout),
+                   (mask & allowBit) != 0, (mask & restrictBit) != 0);
+    }
+    if (!shardKeys.isEmpty()) {
+      // A user's principals may be in different shards of one ACL.
+      Map<Key, Integer> shardedMasks = new HashMap<Key, Integer>();
+      for (Entity shard : service.get(shardKeys).values()) {
+        Integer mask = shardedMasks.get(shard.getParent());
+        shardedMasks.put(shard.getParent(),
+                         (mask == null ? 0 : mask) | StoredAcl.getMask(shard, principals));
+      }
+      for (Map.Entry<Key, Integer> entry : shardedMasks.entrySet()) {
+        subtrees.add(aclKeyToPath(entry.getKey(), layout),
+                     (entry.getValue() & allowBit) != 0, (entry.getValue() & restrictBit) != 0);
+      }
+    }
+    if (readableSubtrees.size() >= MAX_READABLE_SUBTREES) {
+      readableSubtrees.clear();
+    }
+    readableSubtrees.put(cacheKey, subtrees);
+    return subtrees;
+  }
+
+  // Group principals.
+
+  /**
+   * ACLs control a group by the uid GROUP_PREFIX + the group's name,
+   * e.g. "group:eng", so group controls are set as for any user.
+   * User uids must not start with the prefix, and users whose do are
+   * refused by getPrincipals.
+   */
+  static final String GROUP_PREFIX = "group:";
+  static final String PRINCIPAL_KIND = "aclPrincipal";
+  static final String MEMBER_KIND = "aclMember";
+  static final int MAX_PRINCIPALS_CACHED = 10000;
+
+  /** The principals of a user, as cached across requests. */
+  static final class Principals {
+    final String [] uids;
+    final long generation;
+    final long expiresMs;
+    Principals(String [] uids, long generation, long expiresMs) {
+      this.uids = uids;
+      this.generation = generation;
+      this.expiresMs = expiresMs;
+    }
+  }
+
+  final ConcurrentMap<String, Principals> principalsCache =
+    new ConcurrentHashMap<String, Principals>();
+
+  static String groupUid(String group) {
+    return GROUP_PREFIX + group;
+  }
+
+  /**
+   * A user's group memberships are stored as entities named by group
+   * under a key for the user, so that adding or removing one doesn't
+   * rewrite the others, and a user's groups are found by a strongly
+   * consistent ancestor query.
+   */
+  static Key createMemberKey(String group, String uid) {
+    return KeyFactory.createKey(createPrincipalKey(uid), MEMBER_KIND, group);
+  }
+
+  static Key createPrincipalKey(String uid) {
+    return KeyFactory.createKey(PRINCIPAL_KIND, uid);
+  }
+
+  /**
+   * @throws IllegalArgumentException if the member's uid starts with
+   * GROUP_PREFIX, as groups contain only users.
+   */
+  public void addGroupMember(String group, User member) {
+    String uid = member.getEffectiveUID();
+    if (uid.startsWith(GROUP_PREFIX)) {
+      throw new IllegalArgumentException("Groups may only contain users: " + uid);
+    }
+    service.put(new Entity(createMemberKey(group, uid)));
+    principalsCache.remove(uid);
+    aclCache.invalidateDerived();
+  }
+
+  public void removeGroupMember(String group, User member) {
+    String uid = member.getEffectiveUID();
+    service.delete(createMemberKey(group, uid));
+    principalsCache.remove(uid);
+    aclCache.invalidateDerived();
+  }
+
+  /**
+   * @return the user's uid followed by the uids of the groups it is a
+   * member of.  These are resolved once per request, with a query
+   * cached across requests like the ACLs.  Groups contain only users,
+   * not other groups.
+   *
+   * @throws SecurityException if the user's uid starts with
+   * GROUP_PREFIX, as the user would then be granted a group's
+   * controls.
+   */
+  String [] getPrincipals(User user) {
+    AuthContext auth = user.authContext.validate(this, aclCache.generation());
+    String [] principals = auth.getPrincipals();
+    if (principals != null) {
+      return principals;
+    }
+    String uid = user.getEffectiveUID();
+    if (uid.startsWith(GROUP_PREFIX)) {
+      throw new SecurityException("User uids may not start with " + GROUP_PREFIX + ": " + uid);
+    }
+    long generation = aclCache.generation();
+    Principals cached = principalsCache.get(uid);
+    if (cached != null && cached.generation == generation
+        && cached.expiresMs >= System.currentTimeMillis()) {
+      principals = cached.uids;
+    } else {
+      Query q = new Query(MEMBER_KIND).setAncestor(createPrincipalKey(uid)).setKeysOnly();
+      List<String> uids = new ArrayList<String>();
+      uids.add(uid);
+      for (Entity member : service.prepare(q).asIterable()) {
+        uids.add(groupUid(member.getKey().getName()));
+      }
+      principals = uids.toArray(new String[uids.size()]);
+      if (principalsCache.size() >= MAX_PRINCIPALS_CACHED) {
+        principalsCache.clear();
+      }
+      principalsCache.put(uid, new Principals(principals, generation,
+                                              System.currentTimeMillis() + aclCache.ttlMs));
+    }
+    auth.setPrincipals(principals);
+    return principals;
+  }
+
+  // Materialized effective ACLs.
+
+  static final String EFFECTIVE_ACL_KIND = "effAcl";
+  static final String PROPAGATION_KIND = "aclPropagation";
+  static final String PROP_STARTED = "started";
+  static final String PROP_FINISHED = "finished";
+  static final String PROP_EPOCH = "epoch";
+
+  /** The number of paths whose effective ACLs are written per task. */
+  static final int PROPAGATE_BATCH_SIZE = 100;
+  /** How long a read of a propagation marker is trusted. */
+  static final long MARKER_TTL_MS = 1000;
+  static final int MARKER_RETRIES = 10;
+
+  /** A read of a propagation marker, as cached by readMarker. */
+  static final class MarkerRead {
+    final long pending, finished, checkedMs;
+    MarkerRead(long pending, long finished, long checkedMs) {
+      this.pending = pending;
+      this.finished = finished;
+      this.checkedMs = checkedMs;
+    }
+  }
+
+  /** Cached marker reads, by marked subtree. */
+  final ConcurrentMap<Path, MarkerRead> markers = new ConcurrentHashMap<Path, MarkerRead>();
+
+  /**
+   * Pushes the effective ACL of each path below the given one down to
+   * it, so that checks are a single lookup instead of an ancestor
+   * walk.  An effective ACL is stored in the StoredAcl format under a
+   * key of EFFECTIVE_ACL_KIND mirroring its path's key, and asserts
+   * for each user and op only the deepest control on the path, as
+   * decided by isRestricted.
+   *
+   * The subtree is swept in key order, so parents before children,
+   * by a chain of tasks each handling PROPAGATE_BATCH_SIZE paths.
+   * Propagations are counted by a marker entity per top-level path,
+   * and one for ROOT, as described at getMarkedSubtree.  While any
+   * propagation is in flight in a path's subtree or from ROOT, checks
+   * of it fall back to the ancestor walk, as they do for paths
+   * without an effective ACL, e.g. ones created since.
+   *
+   * A propagation is counted as started, and its first task
+   * enqueued, in the transaction which changes the ACL, as done by
+   * updateControl, or else in one of its own as done here.  So a
+   * change is never trusted as materialized before it is, even if
+   * the enqueue or the marker update fail.  A step which fails for
+   * good leaves its propagation counted, and may be repaired by
+   * resetPropagations.
+   *
+   * Propagations over nested subtrees may run concurrently, so each
+   * step checks that none started while it resolved its batch, as
+   * described at propagateStep.
+   */
+  void propagateAcls(final Path root) {
+    runMarkerTxn(getMarkedSubtree(root), new MarkerTxn() {
+        void run(Transaction txn) {
+          startPropagation(txn, root);
+        }
+      });
+  }
+
+  /**
+   * Counts a propagation from the given root as started in its
+   * subtree's marker, and enqueues its first step, in the given
+   * transaction.
+   */
+  void startPropagation(Transaction txn, Path root) {
+    Entity marker = getMarker(txn, getMarkedSubtree(root));
+    startPropagation(txn, marker, root);
+    service.put(txn, marker);
+  }
+
+  /** As above, updating the given marker, which the caller then puts. */
+  void startPropagation(Transaction txn, Entity marker, Path root) {
+    marker.setUnindexedProperty(PROP_STARTED, getCount(marker, PROP_STARTED) + 1);
+    enqueuePropagation(txn, propagationArg(null, getCount(marker, PROP_EPOCH), root));
+  }
+
+  /**
+   * @return the task arg for the step of a propagation from the
+   * given root which starts at the given cursor, or at the root if
+   * null, and was started in the given epoch of its marker.
+   */
+  static String propagationArg(String cursor, long epoch, Path root) {
+    return (cursor == null ? "" : cursor) + " " + epoch + " " + root;
+  }
+
+  /**
+   * Enqueues the given propagation step, in the given transaction if
+   * not null.
+   */
+  void enqueuePropagation(Transaction txn, String arg) {
+    Tasks.getInstance().enqueueProcess(txn, Collections.singletonList(arg).iterator(), 1,
+                                       propagator);
+  }
+
+  final Tasks.Processor propagator = new Tasks.Processor("propagateAcls") {
+      void process(String [] args) {
+        for (String arg : args) {
+          propagateStep(arg);
+        }
+      }
+    };
+
+  /** Handles one task of a propagation, as enqueued above. */
+  void propagateStep(String arg) {
+    String [] parts = arg.split(" ", 3);
+    String cursor = parts[0];
+    long epoch = Long.parseLong(parts[1]);
+    Path root = Path.fromString(parts[2]);
+    FetchOptions opts = withLimit(PROPAGATE_BATCH_SIZE);
+    if (cursor.length() > 0) {
+      opts.startCursor(Cursor.fromWebSafeString(cursor));
+    } else if (layout.isGroupRoot(root.getLength() + 1)) {
+      // Children of a path above groupDepth are in their own entity
+      // groups, so not found by the ancestor query below, and are
+      // swept as propagations of their own.
+      Query q = new Query(Path.PATH_KIND)
+        .setFilter(new Query.FilterPredicate(INTERNAL_PARENT_PROP,
+                                             Query.FilterOperator.EQUAL,
+                                             root.toKey(layout)))
+        .setKeysOnly();
+      for (Entity child : service.prepare(q).asIterable()) {
+        propagateAcls(Path.fromKey(child.getKey(), layout));
+      }
+    }
+
+    Query q = new Query(Path.PATH_KIND).setAncestor(root.toKey(layout)).setKeysOnly();
+    QueryResultList<Entity> batch = service.prepare(q).asQueryResultList(opts);
+    List<Path> paths = new ArrayList<Path>(batch.size());
+    Set<Path> subtrees = new HashSet<Path>();
+    subtrees.add(Path.ROOT);
+    subtrees.add(getMarkedSubtree(root));
+    for (Entity entity : batch) {
+      Path path = Path.fromKey(entity.getKey(), layout);
+      paths.add(path);
+      subtrees.add(getMarkedSubtree(path));
+    }
+
+    // An ACL change is counted as started when it is saved.  So if
+    // the counts of the markers covering the batch are unchanged once
+    // it is written, any change the batch missed was saved after the
+    // write, and its propagation will overwrite the paths below it.
+    // Otherwise the batch is resolved again, or if it keeps racing,
+    // the step is retried later.
+    for (int tries = 1; ; tries++) {
+      long started = getPropagationsStarted(subtrees);
+      writeEffectiveAcls(paths);
+      if (getPropagationsStarted(subtrees) == started) {
+        break;
+      }
+      if (tries == MARKER_RETRIES) {
+        logger.fine("Retrying propagation step later: " + arg);
+        enqueuePropagation(null, arg);
+        return;
+      }
+    }
+
+    if (batch.size() == PROPAGATE_BATCH_SIZE) {
+      enqueuePropagation(null, propagationArg(batch.getCursor().toWebSafeString(), epoch, root));
+    } else {
+      finishPropagation(root, epoch);
+    }
+  }
+
+  /**
+   * Resolves and writes the effective ACLs of the given paths, which
+   * are in key order, so parents before children.
+   */
+  void writeEffectiveAcls(List<Path> paths) {
+    List<Key> aclKeys = new ArrayList<Key>(paths.size());
+    for (Path path : paths) {
+      aclKeys.add(createAclKey(path));
+    }
+    Map<Key, Map<String, Integer>> own = loadMasks(aclKeys);
+    Map<Path, Map<String, Integer>> effective = new HashMap<Path, Map<String, Integer>>();
+    List<Entity> written = new ArrayList<Entity>(paths.size());
+    for (int i = 0; i < paths.size(); i++) {
+      Path path = paths.get(i);
+      Map<String, Integer> inherited = effective.get(path.getParent());
+      if (inherited == null) {
+        inherited = path.getLength() == 0
+          ? Collections.<String, Integer>emptyMap()
+          : resolveEffectiveMasks(path.getParent());
+        effective.put(path.getParent(), inherited);
+      }
+      Map<String, Integer> ownMasks = own.get(aclKeys.get(i));
+      Map<String, Integer> masks = ownMasks == null ? inherited : inheritMasks(inherited, ownMasks);
+      effective.put(path, masks);
+      Key effectiveKey = createAclKey(path, EFFECTIVE_ACL_KIND);
+      written.addAll(StoredAcl.toEntities(effectiveKey, masks, 0));
+      aclCache.invalidate(effectiveKey);
+    }
+    service.put(written);
+  }
+
+  /**
+   * @return the effective masks of the given path, from the stored
+   * ACLs of it and its ancestors.
+   */
+  Map<String, Integer> resolveEffectiveMasks(Path path) {
+    List<Key> aclKeys = new ArrayList<Key>(path.getLength() + 1);
+    for (Path ancestor : path.getAncestors()) {
+      aclKeys.add(createAclKey(ancestor));
+    }
+    Map<Key, Map<String, Integer>> stored = loadMasks(aclKeys);
+    Map<String, Integer> masks = Collections.emptyMap();
+    for (Key aclKey : aclKeys) {
+      Map<String, Integer> own = stored.get(aclKey);
+      if (own != null) {
+        masks = inheritMasks(masks, own);
+      }
+    }
+    return masks;
+  }
+
+  /**
+   * @return the effective masks of a path with the given inherited
+   * effective masks and ACL masks.  For each user and op, a control
+   * in the path's own ACL replaces the inherited one, and allow wins
+   * a tie as in isRestricted.  The given maps are not modified.
+   */
+  static Map<String, Integer> inheritMasks(Map<String, Integer> inherited,
+                                           Map<String, Integer> own) {
+    Map<String, Integer> effective = new HashMap<String, Integer>(inherited);
+    for (Map.Entry<String, Integer> entry : own.entrySet()) {
+      Integer inheritedMask = effective.get(entry.getKey());
+      int mask = inheritedMask == null ? 0 : inheritedMask;
+      int ownMask = entry.getValue();
+      for (Op op : Op.values()) {
+        int allowBit = CompiledAcl.bit(ControlType.ALLOW, op);
+        int restrictBit = CompiledAcl.bit(ControlType.RESTRICT, op);
+        if ((ownMask & allowBit) != 0) {
+          mask = (mask & ~restrictBit) | allowBit;
+        } else if ((ownMask & restrictBit) != 0) {
+          mask = (mask & ~allowBit) | restrictBit;
+        }
+      }
+      effective.put(entry.getKey(), mask);
+    }
+    return effective;
+  }
+
+
+  /**
+   * Counts a propagation from the given root as finished, unless its
+   * marker has been reset since it started in the given epoch.
+   */
+  void finishPropagation(final Path root, final long epoch) {
+    final Path subtree = getMarkedSubtree(root);
+    runMarkerTxn(subtree, new MarkerTxn() {
+        void run(Transaction txn) {
+          Entity marker = getMarker(txn, subtree);
+          if (getCount(marker, PROP_EPOCH) != epoch) {
+            logger.info("Not counting propagation started before reset: " + root);
+            return;
+          }
+          marker.setUnindexedProperty(PROP_FINISHED, getCount(marker, PROP_FINISHED) + 1);
+          service.put(txn, marker);
+        }
+      });
+  }
+
+  /**
+   * Repairs the marker of the given path's subtree after a
+   * propagation step has failed for good, and so left its
+   * propagation counted as in flight, which keeps checks in the
+   * subtree walking ancestors.  All of the marker's propagations are
+   * counted as finished, and a new epoch begun so that steps of
+   * earlier ones which do still finish aren't counted.  The whole
+   * subtree is then propagated again, in the same transaction, to
+   * rewrite whatever the failed propagation left stale.
+   */
+  void resetPropagations(Path path) {
+    final Path subtree = getMarkedSubtree(path);
+    runMarkerTxn(subtree, new MarkerTxn() {
+        void run(Transaction txn) {
+          Entity marker = getMarker(txn, subtree);
+          logger.warning(String.format("Resetting propagations of %s: started(%d) finished(%d)",
+                                       subtree, getCount(marker, PROP_STARTED),
+                                       getCount(marker, PROP_FINISHED)));
+          marker.setUnindexedProperty(PROP_FINISHED, getCount(marker, PROP_STARTED));
+          marker.setUnindexedProperty(PROP_EPOCH, getCount(marker, PROP_EPOCH) + 1);
+          startPropagation(txn, marker, subtree);
+          service.put(txn, marker);
+        }
+      });
+  }
+
+  /** The body of a transaction on a propagation marker. */
+  abstract static class MarkerTxn {
+    abstract void run(Transaction txn);
+  }
+
+  /**
+   * Runs the given body in a transaction on the marker of the given
+   * subtree, retried up to MARKER_RETRIES times on contention.
+   */
+  void runMarkerTxn(Path subtree, MarkerTxn body) {
+    for (int tries = 1; ; tries++) {
+      Transaction txn = service.beginTransaction();
+      try {
+        body.run(txn);
+        txn.commit();
+        break;
+      } catch (ConcurrentModificationException e) {
+        if (tries == MARKER_RETRIES) {
+          throw e;
+        }
+        logger.fine("Retrying propagation marker update: " + subtree);
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
+    expireMarker(subtree);
+  }
+
+  /**
+   * @return the subtree whose marker counts the propagations from the
+   * given path, which is its top-level ancestor, or ROOT for ROOT.
+   * Markers are per subtree so that propagations in one don't
+   * contend with or hold up checks in others.
+   */
+  static Path getMarkedSubtree(Path path) {
+    return path.getAncestors()[Math.min(1, path.getLength())];
+  }
+
+  static Key createMarkerKey(Path subtree) {
+    return KeyFactory.createKey(PROPAGATION_KIND, subtree.toString());
+  }
+
+  /** @return the given subtree's marker, or a new one if none. */
+  Entity getMarker(Transaction txn, Path subtree) {
+    Key markerKey = createMarkerKey(subtree);
     try {
-      aclEntity = service.get(aclKey);
+      return service.get(txn, markerKey);
     } catch (EntityNotFoundException e) {
-      logger.finer(String.format("getAcl: path(%s), aclKey(%s): not found", path, aclKey));
-      return null;
+      return new Entity(markerKey);
     }
-    JSONObject acl = entityToJson(aclEntity);
-    logger.finer(String.format("getAcl: path(%s): aclKey(%s) acl(%s)", path, aclKey, acl));
-    return acl;
   }
 
-  void saveAcl(Path path, JSONObject acl) {
-    Key aclKey = createAclKey(path);
-    Entity aclEntity = new Entity(aclKey);
-    setProperties(aclEntity, acl);
-    logger.finer(String.format("saveAcl: path(%s): aclKey(%s) acl(%s)",
-                               path, aclKey, acl));
-    service.put(aclEntity);
+  /**
+   * @return true if a propagation is in flight which may leave the
+   * effective ACL of the given path stale, i.e. one in its subtree or
+   * from ROOT.
+   */
+  boolean isPropagating(Path path) {
+    Path subtree = getMarkedSubtree(path);
+    return readMarker(Path.ROOT).pending > 0
+      || (subtree.getLength() > 0 && readMarker(subtree).pending > 0);
+  }
+
+  /**
+   * @return the given subtree's marker, read at most once per
+   * MARKER_TTL_MS.  When another instance is seen to have finished a
+   * propagation, the cached effective ACLs of the subtree are dropped,
+   * as it may have rewritten them.
+   */
+  MarkerRead readMarker(Path subtree) {
+    long now = System.currentTimeMillis();
+    MarkerRead read = markers.get(subtree);
+    if (read == null || now - read.checkedMs > MARKER_TTL_MS) {
+      long started = 0, finished = 0;
+      try {
+        Entity marker = service.get(createMarkerKey(subtree));
+        started = getCount(marker, PROP_STARTED);
+        finished = getCount(marker, PROP_FINISHED);
+      } catch (EntityNotFoundException e) {
+        // No propagation has ever run in the subtree.
+      }
+      if (read != null && finished != read.finished) {
+        invalidateEffectiveAcls(subtree);
+      }
+      read = new MarkerRead(started - finished, finished, now);
+      markers.put(subtree, read);
+    }
+    return read;
+  }
+
+  /**
+   * Makes the next readMarker of the given subtree read it again,
+   * while keeping the finished count it compares.
+   */
+  void expireMarker(Path subtree) {
+    MarkerRead read = markers.get(subtree);
+    if (read != null) {
+      markers.replace(subtree, read, new MarkerRead(read.pending, read.finished, 0));
+    }
+  }
+
+  /** Drops the cached effective ACLs of the given path and its descendants. */
+  void invalidateEffectiveAcls(Path subtree) {
+    for (Key aclKey : aclCache.entries.keySet()) {
+      if (aclKey.getKind().equals(EFFECTIVE_ACL_KIND)) {
+        Path path = aclKeyToPath(aclKey, layout);
+        if (path.equals(subtree) || subtree.isParentOf(path)) {
+          aclCache.invalidate(aclKey);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the sum of the started counts of the given subtrees'
+   * markers, read uncached.
+   */
+  long getPropagationsStarted(Set<Path> subtrees) {
+    List<Key> markerKeys = new ArrayList<Key>(subtrees.size());
+    for (Path subtree : subtrees) {
+      markerKeys.add(createMarkerKey(subtree));
+    }
+    long started = 0;
+    for (Entity marker : service.get(markerKeys).values()) {
+      started += getCount(marker, PROP_STARTED);
+    }
+    return started;
+  }
+
+  static long getCount(Entity marker, String prop) {
+    Object count = marker.getProperty(prop);
+    return count == null ? 0 : ((Number) count).longValue();
   }
 }
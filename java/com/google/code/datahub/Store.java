@@ -16,6 +16,8 @@ package com.google.code.datahub;
 
 import org.json.JSONObject;
 
+import java.util.Map;
+
 /**
  * The Store interface defines common persistence methods for JSON
  * objects, according to Create, Retrieve, Update, Delete, Search
@@ -74,6 +76,19 @@ public interface Store {
   /** Max duration in seconds for persistent search. */
   static final long MAX_DURATION = 3600;
 
+  /**
+   * The field of a search response holding the cursor of its next
+   * page, if there may be one.
+   */
+  static final String NEXT_FIELD = "next";
+
+  /**
+   * The entry of a listing holding the cursor of its next page, if
+   * there may be one.  Listings are maps of element names, so this
+   * is a special name rather than NEXT_FIELD.
+   */
+  static final String NEXT_ENTRY = "__next__";
+
   /**
    * Stores a new entity with the given JSONObject properites as a
    * child of the given parent path.
@@ -123,9 +138,32 @@ public interface Store {
                   String endpointId, long duration,
                   User user);
 
+  /**
+   * As above, but starting from the given cursor instead of an
+   * offset, so that the cost of a page doesn't grow with its depth.
+   *
+   * @param cursor the NEXT_ENTRY of the previous page, or null for
+   * the first page.
+   * @return the listing, with a NEXT_ENTRY if there may be more.
+   * @throws IllegalArgumentException if the cursor is not valid.
+   */
+  JSONObject list(Path path,
+                  String cursor, int limit, String [] fields, int [] order,
+                  String endpointId, long duration,
+                  User user);
+
   /** @return the object or null if not found. */
   JSONObject retrieve(Path path, User user);
 
+  /**
+   * Retrieves the objects at the given paths in as few round trips
+   * as the store allows.
+   *
+   * @return a map of path strings to objects, without entries for
+   * paths that were not found.
+   */
+  JSONObject retrieveAll(User user, Path ... paths);
+
   /**
    * Retrieve the persistent query with the given id.
    */
@@ -173,7 +211,9 @@ public interface Store {
    * @param fields list of string field names to return.  May be null
    * to return all fields.
    * @param order Positive, Negative or Zero for ascending, descending
-   * or unspecified order. TODO(pmy): Maybe generalize to "filtering",
+   * or unspecified order of the corresponding field, earlier fields
+   * sorting first.  May be null, or shorter than fields, for the
+   * remaining fields to be unordered.  TODO(pmy): Maybe generalize to "filtering",
    * e.g. to allow an exclusion of corresponding field, for efficient
    * inverses?
    * @param endpointId unique endpoint identifier which will be used
@@ -193,9 +233,30 @@ public interface Store {
                     String endpointId, long duration,
                     User user);
 
+  /**
+   * As above, but starting from the given cursor instead of an
+   * offset, so that the cost of a page doesn't grow with its depth.
+   *
+   * @param cursor the NEXT_FIELD of the previous page, or null for
+   * the first page.
+   * @return an object with results, limit and, if there may be more
+   * results, NEXT_FIELD.
+   * @throws IllegalArgumentException if the cursor is not valid.
+   */
+  JSONObject search(Path path, String query,
+                    String cursor, int limit, String [] fields, int [] order,
+                    String endpointId, long duration,
+                    User user);
+
   /**
    * Stores an entity with the given JSONObject properites at the
    * given path.
    */
   void update(Path path, JSONObject obj, User user);
+
+  /**
+   * Stores each of the given objects at its path, as by update, in as
+   * few round trips as the store allows.
+   */
+  void updateAll(Map<Path, JSONObject> objs, User user);
 }
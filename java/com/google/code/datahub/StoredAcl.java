@@ -0,0 +1,211 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.datahub;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The StoredAcl class defines the storage format of ACLs.  Each user
+ * in an ACL is stored as an unindexed property named by its uid,
+ * whose value is the bitmask of (ControlType, Op) pairs asserted for
+ * it, as defined by {@link CompiledAcl#bit}.  Membership is then a
+ * property lookup, and changing one user's controls changes one
+ * property.
+ *
+ * Small ACLs keep their users inline in the head entity under the
+ * ACL key.  Once an ACL grows past MAX_INLINE_UIDS its users are
+ * hashed across a power of 2 number of shard entities, children of
+ * the head, so that setting a control for one user rewrites only the
+ * shard holding it.  The shard count is doubled when a shard grows
+ * past MAX_SHARD_UIDS.
+ *
+ * <pre>
+ *   acl:a                   format: 2, shards: 0, uid:bob: 1
+ *
+ *   acl:b                   format: 2, shards: 4
+ *   acl:b/aclShard:1        uid:alice: 8, ...
+ *   ...
+ *   acl:b/aclShard:4        ...
+ * </pre>
+ *
+ * The original format, nested JSON of control type to op to an array
+ * of uids, is recognized by its lack of a format property.  It is
+ * read as before and converted on the next write to it, or in bulk
+ * by {@link SecureDatastore#migrateAclFormat}.
+ *
+ * As masks are persisted, ControlType and Op values may only be
+ * appended to.
+ *
+ * @author Pablo Mayrgundter <pmy@google.com>
+ */
+final class StoredAcl {
+
+  static final String SHARD_KIND = "aclShard";
+  static final String FORMAT_PROP = "format";
+  static final String SHARDS_PROP = "shards";
+  static final String UID_PREFIX = "uid:";
+  static final long FORMAT_VERSION = 2;
+
+  static final int MAX_INLINE_UIDS = 64;
+  static final int MAX_SHARD_UIDS = 512;
+
+  private StoredAcl() {}
+
+  /** @return true if the given head entity is in the original JSON format. */
+  static boolean isLegacy(Entity head) {
+    return !head.hasProperty(FORMAT_PROP);
+  }
+
+  /** @return the number of shards, or 0 if the users are inline. */
+  static int getShardCount(Entity head) {
+    Object shards = head.getProperty(SHARDS_PROP);
+    return shards == null ? 0 : ((Number) shards).intValue();
+  }
+
+  /** @return the index of the shard holding the given uid. */
+  static int shardOf(String uid, int numShards) {
+    return ((uid.hashCode() * 0x9E3779B9) >>> 16) & (numShards - 1);
+  }
+
+  static Key shardKey(Key aclKey, int shard) {
+    return KeyFactory.createKey(aclKey, SHARD_KIND, shard + 1);
+  }
+
+  static List<Key> shardKeys(Key aclKey, int numShards) {
+    List<Key> keys = new ArrayList<Key>(numShards);
+    for (int i = 0; i < numShards; i++) {
+      keys.add(shardKey(aclKey, i));
+    }
+    return keys;
+  }
+
+  /** @return the mask stored for the given uid in a head or shard, or 0. */
+  static int getMask(Entity part, String uid) {
+    Object mask = part.getProperty(UID_PREFIX + uid);
+    return mask == null ? 0 : ((Number) mask).intValue();
+  }
+
+  /** @return the union of the masks stored for the given uids. */
+  static int getMask(Entity part, String [] uids) {
+    int mask = 0;
+    for (String uid : uids) {
+      mask |= getMask(part, uid);
+    }
+    return mask;
+  }
+
+  /** Stores the given mask for the uid, removing it if 0. */
+  static void setMask(Entity part, String uid, int mask) {
+    if (mask == 0) {
+      part.removeProperty(UID_PREFIX + uid);
+    } else {
+      part.setUnindexedProperty(UID_PREFIX + uid, (long) mask);
+    }
+  }
+
+  /** @return the number of users in the given head or shard. */
+  static int countUids(Entity part) {
+    int count = 0;
+    for (String name : part.getProperties().keySet()) {
+      if (name.startsWith(UID_PREFIX)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /** Adds the masks of all users in the given head or shard to masks. */
+  static Map<String, Integer> readMasks(Entity part, Map<String, Integer> masks) {
+    for (Map.Entry<String, Object> prop : part.getProperties().entrySet()) {
+      if (prop.getKey().startsWith(UID_PREFIX)) {
+        masks.put(prop.getKey().substring(UID_PREFIX.length()),
+                  ((Number) prop.getValue()).intValue());
+      }
+    }
+    return masks;
+  }
+
+  /**
+   * @return the masks by uid of an ACL in the original JSON format.
+   * @throws IllegalStateException if the ACL is corrupted.
+   */
+  static Map<String, Integer> fromLegacy(JSONObject acl) {
+    Map<String, Integer> masks = new HashMap<String, Integer>();
+    for (SecureDatastore.ControlType cType : SecureDatastore.ControlType.values()) {
+      JSONObject control = Util.jsonGet(acl, cType.name());
+      if (control == null) {
+        continue;
+      }
+      for (Store.Op op : Store.Op.values()) {
+        JSONArray uids = control.optJSONArray(op.toString());
+        if (uids == null) {
+          continue;
+        }
+        int bit = CompiledAcl.bit(cType, op);
+        for (int i = 0; i < uids.length(); i++) {
+          String uid;
+          try {
+            uid = uids.getString(i);
+          } catch (JSONException e) {
+            throw new IllegalStateException("Corrupted ACL", e);
+          }
+          Integer mask = masks.get(uid);
+          masks.put(uid, mask == null ? bit : mask | bit);
+        }
+      }
+    }
+    return masks;
+  }
+
+  /**
+   * @return the entities storing the given masks under the given ACL
+   * key, head first, using at least minShards shards if sharded.
+   */
+  static List<Entity> toEntities(Key aclKey, Map<String, Integer> masks, int minShards) {
+    int numShards = 0;
+    if (masks.size() > MAX_INLINE_UIDS || minShards > 0) {
+      // Leave shards half full, so that they don't split again soon.
+      numShards = Math.max(minShards, 1);
+      while (numShards * MAX_SHARD_UIDS / 2 < masks.size()) {
+        numShards <<= 1;
+      }
+    }
+    List<Entity> entities = new ArrayList<Entity>(numShards + 1);
+    Entity head = new Entity(aclKey);
+    head.setUnindexedProperty(FORMAT_PROP, FORMAT_VERSION);
+    head.setUnindexedProperty(SHARDS_PROP, (long) numShards);
+    entities.add(head);
+    for (Key shardKey : shardKeys(aclKey, numShards)) {
+      entities.add(new Entity(shardKey));
+    }
+    for (Map.Entry<String, Integer> entry : masks.entrySet()) {
+      Entity part = numShards == 0
+        ? head : entities.get(1 + shardOf(entry.getKey(), numShards));
+      setMask(part, entry.getKey(), entry.getValue());
+    }
+    return entities;
+  }
+}
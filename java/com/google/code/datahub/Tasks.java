@@ -14,14 +14,15 @@
  */
 package com.google.code.datahub;
 
+import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
 import com.google.appengine.api.taskqueue.TaskOptions;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -127,12 +128,26 @@ public class Tasks extends AbstractServlet {
     return instance;
   }
 
-  final Map<String, Processor> processors;
+  /**
+   * Processors by name.  Static so that they may be registered before
+   * this servlet is created, and concurrent as they are registered
+   * and looked up by concurrent requests.
+   */
+  static final ConcurrentMap<String, Processor> processors =
+      new ConcurrentHashMap<String, Processor>();
+
+  /**
+   * Registers the given processor, so that its tasks can be handled
+   * by an instance that hasn't itself enqueued any.
+   */
+  static void register(Processor processor) {
+    processors.put(processor.name, processor);
+  }
+
   final Queue queue;
   final String thisUrl;
 
   public Tasks() {
-    processors = new HashMap<String, Processor>();
     // TODO(pmy): tried to access this programmatically, but
     // servletconfig is null at this point?
     thisUrl = "/_ah/taskshelper"; // npe: getServletConfig().getInitParameter("path");
@@ -141,19 +156,32 @@ public class Tasks extends AbstractServlet {
   }
 
   void enqueueProcess(Iterator<String> args, int batchSize, Processor processor) {
+    enqueueProcess(null, args, batchSize, processor);
+  }
 
-    // TODO(pmy): remove finished processes.
-    processors.put(processor.name, processor);
+  /**
+   * As above, but adds the tasks in the given transaction, if not
+   * null, so that they are enqueued only if it commits.  A
+   * transaction may add at most five tasks.
+   */
+  void enqueueProcess(Transaction txn, Iterator<String> args, int batchSize,
+                      Processor processor) {
+
+    register(processor);
 
     TaskOptions opts = TaskOptions.Builder.withMethod(TaskOptions.Method.POST).url(thisUrl)
         .header("Content-Type", "application/x-www-form-urlencoded; charset=utf-8")
         .param(PARAM_PROC_ID, processor.name);
 
     while (args.hasNext()) {
-      for (int i = 0; i < batchSize - 1 && args.hasNext(); i++) {
+      for (int i = 0; i < batchSize && args.hasNext(); i++) {
         opts.param(PARAM_ARGS, args.next());
       }
-      queue.add(opts);
+      if (txn == null) {
+        queue.add(opts);
+      } else {
+        queue.add(txn, opts);
+      }
       opts.removeParam(PARAM_ARGS);
     }
   }
@@ -178,6 +206,10 @@ public class Tasks extends AbstractServlet {
       return;
     }
 
-    proc.process(args);
+    try {
+      proc.process(args);
+    } finally {
+      Search.flushAll();
+    }
   }
 }
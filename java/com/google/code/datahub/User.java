@@ -39,6 +39,8 @@ public class User {
   // TODO(pmy): ugh, horribly broken.
   final boolean isPointer;
   String channel = null;
+  /** Memo of ACL checks for this user, which lives for one request. */
+  final AuthContext authContext = new AuthContext();
 
   private User() {
     isSignedIn = false;
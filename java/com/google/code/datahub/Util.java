@@ -18,6 +18,10 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
 /**
  * Utilities for streams and JSON.
  *
@@ -172,6 +176,118 @@ public final class Util {
     return arr;
   }
 
+  /**
+   * The separator of the names in a field path, e.g. "author/name",
+   * as in XPath.
+   */
+  public static final String FIELD_SEP = "/";
+
+  /**
+   * @return the given object with only the fields selected by the
+   * given field paths, projecting nested objects, and those in
+   * arrays, by the rest of their paths.  If fields or the object is
+   * null the object itself is returned.
+   */
+  public static JSONObject jsonProject(JSONObject obj, String [] fields) {
+    if (fields == null || obj == null) {
+      return obj;
+    }
+    JSONObject projected = new JSONObject();
+    for (Iterator<?> names = obj.keys(); names.hasNext(); ) {
+      String name = (String) names.next();
+      String [] subFields = subFields(name, fields);
+      Object val = obj.opt(name);
+      if (subFields != null) {
+        if (subFields.length == 0) {
+          continue;
+        }
+        if (val instanceof JSONObject) {
+          val = jsonProject((JSONObject) val, subFields);
+        } else if (val instanceof JSONArray) {
+          JSONArray arr = (JSONArray) val;
+          JSONArray projectedArr = new JSONArray();
+          for (int i = 0; i < arr.length(); i++) {
+            if (arr.opt(i) instanceof JSONObject) {
+              projectedArr.put(jsonProject(arr.optJSONObject(i), subFields));
+            }
+          }
+          val = projectedArr;
+        } else {
+          // Only a part of a field which has none is selected.
+          continue;
+        }
+      }
+      jsonPut(projected, name, val);
+    }
+    return projected;
+  }
+
+  /**
+   * @return the paths within the named field selected by the given
+   * field paths, e.g. ["b"] for "a" of ["a/b", "c"].  Null if the
+   * whole field is selected, as by "a" or by null fields, and empty
+   * if none of it is.
+   */
+  static String [] subFields(String name, String [] fields) {
+    if (fields == null) {
+      return null;
+    }
+    List<String> subFields = new ArrayList<String>();
+    String prefix = name + FIELD_SEP;
+    for (String field : fields) {
+      if (field.equals(name)) {
+        return null;
+      }
+      if (field.startsWith(prefix)) {
+        subFields.add(field.substring(prefix.length()));
+      }
+    }
+    return subFields.toArray(new String[subFields.size()]);
+  }
+
+  /**
+   * @return the comma-separated field paths in the given parameter
+   * value, or null for all fields if it is null.
+   */
+  public static String [] parseFields(String select) {
+    if (select == null) {
+      return null;
+    }
+    List<String> fields = new ArrayList<String>();
+    for (String field : select.split(",")) {
+      field = field.trim();
+      if (field.length() > 0) {
+        fields.add(field);
+      }
+    }
+    return fields.toArray(new String[fields.size()]);
+  }
+
+  /**
+   * @return the comma-separated orders in the given parameter value,
+   * as described at Store.search, or null if it is null.
+   * @throws IllegalArgumentException if an order isn't asc, desc or
+   * empty.
+   */
+  public static int [] parseOrder(String order) {
+    if (order == null) {
+      return null;
+    }
+    String [] orders = order.split(",");
+    int [] parsed = new int[orders.length];
+    for (int i = 0; i < orders.length; i++) {
+      String o = orders[i].trim();
+      if (o.equals("asc")) {
+        parsed[i] = 1;
+      } else if (o.equals("desc")) {
+        parsed[i] = -1;
+      } else if (o.length() > 0) {
+        throw new IllegalArgumentException("Order must be asc or desc: " + o);
+      }
+    }
+    return parsed;
+  }
+
   public static JSONObject jsonStrToObj(String jsonStr) {
     try {
       return new JSONObject(jsonStr);
@@ -0,0 +1,90 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.datahub;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * The WritePipeline class overlaps the independent writes of one
+ * operation.  Asynchronous service calls are started and added as
+ * futures, synchronous steps are run while those are in flight, and
+ * await then waits for all of them, so that the operation takes
+ * about as long as its slowest write instead of the sum of them.
+ *
+ * Every write is attempted even if an earlier one failed, and all
+ * failures are then reported together by await.  Not thread-safe;
+ * a pipeline is used by the request which made it.
+ *
+ * @author Pablo Mayrgundter <pmy@google.com>
+ */
+final class WritePipeline {
+
+  /** Thrown by await with every failure of the pipeline's writes. */
+  static class WriteException extends ServiceException {
+    static final long serialVersionUID = 2748562046390132981L;
+    final List<Throwable> failures;
+    WriteException(List<Throwable> failures) {
+      super(String.format("%d of the writes failed, first: %s",
+                          failures.size(), failures.get(0)),
+            failures.get(0));
+      this.failures = Collections.unmodifiableList(failures);
+    }
+  }
+
+  private final List<Future<?>> pending = new ArrayList<Future<?>>();
+  private final List<Throwable> failures = new ArrayList<Throwable>();
+
+  /** Adds a started asynchronous write to be waited for by await. */
+  void add(Future<?> write) {
+    pending.add(write);
+  }
+
+  /** Runs the given write now, recording instead of throwing its failure. */
+  void run(Runnable write) {
+    try {
+      write.run();
+    } catch (RuntimeException e) {
+      failures.add(e);
+    }
+  }
+
+  /**
+   * Waits for all added writes to finish.
+   *
+   * @throws WriteException if any write added or run failed.
+   */
+  void await() {
+    for (Future<?> write : pending) {
+      try {
+        write.get();
+      } catch (ExecutionException e) {
+        failures.add(e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failures.add(e);
+      }
+    }
+    pending.clear();
+    if (!failures.isEmpty()) {
+      List<Throwable> thrown = new ArrayList<Throwable>(failures);
+      failures.clear();
+      throw new WriteException(thrown);
+    }
+  }
+}
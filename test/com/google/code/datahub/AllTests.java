@@ -31,7 +31,10 @@ public class AllTests {
   public static TestSuite suite() {
     final TestSuite suite = new TestSuite();
     suite.addTestSuite(DatastoreTest.class);
+    suite.addTestSuite(OutboxTest.class);
     suite.addTestSuite(PathTest.class);
+    suite.addTestSuite(PathTrieTest.class);
+    suite.addTestSuite(QueryPlannerTest.class);
     suite.addTestSuite(ResourceTest.class);
     suite.addTestSuite(SearchTest.class);
     suite.addTestSuite(SecureDatastoreTest.class);
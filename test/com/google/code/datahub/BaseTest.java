@@ -37,7 +37,10 @@ abstract class BaseTest extends TestCase {
 
   LocalServiceTestHelper helper =
       new LocalServiceTestHelper(new LocalChannelServiceTestConfig(),
-                                 new LocalDatastoreServiceTestConfig(),
+                                 // High replication, for cross-group
+                                 // transactions, but consistent.
+                                 new LocalDatastoreServiceTestConfig()
+                                 .setApplyAllHighRepJobPolicy(),
                                  new LocalSearchServiceTestConfig(),
                                  new LocalUserServiceTestConfig())
       .setEnvAppId("app")
@@ -48,6 +51,9 @@ abstract class BaseTest extends TestCase {
 
   public void setUp() {
     helper.setUp();
+    // Static caches would otherwise outlive each test's datastore.
+    SchemaManager.cache.clear();
+    SchemaManager.fieldStats.clear();
   }
 
   public void tearDown() {
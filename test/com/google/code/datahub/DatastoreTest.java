@@ -14,6 +14,9 @@
  */
 package com.google.code.datahub;
 
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -21,6 +24,11 @@ import java.io.BufferedReader;
 import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Tests for Datastore.
@@ -29,6 +37,9 @@ import java.io.StringWriter;
  */
 public class DatastoreTest extends BaseTest {
 
+  static final java.util.logging.Logger logger =
+      java.util.logging.Logger.getLogger(DatastoreTest.class.getName());
+
   Datastore datastore;
 
   public void setUp() {
@@ -152,6 +163,309 @@ public class DatastoreTest extends BaseTest {
     assertNotNull(list.get("__4__"));
   }
 
+  public void testListPaging() throws Exception {
+    JSONObject obj = obj("foo", "bar");
+    for (int i = 0; i < 5; i++) {
+      Path child = datastore.create(Path.ROOT, "c" + i, obj, User.TEST_USER);
+      // Descendants aren't matched by the listing, nor counted in its pages.
+      datastore.create(child, "d", obj, User.TEST_USER);
+    }
+    JSONObject list = datastore.list(Path.ROOT, 1, 3, null, null, null, -1, User.TEST_USER);
+    assertNotNull(list.remove(Store.NEXT_ENTRY));
+    assertEquals(3, list.length());
+    assertEquals("bar", list.getJSONObject("c1").get("foo"));
+    assertTrue(list.has("c3"));
+
+    list = datastore.list(Path.ROOT, 3, 10, new String[0], null, null, -1, User.TEST_USER);
+    assertEquals(2, list.length());
+    assertEquals(0, list.getJSONObject("c4").length());
+
+    // The next page continues after the children, not into their subtrees.
+    JSONObject page = datastore.list(Path.ROOT, (String) null, 3, new String[0], null, null, -1,
+                                     User.TEST_USER);
+    String next = (String) page.remove(Store.NEXT_ENTRY);
+    assertEquals(3, page.length());
+    page = datastore.list(Path.ROOT, next, 3, new String[0], null, null, -1, User.TEST_USER);
+    assertEquals(2, page.length());
+    assertTrue(page.has("c3"));
+    assertTrue(page.has("c4"));
+
+    Entity entity = datastore.service.get(Path.fromString("/c0/d").toKey());
+    assertEquals(Path.fromString("/c0").toKey(),
+                 entity.getProperty(Datastore.INTERNAL_PARENT_PROP));
+  }
+
+  public void testListFields() throws Exception {
+    JSONObject obj = new JSONObject("{\"title\": \"t\", \"body\": \"b\","
+                                    + " \"author\": {\"name\": \"n\", \"email\": \"e\"}}");
+    datastore.create(Path.ROOT, "doc", obj, User.TEST_USER);
+    JSONObject list = datastore.list(Path.ROOT, 0, 10, new String[]{"title", "author/name"},
+                                     null, null, -1, User.TEST_USER);
+    JSONObject doc = list.getJSONObject("doc");
+    assertEquals(2, doc.length());
+    assertEquals("t", doc.get("title"));
+    assertEquals(1, doc.getJSONObject("author").length());
+    assertEquals("n", doc.getJSONObject("author").get("name"));
+  }
+
+  public void testListOrder() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      datastore.create(Path.ROOT, "c" + i, new JSONObject().put("n", (i * 3) % 5),
+                       User.TEST_USER);
+    }
+    JSONObject list = datastore.list(Path.ROOT, 0, 3, new String[]{"n"}, new int[]{-1},
+                                     null, -1, User.TEST_USER);
+    list.remove(Store.NEXT_ENTRY);
+    // n is 0, 3, 1, 4, 2, so the top 3 are c3, c1 and c4.
+    assertEquals(3, list.length());
+    assertEquals(4L, list.getJSONObject("c3").getLong("n"));
+    assertEquals(3L, list.getJSONObject("c1").getLong("n"));
+    assertEquals(2L, list.getJSONObject("c4").getLong("n"));
+
+    try {
+      datastore.list(Path.ROOT, 0, 3, null, new int[]{1}, null, -1, User.TEST_USER);
+      fail("order of an unselected field should throw");
+    } catch (IllegalArgumentException e) {
+      // OK
+    }
+  }
+
+  public void testNestedOrderAndSearch() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      JSONObject author = new JSONObject().put("name", "a" + i % 2).put("age", i);
+      datastore.create(Path.ROOT, "c" + i, new JSONObject().put("author", author),
+                       User.TEST_USER);
+    }
+    JSONObject list = datastore.list(Path.ROOT, 0, 1, new String[]{"author/age"},
+                                     new int[]{-1}, null, -1, User.TEST_USER);
+    assertEquals(2L, list.getJSONObject("c2").getJSONObject("author").getLong("age"));
+    assertEquals(2, datastore.search(Path.ROOT, "author/name:a0", User.TEST_USER).length());
+  }
+
+  public void testListCursor() throws Exception {
+    JSONObject obj = new JSONObject();
+    Set<String> names = new HashSet<String>();
+    for (int i = 0; i < 5; i++) {
+      datastore.create(Path.ROOT, "c" + i, obj, User.TEST_USER);
+    }
+    String cursor = null;
+    int pages = 0;
+    do {
+      JSONObject page = datastore.list(Path.ROOT, cursor, 2, null, null, null, -1,
+                                       User.TEST_USER);
+      cursor = page.optString(Store.NEXT_ENTRY, null);
+      page.remove(Store.NEXT_ENTRY);
+      assertTrue(page.length() <= 2);
+      for (java.util.Iterator<?> itr = page.keys(); itr.hasNext(); ) {
+        assertTrue(names.add((String) itr.next()));
+      }
+      pages++;
+    } while (cursor != null);
+    assertEquals(5, names.size());
+    // The last page is short, so has no next.
+    assertEquals(3, pages);
+
+    try {
+      datastore.list(Path.ROOT, "bogus", 2, null, null, null, -1, User.TEST_USER);
+      fail("invalid cursor should throw");
+    } catch (IllegalArgumentException e) {
+      // OK
+    }
+  }
+
+  public void testSearch() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      datastore.create(Path.ROOT, "s" + i,
+                       new JSONObject().put("n", i).put("tag", i % 2 == 0 ? "even" : "odd"),
+                       User.TEST_USER);
+    }
+    assertEquals(3, datastore.search(Path.ROOT, "tag:even", User.TEST_USER).length());
+    assertEquals(2, datastore.search(Path.ROOT, "n >= 1 AND n < 3", User.TEST_USER).length());
+    assertEquals(3, datastore.search(Path.ROOT, "tag:odd OR n = 0", User.TEST_USER).length());
+    JSONObject found = datastore.search(Path.ROOT, "NOT (tag:odd OR n != 4)", User.TEST_USER);
+    assertEquals(1, found.length());
+    assertTrue(found.has("s4"));
+    // Unlike Search, negation doesn't match objects lacking the field.
+    datastore.create(Path.ROOT, "untagged", new JSONObject().put("n", 5), User.TEST_USER);
+    assertEquals(3, datastore.search(Path.ROOT, "NOT tag:odd", User.TEST_USER).length());
+    assertEquals(Collections.singleton("tag"),
+                 QueryCompiler.compile("NOT tag:odd").negatedProperties);
+    assertTrue(QueryCompiler.compile("tag:odd AND n > 1").negatedProperties.isEmpty());
+
+    // Compiled once.
+    assertSame(QueryCompiler.compile("tag:even  AND n > 1"),
+               QueryCompiler.compile(" tag:even AND n > 1"));
+
+    String [] rejected = {"keyword", "n > 1 AND m < 2", "tag:", "(tag:even", "tag:even OR"};
+    for (String query : rejected) {
+      try {
+        datastore.search(Path.ROOT, query, User.TEST_USER);
+        fail("should reject: " + query);
+      } catch (IllegalArgumentException e) {
+        // OK
+      }
+    }
+  }
+
+  public void testSearchMixedNumbers() throws Exception {
+    Object [] nums = {1, 2, 2.5, 3.0, 4};
+    for (int i = 0; i < nums.length; i++) {
+      datastore.create(Path.ROOT, "m" + i, new JSONObject().put("n", nums[i]), User.TEST_USER);
+    }
+    assertEquals(3, datastore.search(Path.ROOT, "n > 2", User.TEST_USER).length());
+    assertEquals(2, datastore.search(Path.ROOT, "n > 2.5", User.TEST_USER).length());
+    assertEquals(3, datastore.search(Path.ROOT, "n >= 2.5", User.TEST_USER).length());
+    assertEquals(2, datastore.search(Path.ROOT, "n < 2.5", User.TEST_USER).length());
+    assertEquals(4, datastore.search(Path.ROOT, "n >= 2.0", User.TEST_USER).length());
+    assertEquals(1, datastore.search(Path.ROOT, "n = 3", User.TEST_USER).length());
+    assertEquals(1, datastore.search(Path.ROOT, "n = 2.0", User.TEST_USER).length());
+    assertEquals(2, datastore.search(Path.ROOT, "n > 1 AND n <= 2.5", User.TEST_USER).length());
+  }
+
+  public void testGroupedLayout() throws Exception {
+    Datastore grouped = new Datastore(new KeyLayout(1));
+    JSONObject obj = obj("foo", "bar");
+
+    Path a = grouped.create(Path.ROOT, "a", obj, User.TEST_USER);
+    Path b = grouped.create(a, "b", obj, User.TEST_USER);
+    Path c = grouped.create(Path.ROOT, obj, User.TEST_USER);
+    Path d = grouped.create(c, obj, User.TEST_USER);
+    assertEquals(Path.fromString("/a/b"), b);
+
+    assertNull(a.toKey(grouped.layout).getParent());
+    assertNull(c.toKey(grouped.layout).getParent());
+    assertEquals(a.toKey(grouped.layout), b.toKey(grouped.layout).getParent());
+    assertEquals(c.toKey(grouped.layout), d.toKey(grouped.layout).getParent());
+
+    assertEquals("bar", grouped.retrieve(b, User.TEST_USER).get("foo"));
+    assertEquals("bar", grouped.retrieve(d, User.TEST_USER).get("foo"));
+
+    JSONObject list = grouped.list(Path.ROOT, 0, 10, null, null, null, -1, User.TEST_USER);
+    assertEquals(2, list.length());
+    assertNotNull(list.get("a"));
+    assertNotNull(list.get(c.getFilename()));
+    list = grouped.list(a, 0, 10, null, null, null, -1, User.TEST_USER);
+    assertEquals(1, list.length());
+    assertNotNull(list.get("b"));
+  }
+
+  public void testDeepGroupedLayout() throws Exception {
+    Datastore grouped = new Datastore(new KeyLayout(2));
+    JSONObject obj = obj("foo", "bar");
+
+    Path a = grouped.create(Path.ROOT, "a", obj, User.TEST_USER);
+    Path b = grouped.create(a, obj, User.TEST_USER);
+    Path c = grouped.create(b, "c", obj, User.TEST_USER);
+    assertTrue(b.isSpecialSerial());
+    assertNull(b.toKey(grouped.layout).getParent());
+    assertEquals(b.toKey(grouped.layout), c.toKey(grouped.layout).getParent());
+    assertEquals(c, Path.fromKey(c.toKey(grouped.layout), grouped.layout));
+    assertEquals("bar", grouped.retrieve(c, User.TEST_USER).get("foo"));
+
+    JSONObject list = grouped.list(a, 0, 10, null, null, null, -1, User.TEST_USER);
+    assertEquals(1, list.length());
+    assertNotNull(list.get(b.getFilename()));
+  }
+
+  /**
+   * Load test for the grouped layout.  The local datastore does not
+   * limit the write rate of an entity group, so rather than timing
+   * creates this checks that they are spread over one entity group
+   * per directory, which is what lets throughput in production grow
+   * with the number of directories.
+   */
+  public void testGroupedLayoutSpreadsWrites() throws Exception {
+    final int creates = 64;
+    for (int dirs : new int[]{1, 4, 16}) {
+      for (KeyLayout layout : new KeyLayout[]{KeyLayout.ROOTED, new KeyLayout(1)}) {
+        Datastore store = new Datastore(layout);
+        Set<Key> groups = new HashSet<Key>();
+        long start = System.nanoTime();
+        for (int i = 0; i < creates; i++) {
+          Path dir = Path.ROOT.getChild("dir" + (i % dirs));
+          Key key = store.create(dir, new JSONObject(), User.TEST_USER).toKey(layout);
+          while (key.getParent() != null) {
+            key = key.getParent();
+          }
+          groups.add(key);
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        logger.info(String.format("%s: %d creates over %d dirs in %dms, %d entity groups",
+                                  layout, creates, dirs, elapsedMs, groups.size()));
+        assertEquals(layout.isRooted() ? 1 : dirs, groups.size());
+      }
+    }
+  }
+
+  public void testBatchRetrieveAndUpdate() throws Exception {
+    Map<Path, JSONObject> objs = new LinkedHashMap<Path, JSONObject>();
+    objs.put(Path.fromString("/a"), obj("x", "1"));
+    objs.put(Path.fromString("/a/b"), obj("x", "2"));
+    objs.put(Path.fromString("/c"), obj("x", "3"));
+    datastore.updateAll(objs, User.TEST_USER);
+
+    JSONObject got = datastore.retrieveAll(User.TEST_USER,
+                                           Path.fromString("/a"),
+                                           Path.fromString("/a/b"),
+                                           Path.fromString("/pinkelephant"));
+    assertEquals(2, got.length());
+    assertEquals("1", got.getJSONObject("/a").getString("x"));
+    assertEquals("2", got.getJSONObject("/a/b").getString("x"));
+    assertFalse(got.has("/pinkelephant"));
+    assertEquals("3", datastore.retrieve(Path.fromString("/c"), User.TEST_USER).getString("x"));
+  }
+
+  /** Batches larger than the datastore accepts are split. */
+  public void testBatchesSplit() throws Exception {
+    int count = Datastore.MAX_GET_KEYS + 1;
+    Map<Path, JSONObject> objs = new LinkedHashMap<Path, JSONObject>();
+    for (int i = 0; i < count; i++) {
+      objs.put(Path.fromString("/big" + i), obj("i", "" + i));
+    }
+    Path [] paths = objs.keySet().toArray(new Path[count]);
+    datastore.updateAll(objs, User.TEST_USER);
+    assertEquals(count, datastore.retrieveAll(User.TEST_USER, paths).length());
+    datastore.delete(User.TEST_USER, paths);
+    assertEquals(0, datastore.retrieveAll(User.TEST_USER, paths).length());
+  }
+
+  /**
+   * Logs the per-object cost of batch versus single gets and puts.
+   * The local datastore has no network round trip, so this mostly
+   * shows the fixed per-call overhead the batch calls save.
+   */
+  public void testBatchCostPerObject() throws Exception {
+    final int count = 100;
+    Map<Path, JSONObject> objs = new LinkedHashMap<Path, JSONObject>();
+    for (int i = 0; i < count; i++) {
+      objs.put(Path.fromString("/obj" + i), obj("i", "" + i));
+    }
+    Path [] paths = objs.keySet().toArray(new Path[count]);
+
+    long start = System.nanoTime();
+    for (Map.Entry<Path, JSONObject> entry : objs.entrySet()) {
+      datastore.update(entry.getKey(), entry.getValue(), User.TEST_USER);
+    }
+    long singlePutNs = (System.nanoTime() - start) / count;
+
+    start = System.nanoTime();
+    datastore.updateAll(objs, User.TEST_USER);
+    long batchPutNs = (System.nanoTime() - start) / count;
+
+    start = System.nanoTime();
+    for (Path path : paths) {
+      datastore.retrieve(path, User.TEST_USER);
+    }
+    long singleGetNs = (System.nanoTime() - start) / count;
+
+    start = System.nanoTime();
+    assertEquals(count, datastore.retrieveAll(User.TEST_USER, paths).length());
+    long batchGetNs = (System.nanoTime() - start) / count;
+
+    logger.info(String.format("per object: put %dns, putAll %dns, get %dns, getAll %dns",
+                              singlePutNs, batchPutNs, singleGetNs, batchGetNs));
+  }
+
   public static void main(final String [] args) {
     junit.textui.TestRunner.run(UtilTest.class);
   }
@@ -0,0 +1,169 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.datahub;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for Outbox.
+ *
+ * @author Pablo Mayrgundter <pmy@google.com>
+ */
+public class OutboxTest extends BaseTest {
+
+  static final Path CORPUS = Path.fromString("/wb");
+
+  CompositeStore store;
+  Search search;
+  /** Paths enqueued for draining, which the tests drain by hand. */
+  List<Path> enqueued;
+  /** If set, written by the next release, as if by a concurrent request. */
+  Path writeDuringDrain;
+
+  public void setUp() {
+    super.setUp();
+    enqueued = new ArrayList<Path>();
+    writeDuringDrain = null;
+    store = new CompositeStore(CORPUS, null);
+    store.setWriteBehind(true);
+    search = (Search) store.search;
+    store.outbox = new Outbox(store.datastoreAsAclService, search) {
+        @Override
+        void enqueueDrain(Path ... paths) {
+          enqueued.addAll(Arrays.asList(paths));
+        }
+        @Override
+        void release(Map<Key, Object> claimed, boolean indexed, List<Path> missed) {
+          if (writeDuringDrain != null) {
+            store.update(writeDuringDrain, obj("x", "late"), User.TEST_USER);
+            writeDuringDrain = null;
+          }
+          super.release(claimed, indexed, missed);
+        }
+      };
+  }
+
+  public void tearDown() {
+    store = null;
+    search = null;
+    enqueued = null;
+    super.tearDown();
+  }
+
+  public void testWriteBehind() throws Exception {
+    Path a = store.create(CORPUS, "a", obj("x", "1"), User.TEST_USER);
+    assertEquals(Arrays.asList(a), enqueued);
+    assertEquals("1", store.retrieve(a, User.TEST_USER).getString("x"));
+    assertNull(search.retrieve(a, User.TEST_USER));
+    assertEquals(1, store.outbox.getStats().getInt("pending"));
+
+    store.update(a, obj("x", "2"), User.TEST_USER);
+    assertEquals(1, store.outbox.getStats().getInt("pending"));
+
+    drainEnqueued();
+    assertEquals("2", search.retrieve(a, User.TEST_USER).getString("x"));
+    assertEquals(0, store.outbox.getStats().getInt("pending"));
+    assertEquals(0, store.outbox.getStats().getLong("lagMs"));
+
+    store.delete(User.TEST_USER, a);
+    drainEnqueued();
+    assertNull(search.retrieve(a, User.TEST_USER));
+    assertEquals(0, store.outbox.getStats().getInt("pending"));
+  }
+
+  /** A write during a drain must be indexed by a later drain. */
+  public void testWriteDuringDrain() throws Exception {
+    Path a = store.create(CORPUS, "a", obj("x", "1"), User.TEST_USER);
+    enqueued.clear();
+    writeDuringDrain = a;
+    store.outbox.drain(new String[]{KeyFactory.keyToString(a.toKey())});
+    assertEquals("1", search.retrieve(a, User.TEST_USER).getString("x"));
+    assertEquals(1, store.outbox.getStats().getInt("pending"));
+    // Both the write and the drain which missed it enqueue the path.
+    assertEquals(Arrays.asList(a, a), enqueued);
+
+    drainEnqueued();
+    assertEquals("late", search.retrieve(a, User.TEST_USER).getString("x"));
+    assertEquals(0, store.outbox.getStats().getInt("pending"));
+  }
+
+  /** Corpora sharing the datastore have their own drainers and stats. */
+  public void testCorporaScoped() throws Exception {
+    Path otherCorpus = Path.fromString("/wb2");
+    CompositeStore other = new CompositeStore(otherCorpus, null);
+    other.setWriteBehind(true);
+    assertFalse(store.outbox.drainer.name.equals(other.outbox.drainer.name));
+
+    store.create(CORPUS, "a", obj("x", "1"), User.TEST_USER);
+    store.create(CORPUS, "b", obj("x", "1"), User.TEST_USER);
+    other.create(otherCorpus, "c", obj("x", "1"), User.TEST_USER);
+    assertEquals(2, store.outbox.getStats().getInt("pending"));
+    assertEquals(1, other.outbox.getStats().getInt("pending"));
+
+    drainEnqueued();
+    assertEquals(0, store.outbox.getStats().getInt("pending"));
+    assertEquals(1, other.outbox.getStats().getInt("pending"));
+  }
+
+  /**
+   * Without the outbox, a batch whose search update fails is left
+   * written to the datastore only, as documented at
+   * CompositeStore.updateAll.
+   */
+  public void testUpdateAllWithoutOutbox() throws Exception {
+    store.setWriteBehind(false);
+    Path a = store.create(CORPUS, "a", obj("x", "1"), User.TEST_USER);
+    Path outside = store.datastore.create(Path.ROOT, "outside", obj("x", "1"), User.TEST_USER);
+    Map<Path, JSONObject> objs = new LinkedHashMap<Path, JSONObject>();
+    objs.put(a, obj("x", "2"));
+    objs.put(outside, obj("x", "2"));
+    try {
+      store.updateAll(objs, User.TEST_USER);
+      fail("path outside the corpus");
+    } catch (IllegalArgumentException e) {
+      // OK
+    }
+    assertEquals("2", store.retrieve(a, User.TEST_USER).getString("x"));
+    assertEquals("1", search.retrieve(a, User.TEST_USER).getString("x"));
+  }
+
+  public static void main(final String [] args) {
+    junit.textui.TestRunner.run(OutboxTest.class);
+  }
+
+  // Helpers.
+
+  void drainEnqueued() {
+    String [] pathKeys = new String[enqueued.size()];
+    for (int i = 0; i < pathKeys.length; i++) {
+      pathKeys[i] = KeyFactory.keyToString(enqueued.get(i).toKey());
+    }
+    enqueued.clear();
+    store.outbox.drain(pathKeys);
+  }
+
+  static JSONObject obj(String prop, String val) {
+    return Util.jsonPut(new JSONObject(), prop, val);
+  }
+}
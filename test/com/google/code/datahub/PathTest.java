@@ -19,6 +19,8 @@ import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 
+import java.net.URLEncoder;
+
 /**
  * Tests for the Path class.
  *
@@ -81,7 +83,74 @@ public class PathTest extends BaseTest {
     }
   }
 
+  public void testDocIdMatchesUrlEncoding() throws Exception {
+    String [] strs = {"/", "/a b", "/a+b%c", "/x.y-z*w~", "/caf\u00e9", "/\ud83d\ude00/_P2F",
+                      "no/root", "/#?&=\\\"'"};
+    for (String str : strs) {
+      assertEquals(str, legacyDocId(str), Path.encodeDocId(str));
+    }
+  }
+
+  public void testCachedAndInterned() {
+    Path path = Path.fromString("/a/b");
+    assertSame(path.toString(), path.toString());
+    assertSame(path.toDocId(), path.toDocId());
+    assertSame(Path.intern("/a/b"), Path.intern("/a/b"));
+    assertEquals(path, Path.intern("/a/b"));
+    assertEquals(Path.fromString("/a/kind(b)"), Path.fromString("/a/kind(b)/"));
+  }
+
+  public void testAncestors() {
+    Path path = Path.fromString("/a/b/c");
+    Path [] ancestors = path.getAncestors();
+    assertEquals(4, ancestors.length);
+    assertSame(Path.ROOT, ancestors[0]);
+    assertSame(path.getParent(), ancestors[2]);
+    assertSame(path, ancestors[3]);
+    assertSame(ancestors[1], path.getParent().getParent());
+    assertEquals("ROOTa_P2Fb_P2Fc ROOTa_P2Fb ROOTa ROOT", path.getPathTokens());
+    assertEquals("ROOT", Path.ROOT.getPathTokens());
+  }
+
+  public void testKeyLayout() {
+    for (int groupDepth = 0; groupDepth < 4; groupDepth++) {
+      KeyLayout layout = new KeyLayout(groupDepth);
+      for (String [] testCase : testPaths) {
+        Path path = Path.fromString(testCase[0]);
+        Key key = path.toKey(layout);
+        assertEquals("roundtrip layout(" + groupDepth + ")", path, Path.fromKey(key, layout));
+        if (path.getLength() > 0 && path.getLength() <= groupDepth) {
+          assertNull("group root has no parent", key.getParent());
+        }
+        if (path.getLength() > 0) {
+          assertEquals("logical parent", path.getParent().toKey(layout),
+                       layout.toParentKey(key));
+        }
+      }
+    }
+    Path path = Path.fromString("/a/kind(b)/__3__/d");
+    KeyLayout layout = new KeyLayout(3);
+    assertEquals(KeyFactory.createKey(KeyFactory.createKey(Path.PATH_KIND, "a/kind(b)/__3__"),
+                                      Path.PATH_KIND, "d"),
+                 path.toKey(layout));
+    assertEquals(path, Path.fromKey(path.toKey(layout), layout));
+  }
+
   public static void main(final String [] args) {
     junit.textui.TestRunner.run(PathTest.class);
   }
+
+  // Helpers.
+
+  /** The multi-pass encoding which Path.encodeDocId replaces. */
+  static String legacyDocId(String id) throws Exception {
+    if (id.startsWith(Path.SEP)) {
+      id = Path.ROOT_NAME + id.substring(Path.SEP.length());
+    }
+    id = URLEncoder.encode(id, Path.ENC_CHARSET);
+    for (String [] repl : Path.REPL_PAIRS) {
+      id = id.replaceAll(repl[0], repl[1]);
+    }
+    return id;
+  }
 }
@@ -0,0 +1,71 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.datahub;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Tests for the PathTrie class.
+ *
+ * @author Pablo Mayrgundter <pmy@google.com>
+ */
+public class PathTrieTest extends BaseTest {
+
+  public void testPrefixes() {
+    PathTrie<String> trie = new PathTrie<String>();
+    assertNull(trie.longestPrefix(path("/a/b")));
+    assertNull(trie.put(Path.ROOT, "root"));
+    assertNull(trie.put(path("/a"), "a"));
+    assertNull(trie.put(path("/a/b/c"), "c"));
+    assertNull(trie.put(path("/a/kind(b)"), "kind(b)"));
+    assertEquals("a", trie.put(path("/a"), "a2"));
+    assertEquals(4, trie.size());
+
+    assertEquals("a2", trie.get(path("/a")));
+    assertNull(trie.get(path("/a/b")));
+    assertEquals("root", trie.longestPrefix(path("/x")));
+    assertEquals("a2", trie.longestPrefix(path("/a/b")));
+    assertEquals("c", trie.longestPrefix(path("/a/b/c/d")));
+    assertEquals("kind(b)", trie.longestPrefix(path("/a/kind(b)/c")));
+    assertEquals(Arrays.asList("root", "a2", "c"), trie.ancestors(path("/a/b/c/d")));
+    assertEquals(new HashSet<String>(Arrays.asList("root", "a2", "c", "kind(b)")),
+                 new HashSet<String>(trie.values()));
+
+    assertEquals("a2", trie.remove(path("/a")));
+    assertNull(trie.remove(path("/a/b")));
+    assertEquals(3, trie.size());
+    assertEquals("root", trie.longestPrefix(path("/a/b")));
+    assertEquals(Arrays.asList("root", "c"), trie.ancestors(path("/a/b/c")));
+  }
+
+  public void testIsParentOf() {
+    assertTrue(Path.ROOT.isParentOf(path("/a")));
+    assertTrue(path("/a").isParentOf(path("/a/b/c")));
+    assertFalse(path("/a/b").isParentOf(path("/a/b")));
+    assertFalse(path("/a/b").isParentOf(path("/a/c/d")));
+    assertFalse(path("/b/b").isParentOf(path("/a/b/c")));
+  }
+
+  public static void main(final String [] args) {
+    junit.textui.TestRunner.run(PathTrieTest.class);
+  }
+
+  // Helpers.
+
+  static Path path(String str) {
+    return Path.fromString(str);
+  }
+}
@@ -0,0 +1,144 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.datahub;
+
+import org.json.JSONObject;
+
+/**
+ * Tests for QueryPlanner and HyperLogLog.
+ *
+ * @author Pablo Mayrgundter <pmy@google.com>
+ */
+public class QueryPlannerTest extends BaseTest {
+
+  static final Path CORPUS = Path.fromString("/qp");
+
+  CompositeStore store;
+
+  public void setUp() {
+    super.setUp();
+    store = new CompositeStore(CORPUS, null);
+    store.setRouteQueries(true);
+  }
+
+  public void testHyperLogLog() {
+    HyperLogLog hll = new HyperLogLog();
+    assertEquals(0, hll.estimate());
+    for (int i = 0; i < 10000; i++) {
+      hll.add("v" + i);
+      hll.add("v" + i);
+    }
+    assertEquals(10000, hll.estimate(), 1000);
+  }
+
+  public void testRouteByField() throws Exception {
+    for (int i = 0; i < 4; i++) {
+      store.create(CORPUS, "o" + i, obj("t" + i % 2, i), User.TEST_USER);
+    }
+    QueryPlanner planner = store.planner;
+    assertEquals(QueryPlanner.Backend.SEARCH, route(planner, "title", false).backend);
+    assertEquals(QueryPlanner.Backend.SEARCH, route(planner, "title:a", false).backend);
+    assertEquals(QueryPlanner.Backend.SEARCH, route(planner, "tag:t1", true).backend);
+    assertEquals(QueryPlanner.Backend.DATASTORE, route(planner, "tag:t1", false).backend);
+    assertEquals(QueryPlanner.Backend.DATASTORE, route(planner, "n >= 2", false).backend);
+    assertEquals(QueryPlanner.Backend.SEARCH, route(planner, "NOT tag:t1", false).backend);
+    assertEquals(QueryPlanner.Backend.SEARCH, route(planner, "tag != t1", false).backend);
+    planner.recordNeedIndex("n >=  2");
+    assertEquals(QueryPlanner.Backend.SEARCH, route(planner, "n >= 2", false).backend);
+    assertEquals(8, planner.getStats().getJSONArray("decisions").length());
+  }
+
+  public void testEstimateMatches() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      store.create(CORPUS, "o" + i, obj("t" + i % 4, i), User.TEST_USER);
+    }
+    assertEquals(100, QueryPlanner.estimateMatches(CORPUS, QueryCompiler.compile("n > 0")), 10);
+    assertEquals(25, QueryPlanner.estimateMatches(CORPUS, QueryCompiler.compile("tag:t1")), 3);
+  }
+
+  /** A full stats cache drops only its smallest stats for a new schema. */
+  public void testFieldStatsEviction() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      store.create(CORPUS, "o" + i, obj("t" + i % 4, i), User.TEST_USER);
+    }
+    for (int i = SchemaManager.fieldStats.size(); i < SchemaManager.MAX_CACHED_SCHEMAS; i++) {
+      SchemaManager.getFieldStats(SchemaManager.childSchemaKey(Path.fromString("/empty" + i)));
+    }
+    SchemaManager.getFieldStats(SchemaManager.childSchemaKey(Path.fromString("/new")));
+    assertEquals(SchemaManager.MAX_CACHED_SCHEMAS, SchemaManager.fieldStats.size());
+    assertEquals(10, QueryPlanner.estimateMatches(CORPUS, QueryCompiler.compile("n >= 0")), 1);
+  }
+
+  public void testSearchEitherStore() throws Exception {
+    for (int i = 0; i < 6; i++) {
+      store.create(CORPUS, "o" + i, obj("t" + i % 2, i), User.TEST_USER);
+    }
+    // Sample both stores, which must agree.
+    for (int i = 0; i < 2 * QueryPlanner.MIN_SAMPLES; i++) {
+      JSONObject rspJson = store.search(CORPUS, "tag:t1", User.TEST_USER);
+      assertEquals(3, rspJson.getJSONArray("results").length());
+    }
+    JSONObject stats = store.planner.getStats();
+    assertEquals(QueryPlanner.MIN_SAMPLES, stats.getJSONObject("datastore").getLong("samples"));
+    assertEquals(QueryPlanner.MIN_SAMPLES, stats.getJSONObject("search").getLong("samples"));
+  }
+
+  public void testNumbersEitherStore() throws Exception {
+    Object [] nums = {1, 2, 2.5, 3.0, 4};
+    for (int i = 0; i < nums.length; i++) {
+      store.create(CORPUS, "o" + i, Util.jsonPut(new JSONObject(), "n", nums[i]),
+                   User.TEST_USER);
+    }
+    // Sample both stores, which must agree.
+    for (int i = 0; i < QueryPlanner.MIN_SAMPLES; i++) {
+      assertEquals(3, store.search(CORPUS, "n > 2", User.TEST_USER)
+                   .getJSONArray("results").length());
+      assertEquals(2, store.search(CORPUS, "n < 2.5", User.TEST_USER)
+                   .getJSONArray("results").length());
+    }
+    JSONObject stats = store.planner.getStats();
+    assertEquals(QueryPlanner.MIN_SAMPLES, stats.getJSONObject("datastore").getLong("samples"));
+    assertEquals(QueryPlanner.MIN_SAMPLES, stats.getJSONObject("search").getLong("samples"));
+  }
+
+  public void testDatastoreCursor() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      store.create(CORPUS, "o" + i, obj("t1", i), User.TEST_USER);
+    }
+    // The first searches are routed to the datastore to sample it.
+    JSONObject page = store.search(CORPUS, "tag:t1", null, 3, null, null, null,
+                                   Store.DURATION_UNDEFINED, User.TEST_USER);
+    assertEquals(3, page.getJSONArray("results").length());
+    String next = page.getString(Store.NEXT_FIELD);
+    assertTrue(next.startsWith(CompositeStore.DATASTORE_CURSOR_PREFIX));
+    page = store.search(CORPUS, "tag:t1", next, 3, null, null, null,
+                        Store.DURATION_UNDEFINED, User.TEST_USER);
+    assertEquals(2, page.getJSONArray("results").length());
+    assertFalse(page.has(Store.NEXT_FIELD));
+  }
+
+  // Helpers.
+
+  static QueryPlanner.Route route(QueryPlanner planner, String query, boolean subscribe) {
+    return planner.route(CORPUS, query, 0, 10, null, null, subscribe);
+  }
+
+  /** @return an object with an atom tag, a text title and a number n. */
+  static JSONObject obj(String tag, int n) {
+    JSONObject json = Util.jsonPut(new JSONObject(), "tag", tag);
+    Util.jsonPut(json, "title", "a title");
+    return Util.jsonPut(json, "n", n);
+  }
+}
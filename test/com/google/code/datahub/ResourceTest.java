@@ -16,6 +16,7 @@ package com.google.code.datahub;
 
 import static org.mockito.Mockito.*;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.BufferedReader;
@@ -183,6 +184,73 @@ public class ResourceTest extends BaseTest {
     }
   }
 
+  /** Test running several operations in one __batch__ request. */
+  public void testBatch() throws Exception {
+
+    testPost();
+    reset(req, rsp);
+
+    String ops = "[{method: 'GET', path: '/__1__'},"
+      + " {method: 'GET', path: '/__1__/__2__'},"
+      + " {method: 'GET', path: '/pinkelephant'},"
+      + " {method: 'PUT', path: '/__1__', body: {" + BODY_KEY + ": 'foo'}},"
+      + " {method: 'PUT', path: '/bar', body: {" + BODY_KEY + ": 'bar'}},"
+      + " {method: 'GET', path: '/__1__'},"
+      + " {method: 'POST', path: '/'},"
+      + " {method: 'DELETE', path: '/bar'}]";
+
+    StringWriter out;
+
+    when(req.getMethod()).thenReturn("POST");
+    when(req.getRequestURI()).thenReturn(SRVLT_PATH + "/__batch__");
+    when(req.getServletPath()).thenReturn(SRVLT_PATH);
+    when(req.getReader()).thenReturn(new BufferedReader(new StringReader(ops)));
+    when(rsp.getWriter()).thenReturn(new PrintWriter(out = new StringWriter()));
+
+    r.service(req, rsp);
+
+    JSONArray results = new JSONObject(out.toString()).getJSONArray("results");
+    assertEquals(8, results.length());
+    assertEquals(200, results.getJSONObject(0).getInt("status"));
+    assertEquals(BODY_VAL, results.getJSONObject(0).getJSONObject("body").get(BODY_KEY));
+    assertEquals(BODY_VAL, results.getJSONObject(1).getJSONObject("body").get(BODY_KEY));
+    assertEquals(404, results.getJSONObject(2).getInt("status"));
+    assertEquals(200, results.getJSONObject(3).getInt("status"));
+    assertEquals(200, results.getJSONObject(4).getInt("status"));
+    assertEquals("foo", results.getJSONObject(5).getJSONObject("body").get(BODY_KEY));
+    assertEquals(400, results.getJSONObject(6).getInt("status"));
+    assertEquals(200, results.getJSONObject(7).getInt("status"));
+  }
+
+  /** An invalid op in a run falls back to running each op alone. */
+  public void testBatchInvalidOp() throws Exception {
+
+    testPost();
+    reset(req, rsp);
+
+    String ops = "[{method: 'GET', path: '/__1__'},"
+      + " {method: 'GET', path: '/bad#path'},"
+      + " {method: 'PUT', path: '/__1__', body: {" + BODY_KEY + ": 'foo'}},"
+      + " {method: 'PUT', path: '/bad#path', body: {" + BODY_KEY + ": 'bar'}}]";
+
+    StringWriter out;
+
+    when(req.getMethod()).thenReturn("POST");
+    when(req.getRequestURI()).thenReturn(SRVLT_PATH + "/__batch__");
+    when(req.getServletPath()).thenReturn(SRVLT_PATH);
+    when(req.getReader()).thenReturn(new BufferedReader(new StringReader(ops)));
+    when(rsp.getWriter()).thenReturn(new PrintWriter(out = new StringWriter()));
+
+    r.service(req, rsp);
+
+    JSONArray results = new JSONObject(out.toString()).getJSONArray("results");
+    assertEquals(4, results.length());
+    assertEquals(200, results.getJSONObject(0).getInt("status"));
+    assertEquals(400, results.getJSONObject(1).getInt("status"));
+    assertEquals(200, results.getJSONObject(2).getInt("status"));
+    assertEquals(400, results.getJSONObject(3).getInt("status"));
+  }
+
   public static void main(final String [] args) {
     junit.textui.TestRunner.run(UtilTest.class);
   }
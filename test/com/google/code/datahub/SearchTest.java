@@ -14,13 +14,31 @@
  */
 package com.google.code.datahub;
 
+import static org.mockito.Mockito.*;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.Field;
+import com.google.appengine.api.search.Index;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
 /**
  * Tests for Search.
  *
@@ -55,6 +73,92 @@ public class SearchTest extends UtilTest {
     assertEquals("d", json.get("c"));
   }
 
+  public void testTypedFields() throws JSONException {
+    JSONObject typed = new JSONObject("{count: 3, big: 12345678901, ratio: 0.5, ok: true,"
+                                      + " day: '2012-03-14', id: 'user_1', word: 'true',"
+                                      + " name: {first: 'Ada', born: 1815}}");
+    Document typedDoc = Search.jsonToDocument(path, typed);
+    assertEquals(Field.FieldType.NUMBER, typedDoc.getOnlyField("count").getType());
+    assertEquals(Field.FieldType.ATOM, typedDoc.getOnlyField("big").getType());
+    assertEquals(Field.FieldType.NUMBER, typedDoc.getOnlyField("ratio").getType());
+    assertEquals(Field.FieldType.ATOM, typedDoc.getOnlyField("ok").getType());
+    assertEquals(Field.FieldType.DATE, typedDoc.getOnlyField("day").getType());
+    assertEquals(Field.FieldType.ATOM, typedDoc.getOnlyField("id").getType());
+    assertEquals(Field.FieldType.TEXT, typedDoc.getOnlyField("word").getType());
+    assertEquals(Field.FieldType.TEXT, typedDoc.getOnlyField("name__first").getType());
+    assertEquals(Field.FieldType.NUMBER, typedDoc.getOnlyField("name__born").getType());
+
+    JSONObject restored = Search.documentToJson(typedDoc);
+    assertEquals(3L, restored.get("count"));
+    assertEquals(12345678901L, restored.get("big"));
+    assertEquals(0.5, restored.get("ratio"));
+    assertEquals(Boolean.TRUE, restored.get("ok"));
+    assertEquals("2012-03-14", restored.get("day"));
+    assertEquals("user_1", restored.get("id"));
+    assertEquals("true", restored.get("word"));
+    assertEquals("Ada", restored.getJSONObject("name").get("first"));
+    assertEquals(1815L, restored.getJSONObject("name").get("born"));
+  }
+
+  /** Strings keep the ATOM or TEXT type recorded for their field. */
+  public void testStringTypesFollowSchema() throws JSONException {
+    SchemaManager.updateSchema(path, Search.jsonToDocument(path, new JSONObject(
+        "{id: 'user_1', title: 'plain words'}")));
+    Document next = Search.jsonToDocument(path, new JSONObject(
+        "{id: 'Ada Lovelace', title: 'draft_2', note: 'x'}"));
+    assertEquals(Field.FieldType.ATOM, next.getOnlyField("id").getType());
+    assertEquals(Field.FieldType.TEXT, next.getOnlyField("title").getType());
+    assertEquals(Field.FieldType.TEXT, next.getOnlyField("note").getType());
+    // Unless an ATOM would read back as another type.
+    Document numeric = Search.jsonToDocument(path, new JSONObject("{id: '12'}"));
+    assertEquals(Field.FieldType.TEXT, numeric.getOnlyField("id").getType());
+    assertEquals("12", Search.documentToJson(numeric).get("id"));
+  }
+
+  /** Keys with underscores must not be split as nested fields. */
+  public void testUnderscoredFieldNames() throws JSONException {
+    JSONObject underscored = new JSONObject("{user_id: 1, a__b: 2, _c_: 3, d_1: 4,"
+                                            + " e: {f__: 5, g_h: 6}}");
+    Document underscoredDoc = Search.jsonToDocument(path, underscored);
+    assertNotNull("plain names unchanged", underscoredDoc.getOnlyField("user_id"));
+    assertEquals("user_id", Search.toFieldName("user_id", Util.FIELD_SEP));
+    assertEquals("e__g_h", Search.toFieldName("e/g_h", Util.FIELD_SEP));
+
+    JSONObject restored = Search.documentToJson(underscoredDoc);
+    assertEquals(5, restored.length());
+    assertEquals(1L, restored.get("user_id"));
+    assertEquals(2L, restored.get("a__b"));
+    assertEquals(3L, restored.get("_c_"));
+    assertEquals(4L, restored.get("d_1"));
+    assertEquals(5L, restored.getJSONObject("e").get("f__"));
+    assertEquals(6L, restored.getJSONObject("e").get("g_h"));
+  }
+
+  /**
+   * Checks that numbers beyond the range of NUMBER fields are mapped
+   * to ATOMs, which are read back as numbers, and that strings which
+   * look like numbers aren't.
+   */
+  public void testNumbersOutOfRange() throws JSONException {
+    JSONObject nums = new JSONObject("{max: 2147483647, over: 2147483648, neg: -2147483648,"
+                                     + " dbl: 1.5e12, small: -2.5, str: '2147483648'}");
+    Document numsDoc = Search.jsonToDocument(path, nums);
+    assertEquals(Field.FieldType.NUMBER, numsDoc.getOnlyField("max").getType());
+    assertEquals(Field.FieldType.ATOM, numsDoc.getOnlyField("over").getType());
+    assertEquals(Field.FieldType.ATOM, numsDoc.getOnlyField("neg").getType());
+    assertEquals(Field.FieldType.ATOM, numsDoc.getOnlyField("dbl").getType());
+    assertEquals(Field.FieldType.NUMBER, numsDoc.getOnlyField("small").getType());
+    assertEquals(Field.FieldType.TEXT, numsDoc.getOnlyField("str").getType());
+
+    JSONObject restored = Search.documentToJson(numsDoc);
+    assertEquals(2147483647L, restored.get("max"));
+    assertEquals(2147483648L, restored.get("over"));
+    assertEquals(-2147483648L, restored.get("neg"));
+    assertEquals(1.5e12, restored.get("dbl"));
+    assertEquals(-2.5, restored.get("small"));
+    assertEquals("2147483648", restored.get("str"));
+  }
+
   /**
    * Currently broken due to ROOT being left out of /a.  Not sure if I
    * want it though.
@@ -73,7 +177,203 @@ public class SearchTest extends UtilTest {
     }
   }
 
+  public void testSchemaCache() throws Exception {
+    Key key = SchemaManager.schemaKey(path);
+    SchemaManager.updateSchema(path, doc);
+    assertEquals(1, getSchemaVersion(key));
+
+    // Rewriting the same fields doesn't write the schema.
+    SchemaManager.updateSchema(path, doc);
+    assertEquals(1, getSchemaVersion(key));
+
+    // A new field does.
+    JSONObject moreJson = new JSONObject(json.toString());
+    moreJson.put("e", "f");
+    SchemaManager.updateSchema(path, Search.jsonToDocument(path, moreJson));
+    assertEquals(2, getSchemaVersion(key));
+    assertTrue(SchemaManager.getSchemaForPsi(path).containsKey("e"));
+
+    // Changes by other instances are seen once the cached copy is checked.
+    Entity schema = SchemaManager.datastore.get(key);
+    schema.setProperty("g", Field.FieldType.TEXT.name());
+    schema.setProperty(SchemaManager.VERSION_PROP, 3L);
+    SchemaManager.datastore.put(schema);
+    assertFalse(SchemaManager.getSchemaForPsi(path).containsKey("g"));
+    SchemaManager.getSchema(key).checkedMs = 0;
+    assertTrue(SchemaManager.getSchemaForPsi(path).containsKey("g"));
+  }
+
+  public void testSearchProjectsNestedFields() throws JSONException {
+    Path corpus = Path.fromString("/sp");
+    Search search = new Search(corpus, null);
+    JSONObject author = new JSONObject().put("name", "n").put("age", 3);
+    // Below the corpus' children, so its nested fields aren't in their schema.
+    Path grandChild = Path.fromString("/sp/a/b");
+    search.create(grandChild, new JSONObject().put("title", "t").put("author", author),
+                  User.TEST_USER);
+    JSONObject rsp = search.search(corpus, "title:t", 0, 10, new String[]{"author/name"}, null,
+                                   null, Store.DURATION_UNDEFINED, User.TEST_USER);
+    JSONObject hit =
+      rsp.getJSONArray("results").getJSONObject(0).getJSONObject(grandChild.toString());
+    assertEquals("n", hit.getJSONObject("author").getString("name"));
+    assertFalse(hit.getJSONObject("author").has("age"));
+    assertFalse(hit.has("title"));
+  }
+
+  public void testDocWriter() throws JSONException {
+    final Map<String, Document> indexed = new HashMap<String, Document>();
+    final List<Integer> batchSizes = new ArrayList<Integer>();
+    Index index = mock(Index.class);
+    doAnswer(new Answer<Object>() {
+        public Object answer(InvocationOnMock invocation) {
+          int size = 0;
+          for (Object doc : (Iterable<?>) invocation.getArguments()[0]) {
+            indexed.put(((Document) doc).getId(), (Document) doc);
+            size++;
+          }
+          batchSizes.add(size);
+          return null;
+        }
+      }).when(index).put(Matchers.<Iterable<Document>>any());
+    DocWriter writer = new DocWriter(index);
+
+    // Puts of the same doc coalesce, the last winning.
+    writer.add(Search.jsonToDocument(path, json));
+    writer.add(doc);
+    writer.add(Search.jsonToDocument(path, new JSONObject("{a: 'last'}")));
+    assertEquals("last", writer.get(path.toDocId()).getOnlyField("a").getText());
+
+    // Enough distinct docs flush in batches of at most MAX_PUT_DOCS.
+    for (int i = 0; i < 2 * Search.MAX_PUT_DOCS; i++) {
+      writer.add(Search.jsonToDocument(path.getChild("d" + i), json));
+    }
+    writer.flush();
+    assertEquals(0, writer.size());
+    assertEquals(2 * Search.MAX_PUT_DOCS + 1, indexed.size());
+    assertEquals("last", indexed.get(path.toDocId()).getOnlyField("a").getText());
+    for (int batchSize : batchSizes) {
+      assertTrue(batchSize <= Search.MAX_PUT_DOCS);
+    }
+    assertTrue(writer.puts.get() < 2 * Search.MAX_PUT_DOCS);
+
+    // Removed docs aren't put.
+    writer.add(Search.jsonToDocument(path.getChild("gone"), json));
+    writer.remove(path.getChild("gone").toDocId());
+    writer.flush();
+    assertFalse(indexed.containsKey(path.getChild("gone").toDocId()));
+  }
+
+  /**
+   * Checks that each thread flushes only its own puts, so that a
+   * failed put is reported to the thread that made it.
+   */
+  public void testDocWriterPerThread() throws Exception {
+    Index index = mock(Index.class);
+    doThrow(new RuntimeException("put failed")).when(index).put(Matchers.<Iterable<Document>>any());
+    final DocWriter writer = new DocWriter(index);
+    writer.add(Search.jsonToDocument(path, json));
+
+    final List<Object> otherResults = new ArrayList<Object>();
+    Thread other = new Thread() {
+        public void run() {
+          otherResults.add(writer.get(path.toDocId()));
+          otherResults.add(writer.size());
+          writer.flush();
+        }
+      };
+    other.start();
+    other.join();
+    assertEquals(null, otherResults.get(0));
+    assertEquals(0, otherResults.get(1));
+    assertEquals(0, writer.puts.get());
+    assertNotNull(writer.get(path.toDocId()));
+
+    try {
+      writer.flush();
+      fail("put failure not reported");
+    } catch (RuntimeException e) {
+      assertEquals("put failed", e.getMessage());
+    }
+    assertEquals(0, writer.size());
+  }
+
+  /** Writes and deletes with concurrentWrites reach this corpus and its parent. */
+  public void testConcurrentWrites() throws JSONException {
+    Path parentPath = Path.fromString("/cw");
+    Path corpus = Path.fromString("/cw/c");
+    Search parent = new Search(parentPath, null);
+    Search search = new Search(corpus, parentPath);
+    search.concurrentWrites = true;
+    Map<Path, JSONObject> objs = new LinkedHashMap<Path, JSONObject>();
+    for (int i = 0; i < 3; i++) {
+      objs.put(corpus.getChild("o" + i), new JSONObject().put("title", "t"));
+    }
+    search.updateAll(objs, User.TEST_USER);
+    Path created = search.create(corpus, "o3", new JSONObject().put("title", "t"),
+                                 User.TEST_USER);
+    for (Search store : new Search[]{search, parent}) {
+      assertEquals("t", store.retrieve(created, User.TEST_USER).get("title"));
+      assertEquals(4, store.search(store.corpusPath, "title:t", User.TEST_USER)
+                   .getJSONArray("results").length());
+    }
+
+    search.delete(User.TEST_USER, corpus.getChild("o0"), created);
+    for (Search store : new Search[]{search, parent}) {
+      assertNull(store.retrieve(created, User.TEST_USER));
+      assertEquals(2, store.search(store.corpusPath, "title:t", User.TEST_USER)
+                   .getJSONArray("results").length());
+    }
+  }
+
+  /** Checks that a pipeline attempts every write and reports every failure. */
+  public void testWritePipelineAggregatesFailures() {
+    WritePipeline pipeline = new WritePipeline();
+    final int [] runs = {0};
+    FutureTask<Void> ok = new FutureTask<Void>(new Runnable() {
+        public void run() {
+          runs[0]++;
+        }
+      }, null);
+    FutureTask<Void> failed = new FutureTask<Void>(new Callable<Void>() {
+        public Void call() {
+          throw new IllegalStateException("index");
+        }
+      });
+    ok.run();
+    failed.run();
+    pipeline.add(ok);
+    pipeline.add(failed);
+    pipeline.run(new Runnable() {
+        public void run() {
+          throw new IllegalArgumentException("schema");
+        }
+      });
+    pipeline.run(new Runnable() {
+        public void run() {
+          runs[0]++;
+        }
+      });
+    try {
+      pipeline.await();
+      fail("Failed writes not reported.");
+    } catch (WritePipeline.WriteException e) {
+      assertEquals(2, e.failures.size());
+      assertTrue(e.failures.get(0) instanceof IllegalArgumentException);
+      assertTrue(e.failures.get(1) instanceof IllegalStateException);
+    }
+    assertEquals(2, runs[0]);
+
+    // Failures are only reported once.
+    pipeline.await();
+  }
+
   public static void main(final String [] args) {
     junit.textui.TestRunner.run(UtilTest.class);
   }
+
+  // Helpers.
+
+  static long getSchemaVersion(Key key) throws Exception {
+    return (Long) SchemaManager.datastore.get(key).getProperty(SchemaManager.VERSION_PROP);
+  }
 }
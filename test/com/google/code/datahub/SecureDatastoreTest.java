@@ -14,8 +14,19 @@
  */
 package com.google.code.datahub;
 
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Tests for SecureDatastore, to exercise ACL controls for allow,
  * restrict and combinations with different precedence.
@@ -90,4 +101,410 @@ public class SecureDatastoreTest extends DatastoreTest {
       fail("Read restricted but should be allowed.");
     }
   }
+
+  public void testAncestorControlLevels() {
+    JSONObject o = new JSONObject();
+    User u = User.TEST_USER;
+
+    Path a = store.create(Path.ROOT, "a", o, u);
+    Path b = store.create(a, "b", o, u);
+    Path c = store.create(b, "c", o, u);
+    store.setAllowed(Path.ROOT, u, SecureDatastore.Op.READ);
+    store.setRestricted(a, u, SecureDatastore.Op.READ);
+    store.setAllowed(c, u, SecureDatastore.Op.READ);
+
+    CompiledAcl [] acls = store.getAncestorAcls(c);
+    assertEquals(4, acls.length);
+    assertNotNull(acls[0]);
+    assertNotNull(acls[1]);
+    assertNull(acls[2]);
+    assertNotNull(acls[3]);
+
+    assertEquals(0, store.getControlLevel(b, SecureDatastore.ControlType.ALLOW, u,
+                                          SecureDatastore.Op.READ));
+    assertEquals(1, store.getControlLevel(b, SecureDatastore.ControlType.RESTRICT, u,
+                                          SecureDatastore.Op.READ));
+    assertTrue(store.isAllowed(Path.ROOT, u, SecureDatastore.Op.READ));
+    assertTrue(store.isRestricted(a, u, SecureDatastore.Op.READ));
+    assertTrue(store.isRestricted(b, u, SecureDatastore.Op.READ));
+    assertTrue(store.isAllowed(c, u, SecureDatastore.Op.READ));
+    assertTrue(store.isAllowed(b, u, SecureDatastore.Op.UPDATE));
+  }
+
+  public void testAclCache() {
+    User u = User.TEST_USER;
+    Path a = store.create(Path.ROOT, "a", new JSONObject(), u);
+
+    store.assertAllowed(a, u, SecureDatastore.Op.READ);
+    long misses = store.aclCache.misses.get();
+    long hits = store.aclCache.hits.get();
+    // A new user, as the first's decision is memoized for the request.
+    store.assertAllowed(a, new User("other"), SecureDatastore.Op.READ);
+    assertEquals("absent ACLs are cached", misses, store.aclCache.misses.get());
+    assertEquals(hits + 2, store.aclCache.hits.get());
+
+    store.setRestricted(a, u, SecureDatastore.Op.READ);
+    assertTrue("saveAcl invalidates", store.isRestricted(a, u, SecureDatastore.Op.READ));
+    store.clearRestricted(a, u, SecureDatastore.Op.READ);
+    assertTrue("saveAcl invalidates", store.isAllowed(a, u, SecureDatastore.Op.READ));
+  }
+
+  public void testCompiledAcl() throws Exception {
+    JSONObject acl = new JSONObject();
+    store.setControlInAcl(acl, SecureDatastore.ControlType.ALLOW, "a", SecureDatastore.Op.READ);
+    store.setControlInAcl(acl, SecureDatastore.ControlType.RESTRICT, "a", SecureDatastore.Op.UPDATE);
+    for (int i = 0; i < 1000; i++) {
+      store.setControlInAcl(acl, SecureDatastore.ControlType.ALLOW, "u" + i, SecureDatastore.Op.READ);
+    }
+    CompiledAcl compiled = CompiledAcl.compile(acl);
+    int a = CompiledAcl.lookupUid("a");
+    assertTrue(compiled.isAsserted(a, SecureDatastore.ControlType.ALLOW, SecureDatastore.Op.READ));
+    assertTrue(compiled.isAsserted(a, SecureDatastore.ControlType.RESTRICT,
+                                   SecureDatastore.Op.UPDATE));
+    assertFalse(compiled.isAsserted(a, SecureDatastore.ControlType.RESTRICT,
+                                    SecureDatastore.Op.READ));
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(compiled.isAsserted(CompiledAcl.lookupUid("u" + i),
+                                     SecureDatastore.ControlType.ALLOW, SecureDatastore.Op.READ));
+    }
+    assertEquals(CompiledAcl.NO_UID, CompiledAcl.lookupUid("never in an acl"));
+    assertEquals(0, compiled.getMask(CompiledAcl.NO_UID));
+  }
+
+  public void testAclCacheBounds() throws Exception {
+    AclCache cache = new AclCache(10, 0);
+    for (int i = 0; i < 100; i++) {
+      cache.put(Path.fromString("/a" + i).toKey(), null, cache.generation());
+    }
+    assertTrue(cache.entries.size() <= 10);
+    Thread.sleep(1);
+    assertNull("expired", cache.get(Path.fromString("/a99").toKey()));
+    cache.put(Path.ROOT_KEY, CompiledAcl.compile(new JSONObject()), cache.generation() - 1);
+    assertNull("stale generation not cached", cache.get(Path.ROOT_KEY));
+  }
+
+  public void testStoredAclShards() throws Exception {
+    User u = User.TEST_USER;
+    Path a = store.create(Path.ROOT, "a", new JSONObject(), u);
+    Key aclKey = store.createAclKey(a);
+    for (int i = 0; i <= StoredAcl.MAX_INLINE_UIDS; i++) {
+      store.setAllowed(a, new User("u" + i), SecureDatastore.Op.READ);
+    }
+    assertEquals("outgrew inline", 1, StoredAcl.getShardCount(store.service.get(aclKey)));
+    assertTrue(store.isAllowed(a, new User("u0"), SecureDatastore.Op.READ));
+
+    Map<String, Integer> masks = new HashMap<String, Integer>();
+    int restrictRead = CompiledAcl.bit(SecureDatastore.ControlType.RESTRICT,
+                                       SecureDatastore.Op.READ);
+    for (int i = 0; i < 3 * StoredAcl.MAX_SHARD_UIDS; i++) {
+      masks.put("u" + i, restrictRead);
+    }
+    store.saveAcl(null, aclKey, masks, 0, 1);
+    store.aclCache.clear();
+    assertEquals(8, StoredAcl.getShardCount(store.service.get(aclKey)));
+    assertTrue(store.isRestricted(a, new User("u7"), SecureDatastore.Op.READ));
+    store.clearRestricted(a, new User("u7"), SecureDatastore.Op.READ);
+    assertTrue(store.isAllowed(a, new User("u7"), SecureDatastore.Op.READ));
+    assertTrue(store.isRestricted(a, new User("u8"), SecureDatastore.Op.READ));
+  }
+
+  public void testLegacyAclMigration() throws Exception {
+    User u = User.TEST_USER;
+    Path a = store.create(Path.ROOT, "a", new JSONObject(), u);
+    Key aclKey = store.createAclKey(a);
+    JSONObject legacy = new JSONObject();
+    store.setControlInAcl(legacy, SecureDatastore.ControlType.RESTRICT, u.getEffectiveUID(),
+                          SecureDatastore.Op.READ);
+    Entity legacyEntity = new Entity(aclKey);
+    Datastore.setProperties(legacyEntity, legacy);
+    store.service.put(legacyEntity);
+    assertTrue("legacy read", store.isRestricted(a, u, SecureDatastore.Op.READ));
+
+    store.setAllowed(a, new User("other"), SecureDatastore.Op.UPDATE);
+    assertFalse("converted on write", StoredAcl.isLegacy(store.service.get(aclKey)));
+    assertTrue(store.isRestricted(a, u, SecureDatastore.Op.READ));
+    assertTrue(store.isAllowed(a, u, SecureDatastore.Op.UPDATE));
+  }
+
+  public void testMaterializedAcls() {
+    QueuedStore store = new QueuedStore();
+    User u = User.TEST_USER;
+    Path a = store.create(Path.ROOT, "a", new JSONObject(), u);
+    Path b = store.create(a, "b", new JSONObject(), u);
+    Path c = store.create(b, "c", new JSONObject(), u);
+    store.setRestricted(a, u, SecureDatastore.Op.READ);
+    store.setAllowed(c, u, SecureDatastore.Op.READ);
+    assertEquals(2, store.queued.size());
+    assertTrue("pending", store.isPropagating(b));
+    assertTrue("falls back while pending", store.isRestricted(b, u, SecureDatastore.Op.READ));
+
+    drainPropagations(store);
+    assertFalse(store.isPropagating(b));
+    CompiledAcl effective =
+      store.getCachedAcl(store.createAclKey(b, SecureDatastore.EFFECTIVE_ACL_KIND));
+    assertNotNull("materialized", effective);
+    assertTrue(store.isRestricted(a, u, SecureDatastore.Op.READ));
+    assertTrue(store.isRestricted(b, u, SecureDatastore.Op.READ));
+    assertTrue(store.isAllowed(c, u, SecureDatastore.Op.READ));
+    assertTrue(store.isAllowed(b, u, SecureDatastore.Op.UPDATE));
+    assertTrue(store.isAllowed(Path.ROOT, u, SecureDatastore.Op.READ));
+  }
+
+  public void testMaterializedAclDeletedWithPath() {
+    QueuedStore store = new QueuedStore();
+    User u = User.TEST_USER;
+    User other = new User("other");
+    Path a = store.create(Path.ROOT, "a", new JSONObject(), u);
+    Path b = store.create(a, "b", new JSONObject(), u);
+    store.setAllowed(a, other, SecureDatastore.Op.READ);
+    drainPropagations(store);
+    assertFalse(store.isRestricted(b, other, SecureDatastore.Op.READ));
+
+    store.delete(u, b);
+    store.clearAllowed(a, other, SecureDatastore.Op.READ);
+    store.setRestricted(a, other, SecureDatastore.Op.READ);
+    drainPropagations(store);
+    assertFalse(store.isPropagating(a));
+    b = store.create(a, "b", new JSONObject(), u);
+    assertNull("not materialized",
+               store.getCachedAcl(store.createAclKey(b, SecureDatastore.EFFECTIVE_ACL_KIND)));
+    assertTrue(store.isRestricted(b, other, SecureDatastore.Op.READ));
+  }
+
+  public void testNestedPropagationRace() {
+    final Path [] changeDuringStep = new Path[1];
+    final User other = new User("other");
+    QueuedStore store = new QueuedStore() {
+        @Override
+        Map<Key, Map<String, Integer>> loadMasks(List<Key> aclKeys) {
+          Map<Key, Map<String, Integer>> masks = super.loadMasks(aclKeys);
+          // Changes an ACL after the step has read it.
+          Path changed = changeDuringStep[0];
+          if (changed != null) {
+            changeDuringStep[0] = null;
+            setRestricted(changed, other, Op.READ);
+          }
+          return masks;
+        }
+      };
+    User u = User.TEST_USER;
+    Path a = store.create(Path.ROOT, "a", new JSONObject(), u);
+    Path b = store.create(a, "b", new JSONObject(), u);
+    Path c = store.create(b, "c", new JSONObject(), u);
+    store.setAllowed(a, other, SecureDatastore.Op.READ);
+    assertEquals(1, store.queued.size());
+    changeDuringStep[0] = b;
+    store.propagateStep(store.queued.remove(0));
+    // The nested propagation from b is still queued, and the step
+    // from a has not overwritten c with the ACL it first read.
+    assertEquals(1, store.queued.size());
+    Key effectiveKey = store.createAclKey(c, SecureDatastore.EFFECTIVE_ACL_KIND);
+    int uid = CompiledAcl.lookupUid(other.getEffectiveUID());
+    CompiledAcl effective =
+      store.loadAcls(Collections.singletonList(effectiveKey)).get(effectiveKey);
+    assertTrue(SecureDatastore.isRestricted(effective, uid, SecureDatastore.Op.READ));
+    store.propagateStep(store.queued.remove(0));
+    assertFalse(store.isPropagating(c));
+    assertTrue(store.isRestricted(c, other, SecureDatastore.Op.READ));
+  }
+
+  public void testResetPropagations() {
+    QueuedStore store = new QueuedStore();
+    User u = User.TEST_USER;
+    User other = new User("other");
+    Path a = store.create(Path.ROOT, "a", new JSONObject(), u);
+    Path b = store.create(a, "b", new JSONObject(), u);
+    store.setRestricted(a, other, SecureDatastore.Op.READ);
+    String failed = store.queued.remove(0);
+    assertTrue("stuck", store.isPropagating(b));
+
+    store.resetPropagations(b);
+    assertEquals(1, store.queued.size());
+    // A step of the failed propagation which does still finish isn't counted.
+    store.propagateStep(failed);
+    assertTrue("reset propagation pending", store.isPropagating(b));
+    store.propagateStep(store.queued.remove(0));
+    assertFalse(store.isPropagating(b));
+    assertTrue(store.isRestricted(b, other, SecureDatastore.Op.READ));
+  }
+
+  public void testAuthContext() {
+    User u = new User("memo");
+    Path a = store.create(Path.ROOT, "a", new JSONObject(), u);
+    Path b = store.create(a, "b", new JSONObject(), u);
+    store.assertAllowed(b, u, SecureDatastore.Op.READ);
+    long lookups = store.aclCache.hits.get() + store.aclCache.misses.get();
+    int memoHits = u.authContext.hits;
+    store.assertAllowed(b, u, SecureDatastore.Op.READ);
+    store.assertAllowed(b, u, SecureDatastore.Op.READ);
+    assertEquals(memoHits + 2, u.authContext.hits);
+    assertEquals("no ACL lookups", lookups,
+                 store.aclCache.hits.get() + store.aclCache.misses.get());
+
+    store.setRestricted(a, u, SecureDatastore.Op.READ);
+    assertTrue("ACL change clears the memo", store.isRestricted(b, u, SecureDatastore.Op.READ));
+    assertEquals(3, store.getAncestorAcls(b, u.authContext).length);
+  }
+
+  public void testReadableSubtrees() {
+    User u = new User("reader");
+    Path a = store.create(Path.ROOT, "a", new JSONObject(), u);
+    Path b = store.create(a, "b", new JSONObject(), u);
+    Path c = store.create(b, "c", new JSONObject(), u);
+    Path d = store.create(Path.ROOT, "d", new JSONObject(), u);
+    assertTrue(store.getReadableSubtrees(Path.ROOT, u, SecureDatastore.Op.READ).isAllReadable());
+
+    store.setRestricted(a, u, SecureDatastore.Op.READ);
+    store.setAllowed(c, u, SecureDatastore.Op.READ);
+    store.setRestricted(d, new User("someone else"), SecureDatastore.Op.READ);
+    ReadableSubtrees readable =
+      store.getReadableSubtrees(Path.ROOT, u, SecureDatastore.Op.READ);
+    assertSame("cached", readable,
+               store.getReadableSubtrees(Path.ROOT, u, SecureDatastore.Op.READ));
+    assertEquals(2, readable.size());
+    assertFalse(readable.isAllReadable());
+    assertTrue(readable.isReadable(Path.ROOT));
+    assertFalse(readable.isReadable(a));
+    assertFalse(readable.isReadable(b));
+    assertTrue(readable.isReadable(c));
+    assertTrue(readable.isReadable(c.getChild("e")));
+    assertTrue(readable.isReadable(d));
+
+    // Scoped to a subtree, with the ACLs of its ancestors.
+    store.setRestricted(d, u, SecureDatastore.Op.READ);
+    assertEquals(3, store.getReadableSubtrees(Path.ROOT, u, SecureDatastore.Op.READ).size());
+    readable = store.getReadableSubtrees(b, u, SecureDatastore.Op.READ);
+    assertEquals(2, readable.size());
+    assertFalse(readable.isReadable(b));
+    assertTrue(readable.isReadable(c));
+  }
+
+  public void testGroupPrincipals() {
+    User u = new User("member");
+    Path a = store.create(Path.ROOT, "a", new JSONObject(), u);
+    Path b = store.create(a, "b", new JSONObject(), u);
+    store.setRestricted(a, new User(SecureDatastore.groupUid("eng")), SecureDatastore.Op.READ);
+    assertTrue(store.isAllowed(b, u, SecureDatastore.Op.READ));
+
+    store.addGroupMember("eng", u);
+    assertEquals(2, store.getPrincipals(u).length);
+    assertTrue("restricted as member", store.isRestricted(b, u, SecureDatastore.Op.READ));
+    assertTrue(store.isAllowed(b, new User("nonmember"), SecureDatastore.Op.READ));
+    assertFalse(store.getReadableSubtrees(Path.ROOT, u, SecureDatastore.Op.READ).isReadable(b));
+
+    store.setAllowed(b, u, SecureDatastore.Op.READ);
+    assertTrue("user allowed below group", store.isAllowed(b, u, SecureDatastore.Op.READ));
+    assertTrue(store.isRestricted(a, u, SecureDatastore.Op.READ));
+
+    store.removeGroupMember("eng", u);
+    assertTrue(store.isAllowed(a, u, SecureDatastore.Op.READ));
+  }
+
+  /** Users can't hold or join as a group's uid. */
+  public void testGroupUidsReserved() {
+    User posing = new User(SecureDatastore.groupUid("eng"));
+    try {
+      store.getPrincipals(posing);
+      fail("user with a group uid");
+    } catch (SecurityException e) {
+      // OK
+    }
+    try {
+      store.addGroupMember("admins", posing);
+      fail("group as member");
+    } catch (IllegalArgumentException e) {
+      // OK
+    }
+  }
+
+  /** A concurrent change to an ACL makes an update retry rather than lose it. */
+  public void testUpdateControlRetries() {
+    final Path a = store.create(Path.ROOT, "a", new JSONObject(), User.TEST_USER);
+    final User other = new User("other");
+    final int [] tries = {0};
+    SecureDatastore racing = new SecureDatastore() {
+        @Override
+        boolean updateControl(Transaction txn, Key aclKey, String euid, int bit, boolean set) {
+          boolean changed = super.updateControl(txn, aclKey, euid, bit, set);
+          if (tries[0]++ == 0) {
+            store.setRestricted(a, other, SecureDatastore.Op.READ);
+          }
+          return changed;
+        }
+      };
+    racing.setRestricted(a, new User("racer"), SecureDatastore.Op.READ);
+    assertEquals(2, tries[0]);
+    store.aclCache.clear();
+    assertTrue(store.isRestricted(a, new User("racer"), SecureDatastore.Op.READ));
+    assertTrue(store.isRestricted(a, new User("other"), SecureDatastore.Op.READ));
+  }
+
+  /** Migrates a corpus to a grouped layout and back, leaving others alone. */
+  public void testMigrateLayoutRoundTrip() throws Exception {
+    KeyLayout grouped = new KeyLayout(2);
+    SecureDatastore groupedStore = new SecureDatastore(grouped);
+    User u = new User("migrator");
+    User outsider = new User("outsider");
+    Path corpus = store.create(Path.ROOT, "m", new JSONObject(), u);
+    Path a = store.create(corpus, "a", new JSONObject(), u);
+    Path b = store.create(a, "b", obj("foo", "bar"), u);
+    Path other = store.create(Path.ROOT, "other", new JSONObject(), u);
+    store.setRestricted(a, outsider, SecureDatastore.Op.READ);
+    store.service.put(Outbox.newEntry(b.toKey(store.layout), store.layout));
+
+    migrate(groupedStore, corpus, KeyLayout.ROOTED);
+    assertEquals("bar", groupedStore.retrieve(b, u).get("foo"));
+    assertTrue(groupedStore.list(a, 0, 10, null, null, null, -1, u).has("b"));
+    assertTrue(groupedStore.isRestricted(b, outsider, SecureDatastore.Op.READ));
+    store.service.get(Outbox.entryKey(b.toKey(grouped)));
+    store.service.get(other.toKey(store.layout));
+    try {
+      store.retrieve(b, u);
+      fail("should have moved");
+    } catch (Store.NotFoundException e) {
+      // OK
+    }
+
+    migrate(store, corpus, grouped);
+    assertEquals("bar", store.retrieve(b, u).get("foo"));
+    assertTrue(store.list(a, 0, 10, null, null, null, -1, u).has("b"));
+    assertTrue(store.isRestricted(b, outsider, SecureDatastore.Op.READ));
+    store.service.get(Outbox.entryKey(b.toKey(store.layout)));
+  }
+
+  // Helpers.
+
+  /**
+   * A store which materializes ACLs and queues its propagation steps
+   * for the test to run, as there is no task queue in tests.
+   */
+  static class QueuedStore extends SecureDatastore {
+    final List<String> queued = new ArrayList<String>();
+
+    QueuedStore() {
+      super(KeyLayout.ROOTED, true);
+    }
+
+    @Override
+    void enqueuePropagation(Transaction txn, String arg) {
+      queued.add(arg);
+    }
+  }
+
+  /** Runs the given store's queued propagation steps, and any they queue. */
+  static void drainPropagations(QueuedStore store) {
+    while (!store.queued.isEmpty()) {
+      store.propagateStep(store.queued.remove(0));
+    }
+  }
+
+  /** Runs the migration of the given corpus to the given store's layout. */
+  static void migrate(SecureDatastore to, Path corpus, KeyLayout from) {
+    List<String> keys = new ArrayList<String>();
+    for (Iterator<String> itr = to.migrationKeys(corpus, from); itr.hasNext(); ) {
+      keys.add(itr.next());
+    }
+    to.migrator(corpus, from).process(keys.toArray(new String[keys.size()]));
+    to.aclCache.clear();
+  }
 }
@@ -63,6 +63,35 @@ public class UtilTest extends BaseTest {
     assertEquals("d", map.get("c"));
   }
 
+  public void testJsonProject() throws Exception {
+    JSONObject obj = new JSONObject("{\"a\": \"b\", \"c\": {\"d\": 1, \"e\": 2},"
+                                    + " \"f\": [{\"g\": 3, \"h\": 4}]}");
+    assertSame(obj, Util.jsonProject(obj, null));
+    JSONObject projected = Util.jsonProject(obj, Util.parseFields("a, c/d,f/h,x"));
+    assertEquals(3, projected.length());
+    assertEquals("b", projected.get("a"));
+    assertEquals("{\"d\":1}", projected.getJSONObject("c").toString());
+    assertEquals("[{\"h\":4}]", projected.getJSONArray("f").toString());
+    assertEquals(0, Util.jsonProject(obj, new String[0]).length());
+    // A part of a field which has none.
+    assertEquals(0, Util.jsonProject(obj, new String[]{"a/b"}).length());
+  }
+
+  public void testParseOrder() throws Exception {
+    assertNull(Util.parseOrder(null));
+    int [] order = Util.parseOrder("asc,,desc");
+    assertEquals(3, order.length);
+    assertTrue(order[0] > 0);
+    assertEquals(0, order[1]);
+    assertTrue(order[2] < 0);
+    try {
+      Util.parseOrder("up");
+      fail("unknown order should throw");
+    } catch (IllegalArgumentException e) {
+      // OK
+    }
+  }
+
   public static void main(final String [] args) {
     junit.textui.TestRunner.run(UtilTest.class);
   }